@@ -0,0 +1,23 @@
+package nlp.lm.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.*;
+
+/**
+ * Entry point of benchmarks.jar. Takes the usual JMH command line options
+ * and always adds the GC profiler, so allocation rate (gc.alloc.rate.norm)
+ * is reported next to throughput as with "-prof gc".
+ */
+
+public class Benchmarks {
+
+    public static void main(String[] args) throws Exception {
+	CommandLineOptions commandLine = new CommandLineOptions(args);
+	Options options = new OptionsBuilder()
+	    .parent(commandLine)
+	    .addProfiler(GCProfiler.class)
+	    .build();
+	new Runner(options).run();
+    }
+}
@@ -0,0 +1,55 @@
+package nlp.lm.bench;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import nlp.lm.POSTaggedFile;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Parsing a directory of LDC POS tagged files into sentences with
+ * POSTaggedFile.convertToTokenLists, serially and on a thread pool.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IngestionBenchmark {
+
+    @Param({"20000"})
+    public int numSentences;
+
+    @Param({"100"})
+    public int sentencesPerFile;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    File dir;
+
+    @Setup
+    public void setup() throws IOException {
+	dir = Files.createTempDirectory("nlp-lm-bench").toFile();
+	SyntheticCorpus.writeFiles(dir, SyntheticCorpus.sentences(numSentences, 20000, 42),
+				   sentencesPerFile, 42);
+    }
+
+    @TearDown
+    public void tearDown() {
+	SyntheticCorpus.delete(dir);
+    }
+
+    @Benchmark
+    public List<List<String>> convertToTokenLists() {
+	File[] files = new File[] {dir};
+	if (threads > 1)
+	    return POSTaggedFile.convertToTokenLists(files, threads);
+	return POSTaggedFile.convertToTokenLists(files);
+    }
+}
@@ -0,0 +1,69 @@
+package nlp.lm.bench;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import nlp.lm.BigramModel;
+import nlp.lm.BidirectionalBigramModel;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Scoring held-out sentences with trained models. Each operation scores
+ * one sentence, so throughput is in sentences per second.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScoringBenchmark {
+
+    /** Sentences scored per benchmark invocation */
+    static final int BATCH = 1000;
+
+    @Param({"50000"})
+    public int numSentences;
+
+    @Param({"20000"})
+    public int vocabularySize;
+
+    BigramModel model;
+    BidirectionalBigramModel bidirectionalModel;
+    List<List<String>> testSentences;
+
+    @Setup
+    public void setup() {
+	List<List<String>> sentences = SyntheticCorpus.sentences(numSentences + BATCH, vocabularySize, 42);
+	List<List<String>> trainSentences = sentences.subList(0, numSentences);
+	testSentences = sentences.subList(numSentences, numSentences + BATCH);
+	model = new BigramModel();
+	model.train(trainSentences);
+	bidirectionalModel = new BidirectionalBigramModel();
+	bidirectionalModel.train(trainSentences);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void sentenceLogProb(Blackhole blackhole) {
+	for (List<String> sentence : testSentences)
+	    blackhole.consume(model.sentenceLogProb(sentence));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void sentenceTokenProbs(Blackhole blackhole) {
+	for (List<String> sentence : testSentences)
+	    blackhole.consume(model.sentenceTokenProbs(sentence));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void bidirectionalSentenceTokenProbs(Blackhole blackhole) {
+	for (List<String> sentence : testSentences)
+	    blackhole.consume(bidirectionalModel.sentenceTokenProbs(sentence));
+    }
+}
@@ -0,0 +1,103 @@
+package nlp.lm.bench;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Generates a reproducible synthetic corpus so the benchmarks run without
+ * the LDC data. Tokens are drawn from a Zipf distribution, and half of them
+ * are chosen from a few successors of the previous token so that the corpus
+ * has bigram structure worth modelling. The corpus can also be written out
+ * as LDC POS tagged files for the ingestion benchmarks.
+ */
+
+public class SyntheticCorpus {
+
+    /** POS tags attached to tokens when writing files */
+    protected static final String[] TAGS = {"NN", "NNS", "VB", "VBD", "DT", "JJ", "IN", "RB"};
+
+    /** Return numSentences sentences over a vocabulary of vocabularySize words */
+    public static List<List<String>> sentences(int numSentences, int vocabularySize, long seed) {
+	Random random = new Random(seed);
+	String[] words = new String[vocabularySize];
+	for (int i = 0; i < vocabularySize; i++)
+	    words[i] = "w" + i;
+	// Cumulative Zipf distribution for drawing word ranks
+	double[] cumulative = new double[vocabularySize];
+	double total = 0;
+	for (int i = 0; i < vocabularySize; i++) {
+	    total += 1.0 / (i + 1);
+	    cumulative[i] = total;
+	}
+	List<List<String>> sentences = new ArrayList<List<String>>(numSentences);
+	for (int s = 0; s < numSentences; s++) {
+	    int length = 3 + random.nextInt(23);
+	    List<String> sentence = new ArrayList<String>(length);
+	    int prev = random.nextInt(50);
+	    for (int t = 0; t < length; t++) {
+		int word;
+		if (random.nextBoolean())
+		    word = (prev * 7 + random.nextInt(4)) % vocabularySize;
+		else {
+		    int rank = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+		    word = Math.min(rank < 0 ? -rank - 1 : rank, vocabularySize - 1);
+		}
+		sentence.add(words[word]);
+		prev = word;
+	    }
+	    sentences.add(sentence);
+	}
+	return sentences;
+    }
+
+    /** Write sentences as LDC POS tagged files of sentencesPerFile sentences
+     *  each into dir, and return the files written */
+    public static List<File> writeFiles(File dir, List<List<String>> sentences,
+					int sentencesPerFile, long seed) throws IOException {
+	Random random = new Random(seed);
+	dir.mkdirs();
+	List<File> files = new ArrayList<File>();
+	for (int start = 0; start < sentences.size(); start += sentencesPerFile) {
+	    File file = new File(dir, String.format("f%05d.pos", files.size()));
+	    PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+	    try {
+		out.println("*x* synthetic corpus");
+		out.println();
+		int end = Math.min(start + sentencesPerFile, sentences.size());
+		for (List<String> sentence : sentences.subList(start, end)) {
+		    out.println("======================================");
+		    out.println();
+		    // Put a few tokens on each line, some as bracketed chunks
+		    for (int i = 0; i < sentence.size(); ) {
+			int chunk = Math.min(1 + random.nextInt(5), sentence.size() - i);
+			StringBuilder line = new StringBuilder();
+			for (int j = i; j < i + chunk; j++) {
+			    if (j > i)
+				line.append(' ');
+			    line.append(sentence.get(j)).append('/').append(TAGS[random.nextInt(TAGS.length)]);
+			}
+			out.println(random.nextBoolean() ? "[ " + line + " ]" : line.toString());
+			i += chunk;
+		    }
+		    out.println("./. ");
+		    out.println();
+		}
+	    }
+	    finally {
+		out.close();
+	    }
+	    files.add(file);
+	}
+	return files;
+    }
+
+    /** Delete a directory written by writeFiles */
+    public static void delete(File dir) {
+	File[] files = dir.listFiles();
+	if (files != null) {
+	    for (File file : files)
+		file.delete();
+	}
+	dir.delete();
+    }
+}
@@ -0,0 +1,46 @@
+package nlp.lm.bench;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import nlp.lm.BigramModel;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Training a BigramModel from scratch on a list of sentences, serially and
+ * on several threads.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TrainingBenchmark {
+
+    @Param({"50000"})
+    public int numSentences;
+
+    @Param({"20000"})
+    public int vocabularySize;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    List<List<String>> sentences;
+
+    @Setup
+    public void setup() {
+	sentences = SyntheticCorpus.sentences(numSentences, vocabularySize, 42);
+    }
+
+    @Benchmark
+    public BigramModel train() {
+	BigramModel model = new BigramModel();
+	model.trainThreads = threads;
+	model.train(sentences);
+	return model;
+    }
+}
@@ -11,33 +11,105 @@ import java.util.*;
  */
 
 public class BackwardBigramModel extends BigramModel {
+
+    /** Forward model over the same counts for predictNext, built on first
+     *  use after calculateProbs */
+    protected volatile BigramModel forwardModel = null;
+
+    /** Initialize an untrained model, as for BigramModel */
+    public BackwardBigramModel() {
+    }
+
+    /** Initialize a model over structures that already exist, allocating
+     *  nothing, as for the BigramModel constructor with these arguments */
+    protected BackwardBigramModel (Vocabulary vocabulary, double[] unigramCounts, BigramTable bigramTable) {
+        super(vocabulary, unigramCounts, bigramTable);
+    }
 	
 	/** Accumulate unigram and backward bigram counts for these sentences 
 	 *  by reversing sentence
 	 */
 	@Override
     public void trainSentence (List<String> sentence) {
-        ArrayList<String> reverseSentence = new ArrayList<String>(sentence);
-        Collections.reverse(reverseSentence);
-        super.trainSentence(reverseSentence);
+        super.trainSentence(trainingSequence(sentence));
     }
 
-    /** Compute log probability of sentence given current backward model 
-     *  Because the train uses backward model, the test also needs to be reversed
-     */
+    /** Backward bigrams are counted over the reversed sentence */
 	@Override
-    public double sentenceLogProb (List<String> sentence) {
-    	ArrayList<String> reverseSentence = new ArrayList<String>(sentence);
+    protected List<String> trainingSequence (List<String> sentence) {
+        ArrayList<String> reverseSentence = new ArrayList<String>(sentence);
         Collections.reverse(reverseSentence);
-        return super.sentenceLogProb(reverseSentence);
+        return reverseSentence;
     }
 
-    /** Like sentenceLogProb but excludes predicting start-of-sentence when computing perplexity */
+    /** Return the k most likely tokens to precede token, most likely first */
+    public List<Prediction> predictPrevious (String token, int k) {
+        return successorIndex().predict(tokenId(token), k);
+    }
+
+    /** Bigrams are counted backward, so the tokens following token are
+     *  predicted by a forward model over the same counts read in reverse */
+    @Override
+    public List<Prediction> predictNext (String token, int k) {
+        return forwardModel().predictNext(token, k);
+    }
+
+    /** Return the forward model over this model's counts, building it if
+     *  there is none yet or the probs changed since it was built */
+    protected BigramModel forwardModel () {
+        BigramModel model = forwardModel;
+        if (model == null || model.probsVersion != probsVersion) {
+            model = new BigramModel(vocabulary, unigramCounts, reverse(bigramTable, unigramCounts));
+            model.unigramProbs = unigramProbs;
+            model.tokenCount = tokenCount;
+            model.probsCalculated = probsCalculated;
+            model.probsVersion = probsVersion;
+            forwardModel = model;
+        }
+        model.lambda1 = lambda1;
+        model.lambda2 = lambda2;
+        return model;
+    }
+
+    /** Swap <S> and </S>, turning a backward ID into a forward one and back */
+    protected static int forwardId (int id) {
+        if (id == START_ID)
+            return END_ID;
+        if (id == END_ID)
+            return START_ID;
+        return id;
+    }
+
+    /** Return the bigrams of table counted in the other direction, each
+     *  (A, B) turned into (B, A) with <S> and </S> swapped, and their probs
+     *  computed from unigramCounts. <S> and </S> are both counted once per
+     *  sentence, so the unigram counts are the same in both directions */
+    protected static BigramTable reverse (BigramTable table, double[] unigramCounts) {
+        BigramTable reversed = new BigramTable(table.size());
+        for (int slot = 0; slot < table.capacity(); slot++) {
+            if (!table.isOccupied(slot))
+                continue;
+            long key = table.keyAt(slot);
+            int prevId = forwardId(BigramTable.id(key));
+            int id = forwardId(BigramTable.prevId(key));
+            double count = table.countAt(slot);
+            int reversedSlot = reversed.findOrInsert(prevId, id);
+            reversed.setCountAt(reversedSlot, count);
+            reversed.setProbAt(reversedSlot, count / unigramCounts[prevId]);
+        }
+        return reversed;
+    }
+
+    /** Compute log probability of sentence given current backward model 
+     *  Because the train uses backward model, the test also needs to be reversed.
+     *  sentenceLogProb and sentenceLogProb2, which excludes predicting
+     *  start-of-sentence, both score through here
+     */
 	@Override
-    public double sentenceLogProb2 (List<String> sentence) {
+    protected double sentenceLogProb (List<String> sentence, boolean includeEnd, long[] oovCount) {
     	ArrayList<String> reverseSentence = new ArrayList<String>(sentence);
         Collections.reverse(reverseSentence);
-        return super.sentenceLogProb2(reverseSentence);
+        return super.sentenceLogProb(reverseSentence, includeEnd, oovCount);
     }
 
     /** Returns vector of probabilities of predicting each token in the sentence
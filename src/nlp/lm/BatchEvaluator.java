@@ -0,0 +1,123 @@
+package nlp.lm;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Scores a list of test sentences on a ForkJoinPool. Scoring only reads a
+ * trained model, so sentences are split into ranges that are scored
+ * concurrently through the model's own scoring, as by sentenceLogProb or
+ * sentenceLogProb2, which keeps the backward and bidirectional overrides in
+ * effect. Tokens scored as <UNK> are counted by the same pass, so each
+ * token is looked up in the vocabulary once.
+ *
+ * Each range sums its log probabilities with Neumaier's compensated
+ * summation and ranges are combined pairwise in a fixed tree over the
+ * sentence list, so the total does not depend on the number of threads.
+ */
+
+public class BatchEvaluator {
+
+    /** Most sentences scored as a single task */
+    protected static final int RANGE_SIZE = 256;
+
+    /** Score sentences with model on threads threads. If includeEnd then
+     *  predicting the end of each sentence is counted, as in test, otherwise
+     *  it is left out, as in test2 */
+    public static EvaluationResult evaluate(BigramModel model, List<List<String>> sentences,
+					    boolean includeEnd, int threads) {
+	long start = System.nanoTime();
+	boolean parallel = threads > 1 && sentences.size() > RANGE_SIZE;
+	Score task = new Score(model, sentences, 0, sentences.size(), includeEnd, parallel);
+	Partial total;
+	if (!parallel) {
+	    total = task.compute();
+	}
+	else {
+	    ForkJoinPool pool = new ForkJoinPool(threads);
+	    try {
+		total = pool.invoke(task);
+	    }
+	    finally {
+		pool.shutdown();
+	    }
+	}
+	Metrics.global().score.record(start, total.tokenCount);
+	return new EvaluationResult(sentences.size(), total.tokenCount, total.oovCount,
+				    total.sum + total.compensation, System.nanoTime() - start);
+    }
+
+    /** Compensated log prob sum and counts for a range of sentences */
+    protected static class Partial {
+	double sum = 0;
+	double compensation = 0;
+	long tokenCount = 0;
+	long oovCount = 0;
+
+	/** Add x to the sum, keeping the low order bits lost in compensation */
+	void add(double x) {
+	    double t = sum + x;
+	    if (Math.abs(sum) >= Math.abs(x))
+		compensation += (sum - t) + x;
+	    else
+		compensation += (x - t) + sum;
+	    sum = t;
+	}
+
+	/** Fold the sums and counts of other into this one */
+	void add(Partial other) {
+	    add(other.sum);
+	    add(other.compensation);
+	    tokenCount += other.tokenCount;
+	    oovCount += other.oovCount;
+	}
+    }
+
+    /** Score sentences [start, end) on the calling thread */
+    protected static Partial score(BigramModel model, List<List<String>> sentences,
+				   int start, int end, boolean includeEnd) {
+	Partial partial = new Partial();
+	long[] oovCount = new long[1];
+	for (int s = start; s < end; s++) {
+	    List<String> sentence = sentences.get(s);
+	    partial.add(model.sentenceLogProb(sentence, includeEnd, oovCount));
+	    // Num of tokens in sentence plus 1 for predicting </S> if it is scored
+	    partial.tokenCount += sentence.size() + (includeEnd ? 1 : 0);
+	}
+	partial.oovCount = oovCount[0];
+	return partial;
+    }
+
+    /** Split a range of sentences in halves until it is small enough to
+     *  score, forking the left half when running in parallel */
+    @SuppressWarnings("serial")
+    protected static class Score extends RecursiveTask<Partial> {
+	final BigramModel model;
+	final List<List<String>> sentences;
+	final int start, end;
+	final boolean includeEnd, parallel;
+
+	Score(BigramModel model, List<List<String>> sentences, int start, int end,
+	      boolean includeEnd, boolean parallel) {
+	    this.model = model;
+	    this.sentences = sentences;
+	    this.start = start;
+	    this.end = end;
+	    this.includeEnd = includeEnd;
+	    this.parallel = parallel;
+	}
+
+	protected Partial compute() {
+	    if (end - start <= RANGE_SIZE)
+		return score(model, sentences, start, end, includeEnd);
+	    int mid = (start + end) >>> 1;
+	    Score left = new Score(model, sentences, start, mid, includeEnd, parallel);
+	    if (parallel)
+		left.fork();
+	    Partial right = new Score(model, sentences, mid, end, includeEnd, parallel).compute();
+	    Partial total = parallel ? left.join() : left.compute();
+	    total.add(right);
+	    return total;
+	}
+    }
+}
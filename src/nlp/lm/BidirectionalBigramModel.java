@@ -12,17 +12,35 @@ import java.util.*;
 public class BidirectionalBigramModel extends BackwardBigramModel{
 	
 	BigramModel bigramModel;
-    BackwardBigramModel backwardBigramModel;
+    BigramModel backwardBigramModel;
     
     /** Interpolation weight for bigram model */
     public double forwardWeight = 0.5;
 
     /** Interpolation weight for backward model */
     public double backwardWeight = 0.5;
+
+    /** In log space scoring, a product of token probs is folded into the
+     *  log prob once it falls below this, far above where it could underflow */
+    protected static final double MIN_PRODUCT = 1e-150;
+
+    /** Backward scoring ID of each forward vocabulary ID, see backwardIds() */
+    protected volatile int[] backwardIds = null;
     
     public BidirectionalBigramModel() {
-        bigramModel = new BigramModel();
-        backwardBigramModel = new BackwardBigramModel();
+        this(new BigramModel(), new BackwardBigramModel());
+    }
+
+    /**
+     * Combine an already trained forward model and backward model, such as
+     * the two models of a BidirectionalBigramModel loaded from a ModelFile.
+     * All counts are held by the two models, so this one allocates none
+     * and its unigramMap and bigramMap views are empty
+     */
+    public BidirectionalBigramModel(BigramModel bigramModel, BigramModel backwardBigramModel) {
+        super(null, null, null);
+        this.bigramModel = bigramModel;
+        this.backwardBigramModel = backwardBigramModel;
     }
     
     /**
@@ -30,30 +48,49 @@ public class BidirectionalBigramModel extends BackwardBigramModel{
      */
     @Override
     public void train (List<List<String>> sentences) {
+        bigramModel.trainThreads = trainThreads;
+        backwardBigramModel.trainThreads = trainThreads;
         bigramModel.train(sentences);
         backwardBigramModel.train(sentences);
+        backwardIds = null;
     }
     
+    /**
+     * Train two models seperately from a single pass over the sentences
+     */
+    @Override
+    public void train (Iterator<List<String>> sentences) {
+        bigramModel.trainThreads = trainThreads;
+        backwardBigramModel.trainThreads = trainThreads;
+        List<List<String>> batch = new ArrayList<List<String>>();
+        while (sentences.hasNext()) {
+            batch.add(sentences.next());
+            if (batch.size() == STREAM_BATCH || !sentences.hasNext()) {
+                bigramModel.trainSentences(batch);
+                backwardBigramModel.trainSentences(batch);
+                batch.clear();
+            }
+        }
+        bigramModel.calculateProbs();
+        backwardBigramModel.calculateProbs();
+        backwardIds = null;
+    }
+
+    /**
+     * Both models are trained on the same sentences so they share a vocabulary
+     */
+    @Override
+    public boolean inVocabulary (String token) {
+        return bigramModel.inVocabulary(token);
+    }
+
     /**
      * Compute log probability of sentence given current model
      * Include <S> and </S>. Average these two for boundary prediction
      */
     @Override
     public double sentenceLogProb (List<String> sentence) {
-    	
-    	double[] probs = sentenceTokenProbs(sentence);
-    	int sentenceLength = sentence.size();
-    	assert(probs.length == sentenceLength + 2);
-    	
-    	double sentenceLogProb = 0;
-    	for(int i = 1; i <= sentenceLength; ++i) {
-    		double logProb = Math.log(probs[i]);
-    		sentenceLogProb += logProb;
-    	}
-    	double startProb = probs[0];
-    	double endProb = probs[sentenceLength + 1];
-    	sentenceLogProb += Math.log( ( startProb + endProb ) / 2);
-    	return sentenceLogProb;
+    	return score(sentence, null, true, null);
     }
     
     /**
@@ -62,16 +99,13 @@ public class BidirectionalBigramModel extends BackwardBigramModel{
      */
     @Override
     public double sentenceLogProb2 (List<String> sentence) {
-    	
-    	double[] probs = sentenceTokenProbs(sentence);
-    	assert(probs.length == sentence.size() + 2);
-    	
-    	double sentenceLogProb = 0;
-    	for(int i = 1; i <= sentence.size(); ++i) {
-    		double logProb = Math.log(probs[i]);
-    		sentenceLogProb += logProb;
-    	}
-    	return sentenceLogProb;
+    	return score(sentence, null, false, null);
+    }
+
+    /** Scores sentence as sentenceLogProb or sentenceLogProb2 do */
+    @Override
+    protected double sentenceLogProb (List<String> sentence, boolean includeEnd, long[] oovCount) {
+    	return score(sentence, null, includeEnd, oovCount);
     }
     
     /**
@@ -80,28 +114,284 @@ public class BidirectionalBigramModel extends BackwardBigramModel{
      */
     @Override
     public double[] sentenceTokenProbs (List<String> sentence) {
-    	double[] forwardProbs = bigramModel.sentenceTokenProbs(sentence);
-        double[] backwardProbs = backwardBigramModel.sentenceTokenProbs(sentence);
-        int len = forwardProbs.length;
-        assert(len == backwardProbs.length && len == sentence.size() + 1);
-        
-        // forwardProbs consists of bigram [(<S>, w_0), (w_0, w_1) ... (w_size-1, <\S>)];
-        //                       and unigram [w_0, w_1 ... w_size-1, <\S>]
-        // backwardProbs consists of [(<\S>, w_size-1), (w_size-1, w_size-2) ... (<w_0>, <S>)];
-        //                       and unigram [w_size-1, w_size-2 ... w_0 <S>]
-        // here, size is sentecne.size(). and we assert len == size + 1
-        // So forwardProbs[i] is corresponding to backwardProbs[len - i - 2]
-        double[] probs = new double[len + 1];
-  
-        probs[0] = backwardProbs[len - 1]; //Probability of start
-        probs[len] = forwardProbs[len - 1]; //Probability of end
-        for(int i = 1; i < len; ++i) {
-        	//Probability ot w_i
-        	probs[i] = forwardProbs[i-1] * forwardWeight + backwardProbs[len - i - 1] * backwardWeight;
-        }
-        return probs;
+    	return sentenceTokenProbs(sentence, null);
+    }
+
+    /**
+     * Like sentenceTokenProbs but stores the probabilities in probs, which
+     * is reused if it has room for sentence.size() + 2 of them and
+     * allocated otherwise. Returns the array holding the probabilities
+     */
+    public double[] sentenceTokenProbs (List<String> sentence, double[] probs) {
+    	if (probs == null || probs.length < sentence.size() + 2)
+    		probs = new double[sentence.size() + 2];
+    	score(sentence, probs, false, null);
+    	return probs;
+    }
+
+    /**
+     * Score a sentence in a single pass over it. Token w_i is predicted from
+     * w_i-1 by the forward model and from w_i+1 by the backward model, so
+     * the pass only needs to look one token ahead, and each token is
+     * resolved to its ID in both models once, without reversing the
+     * sentence. If probs is not null the probability of every token,
+     * including <S> and </S>, is stored in it as by sentenceTokenProbs and
+     * no log probability is computed. Otherwise returns the log probability
+     * of the sentence, with the boundary prediction if includeBoundary, and
+     * adds the number of tokens scored as <UNK> to oovCount[0] if oovCount
+     * is not null.
+     * A token prob mixes three tokens' predictions so its log cannot be
+     * stored; with logSpaceScoring the probs are multiplied instead and
+     * the log taken once per block of tokens
+     */
+    protected double score (List<String> sentence, double[] probs, boolean includeBoundary, long[] oovCount) {
+    	int[] backwardIds = backwardIds();
+    	// Forward context of w_0 is <S>; at the end the backward context is <S> too
+    	int prevId = START_ID;
+    	int nextId = START_ID, nextBackwardId = START_ID;
+    	Iterator<String> tokens = sentence.iterator();
+    	if (tokens.hasNext()) {
+    		long ids = resolve(tokens.next(), backwardIds);
+    		nextId = (int) (ids >> 32);
+    		nextBackwardId = (int) ids;
+    	}
+    	// Backward model predicts </S> from w_0
+    	double startBigramProb = backwardBigramModel.bigramProb(nextBackwardId, END_ID);
+    	double startProb = backwardBigramModel.tokenProb(nextBackwardId, END_ID, startBigramProb);
+    	double sentenceLogProb = 0;
+    	double product = 1;
+    	int n = sentence.size();
+    	// A prediction is a miss when neither model saw its bigram
+    	int oov = 0, misses = 0;
+    	for (int i = 1; i <= n; i++) {
+    		int id = nextId;
+    		int backwardId = nextBackwardId;
+    		if (id == UNK_ID)
+    			oov++;
+    		if (tokens.hasNext()) {
+    			long ids = resolve(tokens.next(), backwardIds);
+    			nextId = (int) (ids >> 32);
+    			nextBackwardId = (int) ids;
+    		}
+    		else {
+    			nextBackwardId = START_ID;
+    		}
+    		double forwardBigramProb = bigramModel.bigramProb(prevId, id);
+    		double backwardBigramProb = backwardBigramModel.bigramProb(nextBackwardId, backwardId);
+    		if (forwardBigramProb == 0 && backwardBigramProb == 0)
+    			misses++;
+    		double prob = bigramModel.tokenProb(prevId, id, forwardBigramProb) * forwardWeight
+    			+ backwardBigramModel.tokenProb(nextBackwardId, backwardId, backwardBigramProb) * backwardWeight;
+    		if (probs != null) {
+    			probs[i] = prob;
+    		}
+    		else if (logSpaceScoring) {
+    			product *= prob;
+    			if (product < MIN_PRODUCT) {
+    				sentenceLogProb += Math.log(product);
+    				product = 1;
+    			}
+    		}
+    		else {
+    			sentenceLogProb += Math.log(prob);
+    		}
+    		prevId = id;
+    	}
+    	if (product != 1)
+    		sentenceLogProb += Math.log(product);
+    	// Forward model predicts </S> from the last token
+    	double endBigramProb = bigramModel.bigramProb(prevId, END_ID);
+    	double endProb = bigramModel.tokenProb(prevId, END_ID, endBigramProb);
+    	if (probs != null) {
+    		probs[0] = startProb;
+    		probs[n + 1] = endProb;
+    	}
+    	else if (includeBoundary) {
+    		sentenceLogProb += Math.log( ( startProb + endProb ) / 2);
+    		if (startBigramProb == 0 && endBigramProb == 0)
+    			misses++;
+    	}
+    	if (probs == null)
+    		Metrics.global().recordPredictions(n + (includeBoundary ? 1 : 0), oov, misses);
+    	if (oovCount != null)
+    		oovCount[0] += oov;
+    	return sentenceLogProb;
+    }
+
+    /** Tokens are those of the forward model */
+    @Override
+    public int vocabularySize () {
+    	return bigramModel.vocabularySize();
+    }
+
+    @Override
+    public int vocabularyId (String token) {
+    	return bigramModel.vocabularyId(token);
+    }
+
+    @Override
+    public int scoringId (int id) {
+    	return bigramModel.scoringId(id);
+    }
+
+    @Override
+    public String token (int id) {
+    	return bigramModel.token(id);
+    }
+
+    @Override
+    public int bigramCount () {
+    	return bigramModel.bigramCount() + backwardBigramModel.bigramCount();
+    }
+
+    @Override
+    public long estimatedHeapBytes () {
+    	int[] ids = backwardIds;
+    	return bigramModel.estimatedHeapBytes() + backwardBigramModel.estimatedHeapBytes()
+    		+ (ids == null ? 0 : 16 + 4L * ids.length);
+    }
+
+    /** Both models count the same tokens, so the forward model's IDs
+     *  determine the scores */
+    @Override
+    public int[] tokenIds (List<String> sentence) {
+    	return bigramModel.tokenIds(sentence);
+    }
+
+    /** The states of both models and their weights */
+    @Override
+    protected double[] scoringState () {
+    	double[] forward = bigramModel.scoringState();
+    	double[] backward = backwardBigramModel.scoringState();
+    	double[] state = Arrays.copyOf(forward, forward.length + backward.length + 2);
+    	System.arraycopy(backward, 0, state, forward.length, backward.length);
+    	state[state.length - 2] = forwardWeight;
+    	state[state.length - 1] = backwardWeight;
+    	return state;
+    }
+
+    /** A token's prob depends on the tokens after it too */
+    @Override
+    protected boolean scoresPrefixes () {
+    	return false;
+    }
+
+    /**
+     * Return the scoring IDs of token in the forward model (high 32 bits)
+     * and the backward model (low 32 bits)
+     */
+    protected long resolve (String token, int[] backwardIds) {
+    	int vocabularyId = bigramModel.vocabularyId(token);
+    	int id = bigramModel.scoringId(vocabularyId);
+    	// Only a token the forward model never saw needs a second lookup
+    	int backwardId = vocabularyId >= 0 ? backwardIds[vocabularyId]
+    		: backwardBigramModel.tokenId(token);
+    	return ((long) id << 32) | backwardId;
+    }
+
+    /**
+     * Return the table translating vocabulary IDs of the forward model to
+     * scoring IDs of the backward model, building it after (re)training.
+     * Concurrent callers may each build it once, with the same result
+     */
+    protected int[] backwardIds () {
+    	int[] ids = backwardIds;
+    	int size = bigramModel.vocabularySize();
+    	if (ids == null || ids.length != size) {
+    		ids = new int[size];
+    		for (int id = 0; id < size; id++)
+    			ids[id] = backwardBigramModel.tokenId(bigramModel.token(id));
+    		backwardIds = ids;
+    	}
+    	return ids;
     }
     
+    /** Return the k most likely tokens to follow token in the forward model */
+    @Override
+    public List<Prediction> predictNext (String token, int k) {
+    	return bigramModel.predictNext(token, k);
+    }
+
+    /** Return the k most likely tokens to precede token in the backward model */
+    @Override
+    public List<Prediction> predictPrevious (String token, int k) {
+    	return backwardBigramModel.successorIndex().predict(backwardBigramModel.tokenId(token), k);
+    }
+
+    /**
+     * Return the k most likely tokens between prevToken and nextToken, scored
+     * like a token of a sentence by both models. Walks the forward successors
+     * of prevToken and the backward successors of nextToken in order of
+     * decreasing prob, stopping once no token not yet scored can beat the k
+     * best scored so far
+     */
+    public List<Prediction> fillGap (String prevToken, String nextToken, int k) {
+    	int[] backwardIds = backwardIds();
+    	int prevId = bigramModel.tokenId(prevToken);
+    	int nextBackwardId = backwardBigramModel.tokenId(nextToken);
+    	SuccessorIndex.Cursor forward = bigramModel.successorIndex().cursor(prevId);
+    	SuccessorIndex.Cursor backward = backwardBigramModel.successorIndex().cursor(nextBackwardId);
+    	// A token the backward model scores as <UNK> is never met walking backward
+    	double unkBackwardProb = backwardBigramModel.tokenProb(nextBackwardId, UNK_ID);
+    	double forwardBound = 1, backwardBound = 1;
+    	boolean forwardDone = false, backwardDone = false;
+    	Set<Integer> scored = new HashSet<Integer>();
+    	// Best k scores so far, worst first
+    	PriorityQueue<long[]> best = new PriorityQueue<long[]>(k + 1, new Comparator<long[]>() {
+    		public int compare (long[] a, long[] b) {
+    			int c = Double.compare(Double.longBitsToDouble(a[1]), Double.longBitsToDouble(b[1]));
+    			return c != 0 ? c : Long.compare(b[0], a[0]);
+    		}
+    	});
+    	while (!forwardDone && k > 0) {
+    		if (best.size() == k) {
+    			double bound = forwardBound * forwardWeight
+    				+ Math.max(backwardBound, unkBackwardProb) * backwardWeight;
+    			if (Double.longBitsToDouble(best.peek()[1]) > bound)
+    				break;
+    		}
+    		int id = -1;
+    		if (forward.next()) {
+    			forwardBound = forward.prob;
+    			id = forward.id;
+    		}
+    		else
+    			forwardDone = true;
+    		score(id, prevId, nextBackwardId, backwardIds, scored, best, k);
+    		if (!backwardDone && backward.next()) {
+    			backwardBound = backward.prob;
+    			// Only tokens the forward model can predict are candidates
+    			int forwardId = bigramModel.tokenId(backwardBigramModel.token(backward.id));
+    			if (SuccessorIndex.predictable(forwardId))
+    				score(forwardId, prevId, nextBackwardId, backwardIds, scored, best, k);
+    		}
+    		else {
+    			backwardDone = true;
+    			backwardBound = 0;
+    		}
+    	}
+    	List<Prediction> predictions = new ArrayList<Prediction>(best.size());
+    	while (!best.isEmpty()) {
+    		long[] entry = best.poll();
+    		predictions.add(new Prediction(bigramModel.token((int) entry[0]), Double.longBitsToDouble(entry[1])));
+    	}
+    	Collections.reverse(predictions);
+    	return predictions;
+    }
+
+    /** Score forward token ID id between the two contexts, unless it was
+     *  scored already, keeping it if it is among the k best */
+    protected void score (int id, int prevId, int nextBackwardId, int[] backwardIds,
+    		Set<Integer> scored, PriorityQueue<long[]> best, int k) {
+    	if (id < 0 || !scored.add(id))
+    		return;
+    	double prob = bigramModel.tokenProb(prevId, id) * forwardWeight
+    		+ backwardBigramModel.tokenProb(nextBackwardId, backwardIds[id]) * backwardWeight;
+    	best.add(new long[] {id, Double.doubleToLongBits(prob)});
+    	if (best.size() > k)
+    		best.poll();
+    }
+
 	/** Train and test a bigram model.
      *  Command format: "nlp.lm.BidirectionalBigramModel [DIR]* [TestFrac]" where DIR 
      *  is the name of a file or directory whose LDC POS Tagged files should be 
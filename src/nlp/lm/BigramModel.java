@@ -11,13 +11,38 @@ import java.util.*;
 
 public class BigramModel {
 
-    /** Unigram model that maps a token to its unigram probability */
+    /** Unigram model that maps a token to its unigram probability.
+     *  A live view over vocabulary, unigramCounts and unigramProbs */
     public Map<String, DoubleValue> unigramMap = null; 
 
     /**  Bigram model that maps a bigram as a string "A\nB" to the
-     *   P(B | A) */
+     *   P(B | A). A live view over bigramTable */
     public Map<String, DoubleValue> bigramMap = null;
 
+    /** ID of the sentence start token <S> */
+    public static final int START_ID = 0;
+
+    /** ID of the sentence end token </S> */
+    public static final int END_ID = 1;
+
+    /** ID of the unknown token <UNK> */
+    public static final int UNK_ID = 2;
+
+    /** Interns every token seen in training to an int ID */
+    public Vocabulary vocabulary = null;
+
+    /** Unigram counts indexed by token ID */
+    public double[] unigramCounts = null;
+
+    /** Unigram probabilities indexed by token ID, set by calculateProbs */
+    public double[] unigramProbs = null;
+
+    /** Bigram counts and probabilities P(B | A) keyed on the IDs of A and B */
+    public BigramTable bigramTable = null;
+
+    /** Set once calculateProbs has turned counts into probabilities */
+    protected boolean probsCalculated = false;
+
     /** Total count of tokens in training data */
     public double tokenCount = 0;
 
@@ -27,15 +52,68 @@ public class BigramModel {
     /** Interpolation weight for bigram model */
     public double lambda2 = 0.9;
 
-    /** Initialize model with empty hashmaps with initial
-     *  unigram entries for setence start (<S>), sentence end (</S>)
+    /** Number of threads trainSentences counts on, set from the
+     *  nlp.lm.trainThreads system property. 1 trains serially */
+    public int trainThreads = Integer.getInteger("nlp.lm.trainThreads", 1);
+
+    /** Number of sentences read from a stream before they are counted */
+    public static final int STREAM_BATCH = 4096;
+
+    /** Number of threads evaluate scores on, set from the nlp.lm.testThreads
+     *  system property and defaulting to the number of processors */
+    public int testThreads = Integer.getInteger("nlp.lm.testThreads",
+    		Runtime.getRuntime().availableProcessors());
+
+    /** Whether calculateProbs also stores log probs so that sentences are
+     *  scored by table lookups instead of a Math.log per token, set from
+     *  the nlp.lm.logSpace system property */
+    public boolean logSpaceScoring = Boolean.getBoolean("nlp.lm.logSpace");
+
+    /** Log of the interpolated prob of each token ID after a token it was
+     *  never seen after, set by calculateLogProbs */
+    protected double[] backoffLogProbs = null;
+
+    /** Log of the interpolated prob of the bigram in each slot of bigramTable */
+    protected double[] bigramLogProbs = null;
+
+    /** lambda1, lambda2 and number of bigrams the log probs were computed for */
+    protected double logLambda1, logLambda2;
+    protected int logBigramCount;
+
+    /** Index of likely successors for predictNext, built on first use
+     *  after calculateProbs */
+    protected volatile SuccessorIndex successorIndex = null;
+
+    /** Number of times calculateProbs has replaced the probabilities, so
+     *  that a ScoreCache can tell its scores are stale */
+    protected volatile long probsVersion = 0;
+
+    /** Initialize model with an empty vocabulary and bigram table with
+     *  initial unigram entries for setence start (<S>), sentence end (</S>)
      *  and unknown tokens */
     public BigramModel() {
-    	unigramMap = new HashMap<String, DoubleValue>();
-    	bigramMap = new HashMap<String, DoubleValue>();
-    	unigramMap.put("<S>", new DoubleValue());
-    	unigramMap.put("</S>", new DoubleValue());
-    	unigramMap.put("<UNK>", new DoubleValue());
+    	vocabulary = new Vocabulary();
+    	unigramCounts = new double[1024];
+    	unigramProbs = new double[0];
+    	bigramTable = new BigramTable();
+    	addToken("<S>");
+    	addToken("</S>");
+    	addToken("<UNK>");
+    	unigramMap = new UnigramView();
+    	bigramMap = new BigramView();
+    }
+
+    /** Initialize a model over a vocabulary, unigram counts and bigram
+     *  table that already exist, for subclasses that score from elsewhere
+     *  and count nothing of their own. Nothing is allocated, and any of
+     *  them may be null, in which case the views over them are empty */
+    protected BigramModel (Vocabulary vocabulary, double[] unigramCounts, BigramTable bigramTable) {
+    	this.vocabulary = vocabulary;
+    	this.unigramCounts = unigramCounts;
+    	this.bigramTable = bigramTable;
+    	boolean counts = vocabulary != null && unigramCounts != null;
+    	unigramMap = counts ? new UnigramView() : Collections.<String, DoubleValue>emptyMap();
+    	bigramMap = counts && bigramTable != null ? new BigramView() : Collections.<String, DoubleValue>emptyMap();
     }
 
     /** Train the model on a List of sentences represented as
@@ -47,97 +125,282 @@ public class BigramModel {
     	calculateProbs();
     }
 
-    /** Accumulate unigram and bigram counts for these sentences */
+    /** Train the model on sentences read one at a time, for instance from
+     *  POSTaggedFile.sentenceIterator, so that the corpus is never held
+     *  in memory */
+    public void train (Iterator<List<String>> sentences) {
+    	trainSentences(sentences);
+    	calculateProbs();
+    }
+
+    /** Accumulate unigram and bigram counts for sentences read one at a
+     *  time. They are counted in batches of STREAM_BATCH sentences so that
+     *  parallel training also works on a stream */
+    public void trainSentences (Iterator<List<String>> sentences) {
+    	List<List<String>> batch = new ArrayList<List<String>>();
+    	while (sentences.hasNext()) {
+    		batch.add(sentences.next());
+    		if (batch.size() == STREAM_BATCH || !sentences.hasNext()) {
+    			trainSentences(batch);
+    			batch.clear();
+    		}
+    	}
+    }
+
+    /** Accumulate unigram and bigram counts for these sentences. With more
+     *  than one trainThreads the sentences are counted in parallel shards,
+     *  giving the same counts as training on them one by one */
     public void trainSentences (List<List<String>> sentences) {
-    	for (List<String> sentence : sentences) {
-    		trainSentence(sentence);
+    	long start = System.nanoTime();
+    	double startCount = tokenCount;
+    	if (trainThreads > 1) {
+    		ParallelTrainer.trainSentences(this, sentences, trainThreads);
+    	}
+    	else {
+    		for (List<String> sentence : sentences) {
+    			trainSentence(sentence);
+    		}
     	}
+    	Metrics.global().train.record(start, (long) (tokenCount - startCount));
+    }
+
+    /** Return the tokens of sentence in the order they are counted in.
+     *  Subclasses that model another direction override this */
+    protected List<String> trainingSequence (List<String> sentence) {
+    	return sentence;
     }
 
     /** Accumulate unigram and bigram counts for this sentence */
     public void trainSentence (List<String> sentence) {
     	// First count an initial start sentence token
-    	String prevToken = "<S>";
-    	DoubleValue unigramValue = unigramMap.get("<S>");
-    	unigramValue.increment();
+    	int prevId = START_ID;
+    	unigramCounts[START_ID]++;
     	tokenCount++;
     	// For each token in sentence, accumulate a unigram and bigram count
     	for (String token : sentence) {
-    		unigramValue = unigramMap.get(token);
+    		int id = vocabulary.id(token);
     		// If this is the first time token is seen then count it
     		// as an unkown token (<UNK>) to handle out-of-vocabulary 
     		// items in testing
-    		if (unigramValue == null) {
-    			// Store token in unigram map with 0 count to indicate that
+    		if (id < 0) {
+    			// Store token in vocabulary with 0 count to indicate that
     			// token has been seen but not counted
-    			unigramMap.put(token, new DoubleValue());
-    			token = "<UNK>";
-    			unigramValue = unigramMap.get(token);
-    		}
-    		unigramValue.increment();    // Count unigram
-    		tokenCount++;               // Count token
-    		// Make bigram string 
-    		String bigram = bigram(prevToken, token);
-    		DoubleValue bigramValue = bigramMap.get(bigram);
-    		if (bigramValue == null) {
-    			// If previously unseen bigram, then
-    			// initialize it with a value
-    			bigramValue = new DoubleValue();
-    			bigramMap.put(bigram, bigramValue);
+    			addToken(token);
+    			id = UNK_ID;
     		}
+    		unigramCounts[id]++;    // Count unigram
+    		tokenCount++;           // Count token
     		// Count bigram
-    		bigramValue.increment();
-    		prevToken = token;
+    		bigramTable.increment(prevId, id);
+    		prevId = id;
     	}
     	// Account for end of sentence unigram
-    	unigramValue = unigramMap.get("</S>");
-    	unigramValue.increment();
+    	unigramCounts[END_ID]++;
     	tokenCount++;
     	// Account for end of sentence bigram
-    	String bigram = bigram(prevToken, "</S>");
-    	DoubleValue bigramValue = bigramMap.get(bigram);
-    	if (bigramValue == null) {
-    		bigramValue = new DoubleValue();
-    		bigramMap.put(bigram, bigramValue);
-    	}
-    	bigramValue.increment();
+    	bigramTable.increment(prevId, END_ID);
+    }
+
+    /** Intern token in the vocabulary, growing the unigram arrays to
+     *  cover its ID, and return the ID */
+    protected int addToken (String token) {
+    	int id = vocabulary.add(token);
+    	if (id >= unigramCounts.length)
+    		unigramCounts = Arrays.copyOf(unigramCounts, 2 * unigramCounts.length);
+    	return id;
     }
 
     /** Compute unigram and bigram probabilities from unigram and bigram counts */
     public void calculateProbs() {
-    	// Set bigram values to conditional probability of second token given first
-    	for (Map.Entry<String, DoubleValue> entry : bigramMap.entrySet()) {
-    		// An entry in the HashMap maps a token to a DoubleValue
-    		String bigram = entry.getKey();
-    		// The value for the token is in the value of the DoubleValue
-    		DoubleValue value = entry.getValue();
-    		double bigramCount = value.getValue();
-    		String token1 = bigramToken1(bigram); // Get first token of bigram
+    	long start = System.nanoTime();
+    	backoffLogProbs = null;
+    	bigramLogProbs = null;
+    	successorIndex = null;
+    	probsVersion++;
+    	// Set bigram probs to conditional probability of second token given first
+    	for (int slot = 0; slot < bigramTable.capacity(); slot++) {
+    		if (!bigramTable.isOccupied(slot))
+    			continue;
+    		// Get first token of bigram
+    		int token1 = BigramTable.prevId(bigramTable.keyAt(slot));
     		// Prob is ratio of bigram count to token1 unigram count
-    		double condProb = bigramCount / unigramMap.get(token1).getValue();
-    		// Set map value to conditional probability 
-    		value.setValue(condProb);
+    		double condProb = bigramTable.countAt(slot) / unigramCounts[token1];
+    		bigramTable.setProbAt(slot, condProb);
     	}
-    	// Store unigrams with zero count to remove from map
-    	List<String> zeroTokens = new ArrayList<String>();
-    	// Set unigram values to unigram probability
-    	for (Map.Entry<String, DoubleValue> entry : unigramMap.entrySet()) {
-    		// An entry in the HashMap maps a token to a DoubleValue
-    		String token = entry.getKey();
-    		// Uniggram count is the current map value
-    		DoubleValue value = entry.getValue();
-    		double count = value.getValue();
-    		if (count == 0) 
-    			// If count is zero (due to first encounter as <UNK>)
-    			// then remove save it to remove from map
-    			zeroTokens.add(token);
-    		else
-    			// Set map value to prob of unigram
-    			value.setValue(count / tokenCount);
+    	// Set unigram probs to unigram probability. Tokens with zero count
+    	// (due to first encounter as <UNK>) keep a zero prob and are
+    	// treated as <UNK> by tokenId
+    	unigramProbs = new double[vocabulary.size()];
+    	for (int id = 0; id < unigramProbs.length; id++) {
+    		double count = unigramCounts[id];
+    		if (count != 0)
+    			unigramProbs[id] = count / tokenCount;
+    	}
+    	probsCalculated = true;
+    	if (logSpaceScoring)
+    		calculateLogProbs();
+    	Metrics.global().calculateProbs.record(start, 1);
+    }
+
+    /** Store the log of every interpolated prob tokenProb can return, for
+     *  the current lambda1 and lambda2 */
+    public void calculateLogProbs() {
+    	backoffLogProbs = new double[unigramProbs.length];
+    	for (int id = 0; id < backoffLogProbs.length; id++)
+    		backoffLogProbs[id] = Math.log(interpolatedProb(unigramProbs[id], 0));
+    	bigramLogProbs = new double[bigramTable.capacity()];
+    	for (int slot = 0; slot < bigramLogProbs.length; slot++) {
+    		if (bigramTable.isOccupied(slot)) {
+    			int id = BigramTable.id(bigramTable.keyAt(slot));
+    			bigramLogProbs[slot] = Math.log(interpolatedProb(unigramProbs[id], bigramTable.probAt(slot)));
+    		}
     	}
-    	// Remove zero count unigrams from map
-    	for (String token : zeroTokens) 
-    		unigramMap.remove(token);
+    	logLambda1 = lambda1;
+    	logLambda2 = lambda2;
+    	logBigramCount = bigramTable.size();
+    }
+
+    /** Can sentences be scored from the stored log probs: the mode is on
+     *  and neither the lambdas nor the bigram table have changed since
+     *  they were computed. Otherwise scoring falls back to Math.log */
+    protected boolean useLogProbs() {
+    	return logSpaceScoring && bigramLogProbs != null && lambda1 == logLambda1 && lambda2 == logLambda2
+    		&& bigramLogProbs.length == bigramTable.capacity() && logBigramCount == bigramTable.size();
+    }
+
+    /** Return the stored log of tokenProb(prevId, id); only valid when
+     *  useLogProbs() */
+    protected double storedLogProb (int prevId, int id) {
+    	int slot = bigramTable.find(prevId, id);
+    	return slot < 0 ? backoffLogProbs[id] : bigramLogProbs[slot];
+    }
+
+    /** Return the ID used to score token: its own ID if it was counted
+     *  in training, otherwise the ID of <UNK> */
+    public int tokenId (String token) {
+    	return scoringId(vocabularyId(token));
+    }
+
+    /** Return the scoring ID of each token of sentence, which together
+     *  with scoringState determine the scores of the sentence */
+    public int[] tokenIds (List<String> sentence) {
+    	int[] ids = new int[sentence.size()];
+    	int i = 0;
+    	for (String token : sentence)
+    		ids[i++] = tokenId(token);
+    	return ids;
+    }
+
+    /** Return the values the scores of a sentence depend on besides the
+     *  IDs of its tokens, which a ScoreCache checks before using its scores:
+     *  the interpolation weights and probsVersion */
+    protected double[] scoringState () {
+    	return new double[] {lambda1, lambda2, probsVersion};
+    }
+
+    /** Return the ID token was interned with, or -1 if it was never seen */
+    public int vocabularyId (String token) {
+    	return vocabulary.id(token);
+    }
+
+    /** Return the ID used to score the token with vocabulary ID id, which
+     *  is <UNK> for tokens never seen (-1) or seen but not counted */
+    public int scoringId (int id) {
+    	if (id < 0 || unigramCounts[id] == 0)
+    		return UNK_ID;
+    	return id;
+    }
+
+    /** Was token counted in training, so that it is not scored as <UNK> */
+    public boolean inVocabulary (String token) {
+    	int id = vocabularyId(token);
+    	return id >= 0 && scoringId(id) == id;
+    }
+
+    /** Return the number of tokens in the vocabulary */
+    public int vocabularySize () {
+    	return vocabulary.size();
+    }
+
+    /** Return the token with vocabulary ID id */
+    public String token (int id) {
+    	return vocabulary.token(id);
+    }
+
+    /** Return the interpolated prob of predicting token ID id after prevId */
+    public double tokenProb (int prevId, int id) {
+    	return tokenProb(prevId, id, bigramProb(prevId, id));
+    }
+
+    /** Return tokenProb(prevId, id) given bigramProb(prevId, id), which
+     *  sentence scoring looks up first to count bigram misses */
+    protected double tokenProb (int prevId, int id, double bigramProb) {
+    	return interpolatedProb(unigramProb(id), bigramProb);
+    }
+
+    /** Return the weight of the unigram prob of a token never seen after
+     *  prevId, so that its tokenProb is this times its unigramProb */
+    protected double backoffWeight (int prevId) {
+    	return interpolatedProb(1, 0);
+    }
+
+    /** Return the unigram prob of token ID id */
+    public double unigramProb (int id) {
+    	return unigramProbs[id];
+    }
+
+    /** Return P(id | prevId), 0 if the bigram was never seen */
+    public double bigramProb (int prevId, int id) {
+    	return bigramTable.prob(prevId, id);
+    }
+
+    /** Return the number of distinct bigrams */
+    public int bigramCount () {
+    	return bigramTable.size();
+    }
+
+    /** Return an estimate of the heap bytes taken by the vocabulary, counts
+     *  and probs of the model */
+    public long estimatedHeapBytes () {
+    	long bytes = 0;
+    	if (vocabulary != null)
+    		bytes += vocabulary.estimatedBytes();
+    	if (bigramTable != null)
+    		bytes += bigramTable.estimatedBytes();
+    	return bytes + arrayBytes(unigramCounts) + arrayBytes(unigramProbs)
+    		+ arrayBytes(backoffLogProbs) + arrayBytes(bigramLogProbs);
+    }
+
+    /** Bytes of a double array, 0 for null */
+    protected static long arrayBytes (double[] array) {
+    	return array == null ? 0 : 16 + 8L * array.length;
+    }
+
+    /** Return the k most likely tokens to follow token, most likely first.
+     *  A backward model predicts preceding tokens with predictPrevious */
+    public List<Prediction> predictNext (String token, int k) {
+    	return successorIndex().predict(tokenId(token), k);
+    }
+
+    /** Return the successor index, building it if there is none yet or the
+     *  probs or lambdas changed since it was built */
+    protected SuccessorIndex successorIndex () {
+    	SuccessorIndex index = successorIndex;
+    	if (index == null || !index.isCurrent()) {
+    		index = newSuccessorIndex();
+    		successorIndex = index;
+    	}
+    	return index;
+    }
+
+    /** Build a successor index over the bigrams of successorTable */
+    protected SuccessorIndex newSuccessorIndex () {
+    	return new SuccessorIndex(this, successorTable());
+    }
+
+    /** Return the bigrams to index for prediction, in the model's order */
+    protected BigramTable successorTable () {
+    	return bigramTable;
     }
 
     /** Return bigram string as two tokens separated by a newline */
@@ -181,6 +444,7 @@ public class BigramModel {
     /** Use sentences as a test set to evaluate the model. Print out perplexity
      *  of the model for this test data */
     public void test (List<List<String>> sentences) {
+    	long start = System.nanoTime();
     	// Compute log probability of sentence to avoid underflow
     	double totalLogProb = 0;
     	// Keep count of total number of tokens predicted
@@ -195,6 +459,7 @@ public class BigramModel {
     		// Add to total log prob (since add logs to multiply probs)
     		totalLogProb += sentenceLogProb;
     	}
+    	Metrics.global().score.record(start, (long) totalNumTokens);
     	// Given log prob compute perplexity
     	double perplexity = Math.exp(-totalLogProb / totalNumTokens);
     	System.out.println("Perplexity = " + perplexity );
@@ -202,42 +467,94 @@ public class BigramModel {
     
     /* Compute log probability of sentence given current model */
     public double sentenceLogProb (List<String> sentence) {
+    	return sentenceLogProb(sentence, true, null);
+    }
+
+    /** Return the log prob of sentence, with the prediction of </S> if
+     *  includeEnd, and record its predictions, <UNK> tokens and bigrams
+     *  never seen in the metrics. sentenceLogProb, sentenceLogProb2 and
+     *  evaluate all score through here, so a subclass that scores
+     *  differently overrides this. If oovCount is not null the number of
+     *  sentence tokens scored as <UNK> is added to oovCount[0] */
+    protected double sentenceLogProb (List<String> sentence, boolean includeEnd, long[] oovCount) {
+    	boolean logSpace = useLogProbs();
     	// Set start-sentence as initial token
-    	String prevToken = "<S>";
+    	int prevId = START_ID;
     	// Maintain total sentence prob as sum of individual token
     	// log probs (since adding logs is same as multiplying probs)
     	double sentenceLogProb = 0;
-    	// Check prediction of each token in sentence
-    	for (String token : sentence) {
-    		// Retrieve unigram prob
-    		DoubleValue unigramVal = unigramMap.get(token);
-    		if (unigramVal == null) {
+    	// Count <UNK> tokens and bigrams never seen for the metrics
+    	int oov = 0, misses = 0;
+    	// Check prediction of each token in sentence, then of end of sentence
+    	int numPredictions = sentence.size() + (includeEnd ? 1 : 0);
+    	Iterator<String> tokens = sentence.iterator();
+    	for (int i = 0; i < numPredictions; i++) {
+    		int id = END_ID;
+    		if (tokens.hasNext()) {
     			// If token not in unigram model, treat as <UNK> token
-    			token = "<UNK>";
-    			unigramVal = unigramMap.get(token);
+    			id = tokenId(tokens.next());
+    			if (id == UNK_ID)
+    				oov++;
     		}
-    		// Get bigram prob
-    		String bigram = bigram(prevToken, token);
-    		DoubleValue bigramVal = bigramMap.get(bigram);
     		// Compute log prob of token using interpolated prob of unigram and bigram
-    		double logProb = Math.log(interpolatedProb(unigramVal, bigramVal));
+    		double logProb;
+    		if (logSpace) {
+    			int slot = bigramTable.find(prevId, id);
+    			if (slot < 0)
+    				misses++;
+    			logProb = slot < 0 ? backoffLogProbs[id] : bigramLogProbs[slot];
+    		}
+    		else {
+    			double bigramProb = bigramProb(prevId, id);
+    			if (bigramProb == 0)
+    				misses++;
+    			logProb = Math.log(tokenProb(prevId, id, bigramProb));
+    		}
     		// Add token log prob to sentence log prob
     		sentenceLogProb += logProb;
     		// update previous token and move to next token
-    		prevToken = token;
+    		prevId = id;
     	}
-    	// Check prediction of end of sentence token
-    	DoubleValue unigramVal = unigramMap.get("</S>");
-    	String bigram = bigram(prevToken, "</S>");
-    	DoubleValue bigramVal = bigramMap.get(bigram);
-    	double logProb = Math.log(interpolatedProb(unigramVal, bigramVal));
-    	// Update sentence log prob based on prediction of </S>
-    	sentenceLogProb += logProb;
+    	Metrics.global().recordPredictions(numPredictions, oov, misses);
+    	if (oovCount != null)
+    		oovCount[0] += oov;
     	return sentenceLogProb;
     }
 
+    /** Return candidates ranked by sentenceLogProb, most probable first,
+     *  sharing the work of scoring their common prefixes. If withTokenProbs
+     *  then each also gets its sentenceTokenProbs */
+    public List<ScoredSentence> rescore (List<List<String>> candidates, boolean withTokenProbs) {
+    	return NbestRescorer.rescore(this, candidates, withTokenProbs);
+    }
+
+    /** Rank each of batches as with rescore, on testThreads threads */
+    public List<List<ScoredSentence>> rescoreBatches (List<List<List<String>>> batches, boolean withTokenProbs) {
+    	return NbestRescorer.rescore(this, batches, withTokenProbs, testThreads);
+    }
+
+    /** Does sentenceLogProb score trainingSequence(sentence) left to right
+     *  with tokenProb, so that NbestRescorer can share prefixes */
+    protected boolean scoresPrefixes () {
+    	return true;
+    }
+
+    /** Use sentences as a test set and return the perplexity of the model
+     *  on them, scoring sentences in parallel on testThreads threads.
+     *  If includeEnd then end-of-sentence predictions are counted, as in
+     *  test, otherwise they are excluded, as in test2 */
+    public EvaluationResult evaluate (List<List<String>> sentences, boolean includeEnd) {
+    	return evaluate(sentences, includeEnd, testThreads);
+    }
+
+    /** Like evaluate but scores on the given number of threads */
+    public EvaluationResult evaluate (List<List<String>> sentences, boolean includeEnd, int threads) {
+    	return BatchEvaluator.evaluate(this, sentences, includeEnd, threads);
+    }
+
     /** Like test1 but excludes predicting end-of-sentence when computing perplexity */
     public void test2 (List<List<String>> sentences) {
+	long start = System.nanoTime();
 	double totalLogProb = 0;
 	double totalNumTokens = 0;
 	for (List<String> sentence : sentences) {
@@ -246,58 +563,35 @@ public class BigramModel {
 	    //	    System.out.println(sentenceLogProb + " : " + sentence);
 	    totalLogProb += sentenceLogProb;
 	}
+	Metrics.global().score.record(start, (long) totalNumTokens);
 	double perplexity = Math.exp(-totalLogProb / totalNumTokens);
 	System.out.println("Word Perplexity = " + perplexity );
     }
     
     /** Like sentenceLogProb but excludes predicting end-of-sentence when computing prob */
     public double sentenceLogProb2 (List<String> sentence) {
-    	String prevToken = "<S>";
-    	double sentenceLogProb = 0;
-    	for (String token : sentence) {
-    		DoubleValue unigramVal = unigramMap.get(token);
-    		if (unigramVal == null) {
-    			token = "<UNK>";
-    			unigramVal = unigramMap.get(token);
-    		}
-    		String bigram = bigram(prevToken, token);
-    		DoubleValue bigramVal = bigramMap.get(bigram);
-    		double logProb = Math.log(interpolatedProb(unigramVal, bigramVal));
-    		sentenceLogProb += logProb;
-    		prevToken = token;
-    	}
-    	return sentenceLogProb;
+    	return sentenceLogProb(sentence, false, null);
     }
 
     /** Returns vector of probabilities of predicting each token in the sentence
      *  including the end of sentence */
     public double[] sentenceTokenProbs (List<String> sentence) {
 		// Set start-sentence as initial token
-		String prevToken = "<S>";
+		int prevId = START_ID;
 		// Vector for storing token prediction probs
 		double[] tokenProbs = new double[sentence.size() + 1];
 		// Token counter
 		int i = 0;
 		// Compute prob of predicting each token in sentence
 		for (String token : sentence) {
-		    DoubleValue unigramVal = unigramMap.get(token);
-		    if (unigramVal == null) {
-			token = "<UNK>";
-			unigramVal = unigramMap.get(token);
-		    }
-		    String bigram = bigram(prevToken, token);
-		    DoubleValue bigramVal = bigramMap.get(bigram);
+		    int id = tokenId(token);
 		    // Store prediction prob for i'th token
-		    tokenProbs[i] = interpolatedProb(unigramVal, bigramVal);
-		    prevToken = token;
+		    tokenProbs[i] = tokenProb(prevId, id);
+		    prevId = id;
 		    i++;
 		}
-		// Check prediction of end of sentence
-		DoubleValue unigramVal = unigramMap.get("</S>");
-		String bigram = bigram(prevToken, "</S>");
-		DoubleValue bigramVal = bigramMap.get(bigram);
 		// Store end of sentence prediction prob
-		tokenProbs[i] = interpolatedProb(unigramVal, bigramVal);
+		tokenProbs[i] = tokenProb(prevId, END_ID);
 		return tokenProbs;
     }
 
@@ -307,8 +601,13 @@ public class BigramModel {
     	// In bigram unknown then its prob is zero
     	if (bigramVal != null)
     		bigramProb = bigramVal.getValue();
+    	return interpolatedProb(unigramVal.getValue(), bigramProb);
+    }
+
+    /** Interpolate bigram prob using bigram and unigram model predictions */	 
+    public double interpolatedProb(double unigramProb, double bigramProb) {
     	// Linearly combine weighted unigram and bigram probs
-    	return lambda1 * unigramVal.getValue() + lambda2 * bigramProb;
+    	return lambda1 * unigramProb + lambda2 * bigramProb;
     }
 
     public static int wordCount (List<List<String>> sentences) {
@@ -319,6 +618,160 @@ public class BigramModel {
 	return wordCount;
     }
 
+    /** A DoubleValue that reads and writes a slot of one of the model's
+     *  primitive arrays, so the map views behave like the old maps */
+    protected abstract static class SlotValue extends DoubleValue {
+    	protected abstract double get();
+    	protected abstract void set(double value);
+    	public double increment() { set(get() + 1); return get(); }
+    	public double increment(int n) { set(get() + n); return get(); }
+    	public double increment(double n) { set(get() + n); return get(); }
+    	public double decrement() { set(get() - 1); return get(); }
+    	public double decrement(int n) { set(get() - n); return get(); }
+    	public double decrement(double n) { set(get() - n); return get(); }
+    	public double getValue() { return get(); }
+    	public double setValue(int value) { set(value); return value; }
+    	public double setValue(double value) { set(value); return value; }
+    }
+
+    /** Unigram count, or prob once calculateProbs has run, of a token ID */
+    protected class UnigramValue extends SlotValue {
+    	protected final int id;
+    	protected UnigramValue(int id) { this.id = id; }
+    	protected double get() {
+    		return probsCalculated ? unigramProbs[id] : unigramCounts[id];
+    	}
+    	protected void set(double value) {
+    		if (probsCalculated)
+    			unigramProbs[id] = value;
+    		else
+    			unigramCounts[id] = value;
+    	}
+    }
+
+    /** Bigram count, or prob once calculateProbs has run, of a pair of
+     *  token IDs. Looks its slot up on every access since slots move
+     *  when the table grows */
+    protected class BigramValue extends SlotValue {
+    	protected final int prevId, id;
+    	protected BigramValue(int prevId, int id) { this.prevId = prevId; this.id = id; }
+    	protected double get() {
+    		int slot = bigramTable.find(prevId, id);
+    		return probsCalculated ? bigramTable.probAt(slot) : bigramTable.countAt(slot);
+    	}
+    	protected void set(double value) {
+    		int slot = bigramTable.find(prevId, id);
+    		if (probsCalculated)
+    			bigramTable.setProbAt(slot, value);
+    		else
+    			bigramTable.setCountAt(slot, value);
+    	}
+    }
+
+    /** Map view of the unigram arrays. Once probs are calculated tokens
+     *  with zero count are hidden, as they used to be removed. Values can
+     *  be changed through the view but entries cannot be added or removed */
+    protected class UnigramView extends AbstractMap<String, DoubleValue> {
+    	protected boolean visible(int id) {
+    		return !probsCalculated || unigramCounts[id] != 0;
+    	}
+    	public DoubleValue get(Object key) {
+    		if (!(key instanceof String))
+    			return null;
+    		int id = vocabulary.id((String) key);
+    		if (id < 0 || !visible(id))
+    			return null;
+    		return new UnigramValue(id);
+    	}
+    	public boolean containsKey(Object key) {
+    		return get(key) != null;
+    	}
+    	public Set<Map.Entry<String, DoubleValue>> entrySet() {
+    		return new AbstractSet<Map.Entry<String, DoubleValue>>() {
+    			public int size() {
+    				int size = 0;
+    				for (int id = 0; id < vocabulary.size(); id++)
+    					if (visible(id))
+    						size++;
+    				return size;
+    			}
+    			public Iterator<Map.Entry<String, DoubleValue>> iterator() {
+    				return new Iterator<Map.Entry<String, DoubleValue>>() {
+    					int next = advance(0);
+    					int advance(int id) {
+    						while (id < vocabulary.size() && !visible(id))
+    							id++;
+    						return id;
+    					}
+    					public boolean hasNext() {
+    						return next < vocabulary.size();
+    					}
+    					public Map.Entry<String, DoubleValue> next() {
+    						if (!hasNext())
+    							throw new NoSuchElementException();
+    						int id = next;
+    						next = advance(id + 1);
+    						return new AbstractMap.SimpleImmutableEntry<String, DoubleValue>(
+    								vocabulary.token(id), new UnigramValue(id));
+    					}
+    				};
+    			}
+    		};
+    	}
+    }
+
+    /** Map view of the bigram table keyed by "A\nB" strings. Values can
+     *  be changed through the view but entries cannot be added or removed */
+    protected class BigramView extends AbstractMap<String, DoubleValue> {
+    	public DoubleValue get(Object key) {
+    		if (!(key instanceof String) || ((String) key).indexOf('\n') < 0)
+    			return null;
+    		String bigram = (String) key;
+    		int prevId = vocabulary.id(bigramToken1(bigram));
+    		int id = vocabulary.id(bigramToken2(bigram));
+    		if (prevId < 0 || id < 0 || bigramTable.find(prevId, id) < 0)
+    			return null;
+    		return new BigramValue(prevId, id);
+    	}
+    	public boolean containsKey(Object key) {
+    		return get(key) != null;
+    	}
+    	public int size() {
+    		return bigramTable.size();
+    	}
+    	public Set<Map.Entry<String, DoubleValue>> entrySet() {
+    		return new AbstractSet<Map.Entry<String, DoubleValue>>() {
+    			public int size() {
+    				return bigramTable.size();
+    			}
+    			public Iterator<Map.Entry<String, DoubleValue>> iterator() {
+    				return new Iterator<Map.Entry<String, DoubleValue>>() {
+    					int next = advance(0);
+    					int advance(int slot) {
+    						while (slot < bigramTable.capacity() && !bigramTable.isOccupied(slot))
+    							slot++;
+    						return slot;
+    					}
+    					public boolean hasNext() {
+    						return next < bigramTable.capacity();
+    					}
+    					public Map.Entry<String, DoubleValue> next() {
+    						if (!hasNext())
+    							throw new NoSuchElementException();
+    						long key = bigramTable.keyAt(next);
+    						next = advance(next + 1);
+    						int prevId = BigramTable.prevId(key);
+    						int id = BigramTable.id(key);
+    						return new AbstractMap.SimpleImmutableEntry<String, DoubleValue>(
+    								bigram(vocabulary.token(prevId), vocabulary.token(id)),
+    								new BigramValue(prevId, id));
+    					}
+    				};
+    			}
+    		};
+    	}
+    }
+
     /** Train and test a bigram model.
      *  Command format: "nlp.lm.BigramModel [DIR]* [TestFrac]" where DIR 
      *  is the name of a file or directory whose LDC POS Tagged files should be 
@@ -0,0 +1,232 @@
+package nlp.lm;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash table from a bigram of token IDs (A, B) to its count
+ * and to the conditional probability P(B | A). The two IDs are packed into
+ * a single long key (A << 32 | B) and counts and probabilities live in
+ * parallel primitive arrays, so no object is allocated per bigram.
+ */
+
+public class BigramTable {
+
+    /** Marks an empty slot; can never be a key since IDs are non-negative */
+    protected static final long EMPTY = -1L;
+
+    /** Packed bigram key in each slot */
+    protected long[] keys;
+
+    /** Bigram count in each slot */
+    protected double[] counts;
+
+    /** Conditional probability in each slot, set by the owning model */
+    protected double[] probs;
+
+    /** Number of bigrams stored */
+    protected int size = 0;
+
+    /** Shift turning a 64 bit hash into a slot index */
+    protected int shift;
+
+    /** Create an empty table */
+    public BigramTable() {
+	this(1024);
+    }
+
+    /** Create an empty table sized to hold about expectedSize bigrams
+     *  before it needs to grow */
+    public BigramTable(int expectedSize) {
+	int capacity = 16;
+	while (capacity < 2 * expectedSize)
+	    capacity *= 2;
+	allocate(capacity);
+    }
+
+    /** Pack a bigram of IDs into a single key */
+    public static long key(int prevId, int id) {
+	return ((long) prevId << 32) | (id & 0xFFFFFFFFL);
+    }
+
+    /** Return the first ID of a packed bigram key */
+    public static int prevId(long key) {
+	return (int) (key >>> 32);
+    }
+
+    /** Return the second ID of a packed bigram key */
+    public static int id(long key) {
+	return (int) key;
+    }
+
+    /** Return the number of bigrams stored */
+    public int size() {
+	return size;
+    }
+
+    /** Return the number of slots, for iterating with isOccupied */
+    public int capacity() {
+	return keys.length;
+    }
+
+    /** Return the slot holding this bigram, or -1 if it is not stored */
+    public int find(int prevId, int id) {
+	long key = key(prevId, id);
+	int mask = keys.length - 1;
+	for (int slot = slot(key); ; slot = (slot + 1) & mask) {
+	    long k = keys[slot];
+	    if (k == key)
+		return slot;
+	    if (k == EMPTY)
+		return -1;
+	}
+    }
+
+    /** Return the slot holding this bigram, adding it with a zero count
+     *  if it is not stored yet */
+    public int findOrInsert(int prevId, int id) {
+	long key = key(prevId, id);
+	int mask = keys.length - 1;
+	int slot = slot(key);
+	for ( ; ; slot = (slot + 1) & mask) {
+	    long k = keys[slot];
+	    if (k == key)
+		return slot;
+	    if (k == EMPTY)
+		break;
+	}
+	// Keep the table at most half full so probe chains stay short
+	if (2 * (size + 1) > keys.length) {
+	    rehash(keys.length * 2);
+	    for (slot = slot(key); keys[slot] != EMPTY; slot = (slot + 1) & (keys.length - 1))
+		;
+	}
+	keys[slot] = key;
+	size++;
+	return slot;
+    }
+
+    /** Count one more occurrence of the bigram and return the new count */
+    public double increment(int prevId, int id) {
+	// Find the slot first, since inserting can replace the counts array
+	int slot = findOrInsert(prevId, id);
+	return ++counts[slot];
+    }
+
+    /** Add n to the count of the bigram and return the new count */
+    public double increment(int prevId, int id, double n) {
+	int slot = findOrInsert(prevId, id);
+	counts[slot] += n;
+	return counts[slot];
+    }
+
+    /** Add the counts of every bigram in other to the counts in this table */
+    public void addCounts(BigramTable other) {
+	// Grow to the final size first. Inserting other's slots in order into
+	// a smaller table with the same hash would build long probe runs
+	ensureCapacity(size + other.size);
+	for (int slot = 0; slot < other.keys.length; slot++) {
+	    long key = other.keys[slot];
+	    if (key != EMPTY)
+		increment(prevId(key), id(key), other.counts[slot]);
+	}
+    }
+
+    /** Grow the table, if needed, so that it holds expectedSize bigrams
+     *  without growing again */
+    public void ensureCapacity(int expectedSize) {
+	int capacity = keys.length;
+	while (capacity < 2 * expectedSize)
+	    capacity *= 2;
+	if (capacity > keys.length)
+	    rehash(capacity);
+    }
+
+    /** Return the count of the bigram, 0 if it is not stored */
+    public double count(int prevId, int id) {
+	int slot = find(prevId, id);
+	return slot < 0 ? 0 : counts[slot];
+    }
+
+    /** Return the probability of the bigram, 0 if it is not stored */
+    public double prob(int prevId, int id) {
+	int slot = find(prevId, id);
+	return slot < 0 ? 0 : probs[slot];
+    }
+
+    /** Is there a bigram stored in this slot */
+    public boolean isOccupied(int slot) {
+	return keys[slot] != EMPTY;
+    }
+
+    /** Return the packed key in an occupied slot */
+    public long keyAt(int slot) {
+	return keys[slot];
+    }
+
+    /** Return the count in an occupied slot */
+    public double countAt(int slot) {
+	return counts[slot];
+    }
+
+    /** Set the count in an occupied slot */
+    public void setCountAt(int slot, double count) {
+	counts[slot] = count;
+    }
+
+    /** Remove every bigram, keeping the capacity */
+    public void clear() {
+	Arrays.fill(keys, EMPTY);
+	Arrays.fill(counts, 0);
+	Arrays.fill(probs, 0);
+	size = 0;
+    }
+
+    /** Return the heap bytes taken by the key, count and prob arrays */
+    public long estimatedBytes() {
+	return 48 + 24L * keys.length;
+    }
+
+    /** Return the probability in an occupied slot */
+    public double probAt(int slot) {
+	return probs[slot];
+    }
+
+    /** Set the probability in an occupied slot */
+    public void setProbAt(int slot, double prob) {
+	probs[slot] = prob;
+    }
+
+    /** Fibonacci hash of a packed key to a slot index */
+    protected int slot(long key) {
+	return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+    }
+
+    /** Allocate empty arrays with the given power of two capacity */
+    protected void allocate(int capacity) {
+	keys = new long[capacity];
+	Arrays.fill(keys, EMPTY);
+	counts = new double[capacity];
+	probs = new double[capacity];
+	shift = 64 - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    /** Move all bigrams into freshly allocated arrays of a new capacity */
+    protected void rehash(int capacity) {
+	long[] oldKeys = keys;
+	double[] oldCounts = counts;
+	double[] oldProbs = probs;
+	allocate(capacity);
+	int mask = capacity - 1;
+	for (int i = 0; i < oldKeys.length; i++) {
+	    long key = oldKeys[i];
+	    if (key == EMPTY)
+		continue;
+	    int slot = slot(key);
+	    while (keys[slot] != EMPTY)
+		slot = (slot + 1) & mask;
+	    keys[slot] = key;
+	    counts[slot] = oldCounts[i];
+	    probs[slot] = oldProbs[i];
+	}
+    }
+}
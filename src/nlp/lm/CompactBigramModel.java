@@ -0,0 +1,339 @@
+package nlp.lm;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A read-only, compacted copy of a trained bigram model for fitting models
+ * into little memory. Bigrams that were seen at most countCutoff times and
+ * whose weighted contribution to the model,
+ *   P(A, B) * log(P(B | A) / P'(B | A))
+ * where P' is the interpolated prob without the bigram, falls below
+ * entropyThreshold are pruned, so that their prediction falls back to the
+ * unigram. The remaining P(B | A) are stored as 8 or 16 bit codes into a
+ * codebook of log probabilities, with the bigrams laid out in rows sorted
+ * by ID as in a ModelFile block. A bigram then costs 5 or 6 bytes instead
+ * of the 48 or more of a BigramTable slot.
+ *
+ * The vocabulary and unigram probabilities are shared with the model that
+ * was compacted. Pruned probabilities are not renormalized, so compare
+ * perplexities with evaluate before choosing the cutoffs; main reports the
+ * loss next to the memory saved.
+ */
+
+public class CompactBigramModel extends BigramModel implements SuccessorIndex.Rows {
+
+    /** Whether the compacted model was a backward model, in which case
+     *  sentences are reversed before they are scored */
+    protected final boolean backward;
+
+    /** Start of each token's row in ids and codes, indexed by first ID */
+    protected final int[] rowStarts;
+
+    /** Second token of each bigram, sorted within each row */
+    protected final int[] ids;
+
+    /** Codebook index of P(second | first) of each bigram, when 8 bit codes
+     *  are used, otherwise null */
+    protected final byte[] byteCodes;
+
+    /** Codebook index of each bigram when 16 bit codes are used */
+    protected final short[] shortCodes;
+
+    /** Probability each code stands for */
+    protected final double[] codebook;
+
+    /** Compact a trained forward or backward model, keeping bigrams seen
+     *  more than countCutoff times or contributing at least entropyThreshold,
+     *  and quantizing their probs to bits (8 or 16) bits */
+    public CompactBigramModel(BigramModel model, double countCutoff, double entropyThreshold, int bits) {
+	super(compactable(model).vocabulary, model.unigramCounts, null);
+	if (bits != 8 && bits != 16)
+	    throw new IllegalArgumentException("Codes must have 8 or 16 bits: " + bits);
+	backward = model instanceof BackwardBigramModel;
+	unigramProbs = model.unigramProbs;
+	tokenCount = model.tokenCount;
+	lambda1 = model.lambda1;
+	lambda2 = model.lambda2;
+	probsCalculated = true;
+	// Keep the bigrams that survive pruning, sorted by first then second ID
+	BigramTable table = model.bigramTable;
+	long[] keys = new long[table.size()];
+	int numBigrams = 0;
+	for (int slot = 0; slot < table.capacity(); slot++) {
+	    if (table.isOccupied(slot) && !pruned(model, slot, countCutoff, entropyThreshold))
+		keys[numBigrams++] = table.keyAt(slot);
+	}
+	keys = Arrays.copyOf(keys, numBigrams);
+	Arrays.sort(keys);
+	double[] logProbs = new double[numBigrams];
+	for (int i = 0; i < numBigrams; i++)
+	    logProbs[i] = Math.log(table.prob(BigramTable.prevId(keys[i]), BigramTable.id(keys[i])));
+	double[] centroids = centroids(logProbs, 1 << bits);
+	codebook = new double[centroids.length];
+	for (int code = 0; code < centroids.length; code++)
+	    codebook[code] = Math.exp(centroids[code]);
+	// Lay out the rows and encode each prob as its nearest centroid
+	int numTokens = vocabulary.size();
+	rowStarts = new int[numTokens + 1];
+	ids = new int[numBigrams];
+	byteCodes = bits == 8 ? new byte[numBigrams] : null;
+	shortCodes = bits == 16 ? new short[numBigrams] : null;
+	int bigram = 0;
+	for (int id = 0; id <= numTokens; id++) {
+	    while (bigram < numBigrams && BigramTable.prevId(keys[bigram]) < id)
+		bigram++;
+	    rowStarts[id] = bigram;
+	}
+	for (int i = 0; i < numBigrams; i++) {
+	    ids[i] = BigramTable.id(keys[i]);
+	    int code = nearest(centroids, logProbs[i]);
+	    if (byteCodes != null)
+		byteCodes[i] = (byte) code;
+	    else
+		shortCodes[i] = (short) code;
+	}
+    }
+
+    /** Is the bigram in slot rare enough and predicted well enough by the
+     *  unigram alone to be dropped */
+    protected static boolean pruned(BigramModel model, int slot, double countCutoff, double entropyThreshold) {
+	BigramTable table = model.bigramTable;
+	double count = table.countAt(slot);
+	if (count > countCutoff)
+	    return false;
+	int id = BigramTable.id(table.keyAt(slot));
+	double unigramProb = model.interpolatedProb(model.unigramProbs[id], 0);
+	double fullProb = model.interpolatedProb(model.unigramProbs[id], table.probAt(slot));
+	double contribution = count / model.tokenCount * Math.log(fullProb / unigramProb);
+	return contribution < entropyThreshold;
+    }
+
+    /** Return at most size sorted centroids for values: the distinct values
+     *  themselves if there are few enough, otherwise the mean of each of
+     *  size bins holding equal numbers of the sorted values */
+    protected static double[] centroids(double[] values, int size) {
+	double[] sorted = values.clone();
+	Arrays.sort(sorted);
+	int distinct = 0;
+	for (int i = 0; i < sorted.length; i++) {
+	    if (i == 0 || sorted[i] != sorted[i - 1])
+		sorted[distinct++] = sorted[i];
+	}
+	if (distinct <= size)
+	    return Arrays.copyOf(sorted, Math.max(1, distinct));
+	sorted = values.clone();
+	Arrays.sort(sorted);
+	double[] centroids = new double[size];
+	for (int bin = 0; bin < size; bin++) {
+	    int start = (int) ((long) bin * sorted.length / size);
+	    int end = (int) ((long) (bin + 1) * sorted.length / size);
+	    double sum = 0;
+	    for (int i = start; i < end; i++)
+		sum += sorted[i];
+	    centroids[bin] = sum / (end - start);
+	}
+	return centroids;
+    }
+
+    /** Index of the centroid nearest to value in sorted centroids */
+    protected static int nearest(double[] centroids, double value) {
+	int i = Arrays.binarySearch(centroids, value);
+	if (i >= 0)
+	    return i;
+	i = -i - 1;
+	if (i == 0)
+	    return 0;
+	if (i == centroids.length)
+	    return centroids.length - 1;
+	return value - centroids[i - 1] <= centroids[i] - value ? i - 1 : i;
+    }
+
+    /** Return model if it is a trained, linearly interpolated bigram model
+     *  that can be compacted, and throw otherwise */
+    protected static BigramModel compactable(BigramModel model) {
+	if (model instanceof CompactBigramModel)
+	    throw new IllegalArgumentException("Model is already compacted");
+	if (model instanceof MappedBigramModel)
+	    throw new IllegalArgumentException("A model backed by a model file holds no bigram table to compact");
+	if (model instanceof IncrementalBigramModel || model instanceof IncrementalBigramModel.Snapshot)
+	    throw new IllegalArgumentException("An incremental model's bigram counts are not in one table");
+	if (!model.probsCalculated)
+	    throw new IllegalStateException("Model must be trained before it is compacted");
+	if (model instanceof NgramModel && ((NgramModel) model).order > 2)
+	    throw new IllegalArgumentException("Only bigram models can be compacted");
+	if (model instanceof KneserNeyBigramModel)
+	    throw new IllegalArgumentException("Only linearly interpolated models can be compacted");
+	return model;
+    }
+
+    /** Compact any trained model, including both halves of a bidirectional one */
+    public static BigramModel compact(BigramModel model, double countCutoff, double entropyThreshold, int bits) {
+	if (model instanceof BidirectionalBigramModel) {
+	    BidirectionalBigramModel bidirectional = (BidirectionalBigramModel) model;
+	    BidirectionalBigramModel compacted = new BidirectionalBigramModel(
+		compact(bidirectional.bigramModel, countCutoff, entropyThreshold, bits),
+		compact(bidirectional.backwardBigramModel, countCutoff, entropyThreshold, bits));
+	    compacted.forwardWeight = bidirectional.forwardWeight;
+	    compacted.backwardWeight = bidirectional.backwardWeight;
+	    return compacted;
+	}
+	if (model instanceof SharedBackwardBigramModel)
+	    model = ((SharedBackwardBigramModel) model).toBackwardBigramModel();
+	return new CompactBigramModel(model, countCutoff, entropyThreshold, bits);
+    }
+
+    /** Return the number of bigrams kept */
+    @Override
+    public int bigramCount() {
+	return ids.length;
+    }
+
+    /** The vocabulary and unigrams are shared with the compacted model */
+    @Override
+    public long estimatedHeapBytes () {
+	return super.estimatedHeapBytes() + bigramBytes(this);
+    }
+
+    /** Return the number of bytes taken by the bigrams of a model, the
+     *  only part compaction shrinks */
+    public static long bigramBytes(BigramModel model) {
+	if (model instanceof CompactBigramModel) {
+	    CompactBigramModel compact = (CompactBigramModel) model;
+	    int codeBytes = compact.byteCodes != null ? 1 : 2;
+	    return 4L * compact.rowStarts.length + (4L + codeBytes) * compact.ids.length
+		+ 8L * compact.codebook.length;
+	}
+	if (model instanceof BidirectionalBigramModel) {
+	    BidirectionalBigramModel bidirectional = (BidirectionalBigramModel) model;
+	    return bigramBytes(bidirectional.bigramModel) + bigramBytes(bidirectional.backwardBigramModel);
+	}
+	if (model instanceof SharedBackwardBigramModel)
+	    return 0;
+	return model.bigramTable.estimatedBytes();
+    }
+
+    /** Return P(id | prevId) by binary search of prevId's row, 0 if the
+     *  bigram was never seen or was pruned */
+    @Override
+    public double bigramProb (int prevId, int id) {
+	int lo = rowStarts[prevId];
+	int hi = rowStarts[prevId + 1] - 1;
+	while (lo <= hi) {
+	    int mid = (lo + hi) >>> 1;
+	    if (ids[mid] < id)
+		lo = mid + 1;
+	    else if (ids[mid] > id)
+		hi = mid - 1;
+	    else
+		return codebook[byteCodes != null ? byteCodes[mid] & 0xFF : shortCodes[mid] & 0xFFFF];
+	}
+	return 0;
+    }
+
+    @Override
+    protected List<String> trainingSequence (List<String> sentence) {
+	if (!backward)
+	    return sentence;
+	ArrayList<String> reverseSentence = new ArrayList<String>(sentence);
+	Collections.reverse(reverseSentence);
+	return reverseSentence;
+    }
+
+    @Override
+    protected double sentenceLogProb (List<String> sentence, boolean includeEnd, long[] oovCount) {
+	return super.sentenceLogProb(trainingSequence(sentence), includeEnd, oovCount);
+    }
+
+    @Override
+    public double[] sentenceTokenProbs (List<String> sentence) {
+	return super.sentenceTokenProbs(trainingSequence(sentence));
+    }
+
+    /** Return the index of the first bigram of prevId's row */
+    public int rowStart (int prevId) {
+	return rowStarts[prevId];
+    }
+
+    /** Return the second token of the bigram at index i */
+    public int rowId (int i) {
+	return ids[i];
+    }
+
+    /** Successors are indexed from the rows of bigrams kept */
+    @Override
+    protected SuccessorIndex newSuccessorIndex () {
+	return new SuccessorIndex(this, (SuccessorIndex.Rows) this);
+    }
+
+    /** A compacted backward model holds preceding tokens, so it cannot
+     *  predict following ones and returns an empty list */
+    @Override
+    public List<Prediction> predictNext (String token, int k) {
+	if (backward)
+	    return Collections.emptyList();
+	return super.predictNext(token, k);
+    }
+
+    /** A compact model is read-only */
+    @Override
+    public void trainSentence (List<String> sentence) {
+	throw new UnsupportedOperationException("A compact model cannot be trained");
+    }
+
+    /** A compact model is read-only */
+    @Override
+    public void trainSentences (List<List<String>> sentences) {
+	throw new UnsupportedOperationException("A compact model cannot be trained");
+    }
+
+    /** Probabilities are already quantized */
+    @Override
+    public void calculateProbs() {
+    }
+
+    /** Train a model, compact it and report the perplexity lost against
+     *  the memory saved.
+     *  Command format: "nlp.lm.CompactBigramModel [Model] [CountCutoff]
+     *  [EntropyThreshold] [Bits] [DIR]* [TestFrac]" where Model is BigramModel,
+     *  BackwardBigramModel or (Shared)BidirectionalBigramModel, bigrams seen
+     *  at most CountCutoff times and contributing less than EntropyThreshold
+     *  are pruned (use Infinity to prune on count alone), Bits is 8 or 16,
+     *  and DIR and TestFrac are as for BigramModel.main */
+    public static void main(String[] args) throws IOException {
+	BigramModel model;
+	try {
+	    model = (BigramModel) Class.forName("nlp.lm." + args[0]).getDeclaredConstructor().newInstance();
+	}
+	catch (ReflectiveOperationException e) {
+	    throw new IllegalArgumentException("Unknown model " + args[0], e);
+	}
+	double countCutoff = Double.parseDouble(args[1]);
+	double entropyThreshold = Double.parseDouble(args[2]);
+	int bits = Integer.parseInt(args[3]);
+	File[] files = new File[args.length - 5];
+	for (int i = 0; i < files.length; i++)
+	    files[i] = new File(args[i + 4]);
+	double testFraction = Double.valueOf(args[args.length - 1]);
+	List<List<String>> sentences = POSTaggedFile.convertToTokenLists(files);
+	int numSentences = sentences.size();
+	int numTest = (int)Math.round(numSentences * testFraction);
+	List<List<String>> testSentences = sentences.subList(numSentences - numTest, numSentences);
+	List<List<String>> trainSentences = sentences.subList(0, numSentences - numTest);
+	System.out.println("Training...");
+	model.train(trainSentences);
+	BigramModel compact = compact(model, countCutoff, entropyThreshold, bits);
+	EvaluationResult full = model.evaluate(testSentences, false);
+	EvaluationResult compacted = compact.evaluate(testSentences, false);
+	// Compare whole models as they are held, not just the bigrams
+	long fullBytes = model.estimatedHeapBytes();
+	long compactBytes = compact.estimatedHeapBytes();
+	System.out.println("Full model:    Word Perplexity = " + full.perplexity +
+			   ", heap bytes = " + fullBytes);
+	System.out.println("Compact model: Word Perplexity = " + compacted.perplexity +
+			   ", heap bytes = " + compactBytes);
+	System.out.printf("Perplexity loss = %.2f%%, memory saved = %.2f%%%n",
+			  100 * (compacted.perplexity / full.perplexity - 1),
+			  100 * (1 - (double) compactBytes / fullBytes));
+    }
+}
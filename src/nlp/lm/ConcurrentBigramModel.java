@@ -0,0 +1,228 @@
+package nlp.lm;
+
+import java.io.*;
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bigram model that many producer threads can train at once by calling
+ * trainSentence concurrently, for instance while each reads its own files.
+ *
+ * Counts are striped by thread, in the way a LongAdder keeps a cell per
+ * thread: each thread counts into a Cell of its own, holding a primitive
+ * BigramTable, unigram counts and a token count, so counting a sentence
+ * takes no shared lock and producers do not contend. A cell keeps its own
+ * map from tokens to IDs, and only a token the thread has not seen before
+ * is looked up in the shared vocabulary, under its lock. flush adds the
+ * counts of every cell to the model's tables and empties the cells; it is
+ * called by calculateProbs, so train and calculateProbs see exact totals.
+ * Until then the inherited count fields only hold what was flushed.
+ * As with BigramModel, calculateProbs and scoring are meant for after the
+ * producers have finished.
+ *
+ * The first occurrence of a token is counted as <UNK> as in BigramModel.
+ * With several producers, the first occurrence is the one whose thread
+ * interns the token in the vocabulary, which happens under the lock and so
+ * exactly once per token. Unigram counts are therefore the same as for a
+ * serial run over the same sentences; which bigram holds the <UNK> count,
+ * and the ID a token gets, depend on which thread got there first.
+ *
+ * Each cell keeps its thread's map from tokens to IDs between flushes, so
+ * with T producers the distinct tokens are held up to T times over on top
+ * of the shared vocabulary, along with a vocabulary-sized array of unigram
+ * counts per cell. A cell only refers to its thread weakly, and flush drops
+ * the cells of threads that have ended once their counts are added, so
+ * short-lived producers do not accumulate cells; a long-lived pool thread
+ * keeps its cell for as long as the model.
+ */
+
+public class ConcurrentBigramModel extends BigramModel {
+
+    /** The cell of each thread that has trained this model */
+    protected final ThreadLocal<Cell> threadCell = new ThreadLocal<Cell>();
+
+    /** All cells of threads that were alive at the last flush, for flush */
+    protected final Queue<Cell> cells = new ConcurrentLinkedQueue<Cell>();
+
+    /** Counts of one thread since the last flush. The owning thread holds
+     *  the cell's lock while counting a sentence, which is never contended
+     *  except by flush */
+    protected static class Cell {
+	/** Thread counting into this cell, held weakly so the cell does not
+	 *  keep it alive */
+	final WeakReference<Thread> owner = new WeakReference<Thread>(Thread.currentThread());
+	/** Tokens this thread has seen, and their IDs in the model */
+	final Vocabulary tokens = new Vocabulary();
+	int[] modelIds = new int[1024];
+	double[] unigramCounts = new double[1024];
+	BigramTable bigramTable = new BigramTable();
+	double tokenCount = 0;
+    }
+
+    /** Return the cell of the calling thread, creating it the first time */
+    protected Cell cell() {
+	Cell cell = threadCell.get();
+	if (cell == null) {
+	    cell = new Cell();
+	    threadCell.set(cell);
+	    cells.add(cell);
+	}
+	return cell;
+    }
+
+    /** Accumulate unigram and bigram counts for this sentence in the
+     *  calling thread's cell. Safe to call from many threads at once */
+    @Override
+    public void trainSentence (List<String> sentence) {
+	Cell cell = cell();
+	synchronized (cell) {
+	    int prevId = START_ID;
+	    count(cell, START_ID);
+	    for (String token : trainingSequence(sentence)) {
+		int id = modelId(cell, token);
+		count(cell, id);
+		cell.bigramTable.increment(prevId, id);
+		prevId = id;
+	    }
+	    count(cell, END_ID);
+	    cell.bigramTable.increment(prevId, END_ID);
+	}
+    }
+
+    /** Count a unigram in cell */
+    protected static void count(Cell cell, int id) {
+	if (id >= cell.unigramCounts.length)
+	    cell.unigramCounts = Arrays.copyOf(cell.unigramCounts, Math.max(2 * cell.unigramCounts.length, id + 1));
+	cell.unigramCounts[id]++;
+	cell.tokenCount++;
+    }
+
+    /** Return the ID token is counted under, interning it in the vocabulary
+     *  if no thread has seen it before, in which case this occurrence is
+     *  counted as <UNK> */
+    protected int modelId(Cell cell, String token) {
+	int local = cell.tokens.id(token);
+	if (local >= 0)
+	    return cell.modelIds[local];
+	int id;
+	boolean first;
+	synchronized (vocabulary) {
+	    id = vocabulary.id(token);
+	    first = id < 0;
+	    if (first)
+		id = addToken(token);
+	}
+	local = cell.tokens.add(token);
+	if (local >= cell.modelIds.length)
+	    cell.modelIds = Arrays.copyOf(cell.modelIds, 2 * cell.modelIds.length);
+	cell.modelIds[local] = id;
+	return first ? UNK_ID : id;
+    }
+
+    /** Counts come from the callers' threads, so sentences are counted one
+     *  by one on the calling thread whatever trainThreads is */
+    @Override
+    public void trainSentences (List<List<String>> sentences) {
+	long start = System.nanoTime();
+	long counted = 0;
+	for (List<String> sentence : sentences) {
+	    trainSentence(sentence);
+	    counted += sentence.size() + 2;
+	}
+	Metrics.global().train.record(start, counted);
+    }
+
+    /** Add the counts of every thread to the model's count fields and empty
+     *  the cells, dropping those of threads that have ended. A sentence
+     *  counted during a flush is added by it if its cell is flushed after
+     *  the sentence, and otherwise by the next one */
+    public void flush() {
+	for (Iterator<Cell> i = cells.iterator(); i.hasNext(); ) {
+	    Cell cell = i.next();
+	    // Checked before the counts are taken, as an ended thread counts
+	    // nothing more once it is seen to have ended
+	    Thread owner = cell.owner.get();
+	    boolean ended = owner == null || !owner.isAlive();
+	    // Locks are always taken cell first, as in trainSentence
+	    synchronized (cell) {
+		synchronized (vocabulary) {
+		    int numCounts = Math.min(cell.unigramCounts.length, unigramCounts.length);
+		    for (int id = 0; id < numCounts; id++)
+			unigramCounts[id] += cell.unigramCounts[id];
+		    tokenCount += cell.tokenCount;
+		    bigramTable.addCounts(cell.bigramTable);
+		}
+		Arrays.fill(cell.unigramCounts, 0);
+		cell.tokenCount = 0;
+		// A new table, so that an idle thread does not keep a large one
+		cell.bigramTable = new BigramTable();
+	    }
+	    if (ended)
+		i.remove();
+	}
+    }
+
+    /** Flush the counts of all threads, then compute probabilities */
+    @Override
+    public void calculateProbs() {
+	flush();
+	super.calculateProbs();
+    }
+
+    /** Train a ConcurrentBigramModel with Threads producer threads and a
+     *  BigramModel serially, on the same data, and compare their training
+     *  time and perplexity.
+     *  Command format: "nlp.lm.ConcurrentBigramModel [Threads] [DIR]* [TestFrac]"
+     *  with DIR and TestFrac as for BigramModel.main. Each producer takes
+     *  the next sentence not yet taken until all are counted
+     */
+    public static void main(String[] args) throws IOException {
+	int threads = Integer.parseInt(args[0]);
+	File[] files = new File[args.length - 2];
+	for (int i = 0; i < files.length; i++)
+	    files[i] = new File(args[i + 1]);
+	double testFraction = Double.valueOf(args[args.length - 1]);
+	List<List<String>> sentences = POSTaggedFile.convertToTokenLists(files);
+	int numSentences = sentences.size();
+	int numTest = (int)Math.round(numSentences * testFraction);
+	List<List<String>> testSentences = sentences.subList(numSentences - numTest, numSentences);
+	List<List<String>> trainSentences = sentences.subList(0, numSentences - numTest);
+	BigramModel serial = new BigramModel();
+	long start = System.nanoTime();
+	serial.train(trainSentences);
+	System.out.println("BigramModel trained in " + (System.nanoTime() - start) / 1000000 + " ms");
+	ConcurrentBigramModel model = new ConcurrentBigramModel();
+	AtomicInteger next = new AtomicInteger();
+	ExecutorService pool = Executors.newFixedThreadPool(threads);
+	start = System.nanoTime();
+	try {
+	    List<Future<?>> producers = new ArrayList<Future<?>>();
+	    for (int t = 0; t < threads; t++) {
+		producers.add(pool.submit(() -> {
+			    for (int s = next.getAndIncrement(); s < trainSentences.size(); s = next.getAndIncrement())
+				model.trainSentence(trainSentences.get(s));
+			}));
+	    }
+	    for (Future<?> producer : producers)
+		producer.get();
+	}
+	catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new IllegalStateException("Interrupted while training", e);
+	}
+	catch (ExecutionException e) {
+	    throw new IllegalStateException("Producer failed", e.getCause());
+	}
+	finally {
+	    pool.shutdown();
+	}
+	model.calculateProbs();
+	System.out.println("ConcurrentBigramModel trained on " + threads + " threads in " +
+			   (System.nanoTime() - start) / 1000000 + " ms");
+	System.out.println("Token counts: " + serial.tokenCount + " serial, " + model.tokenCount + " concurrent");
+	System.out.println("BigramModel test: " + serial.evaluate(testSentences, false));
+	System.out.println("ConcurrentBigramModel test: " + model.evaluate(testSentences, false));
+    }
+}
@@ -0,0 +1,114 @@
+package nlp.lm;
+
+import java.util.Arrays;
+
+/**
+ * One level of a context trie: an open-addressing hash table numbering the
+ * histories of L tokens. A history is stored as an edge from the node of its
+ * first L - 1 tokens to its last token, packed into a single long key as in
+ * BigramTable, so every history costs one key and one int however long it
+ * is. Nodes are numbered 0, 1, 2, ... in order of insertion, so per-node
+ * values can be kept in plain arrays.
+ */
+
+public class ContextTable {
+
+    /** Marks an empty slot; can never be a key since IDs are non-negative */
+    protected static final long EMPTY = -1L;
+
+    /** Packed (parent node, token ID) key in each slot */
+    protected long[] keys;
+
+    /** Node number of the history in each slot */
+    protected int[] nodes;
+
+    /** Number of histories stored */
+    protected int size = 0;
+
+    /** Shift turning a 64 bit hash into a slot index */
+    protected int shift;
+
+    /** Create an empty table */
+    public ContextTable() {
+	allocate(1024);
+    }
+
+    /** Return the number of histories stored, which is also the next node number */
+    public int size() {
+	return size;
+    }
+
+    /** Return the node of the history extending parent by token id,
+     *  or -1 if it is not stored */
+    public int find(int parent, int id) {
+	long key = BigramTable.key(parent, id);
+	int mask = keys.length - 1;
+	for (int slot = slot(key); ; slot = (slot + 1) & mask) {
+	    long k = keys[slot];
+	    if (k == key)
+		return nodes[slot];
+	    if (k == EMPTY)
+		return -1;
+	}
+    }
+
+    /** Return the node of the history extending parent by token id,
+     *  numbering it if it is not stored yet */
+    public int findOrInsert(int parent, int id) {
+	long key = BigramTable.key(parent, id);
+	int mask = keys.length - 1;
+	int slot = slot(key);
+	for ( ; ; slot = (slot + 1) & mask) {
+	    long k = keys[slot];
+	    if (k == key)
+		return nodes[slot];
+	    if (k == EMPTY)
+		break;
+	}
+	// Keep the table at most half full so probe chains stay short
+	if (2 * (size + 1) > keys.length) {
+	    rehash(keys.length * 2);
+	    for (slot = slot(key); keys[slot] != EMPTY; slot = (slot + 1) & (keys.length - 1))
+		;
+	}
+	keys[slot] = key;
+	nodes[slot] = size;
+	return size++;
+    }
+
+    /** Return the heap bytes taken by the key and node arrays */
+    public long estimatedBytes() {
+	return 48 + 12L * keys.length;
+    }
+
+    /** Fibonacci hash of a packed key to a slot index */
+    protected int slot(long key) {
+	return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+    }
+
+    /** Allocate empty arrays with the given power of two capacity */
+    protected void allocate(int capacity) {
+	keys = new long[capacity];
+	Arrays.fill(keys, EMPTY);
+	nodes = new int[capacity];
+	shift = 64 - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    /** Move all histories into freshly allocated arrays of a new capacity */
+    protected void rehash(int capacity) {
+	long[] oldKeys = keys;
+	int[] oldNodes = nodes;
+	allocate(capacity);
+	int mask = capacity - 1;
+	for (int i = 0; i < oldKeys.length; i++) {
+	    long key = oldKeys[i];
+	    if (key == EMPTY)
+		continue;
+	    int slot = slot(key);
+	    while (keys[slot] != EMPTY)
+		slot = (slot + 1) & mask;
+	    keys[slot] = key;
+	    nodes[slot] = oldNodes[i];
+	}
+    }
+}
@@ -0,0 +1,361 @@
+package nlp.lm;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * K-fold cross-validation that counts the sentences once instead of
+ * retraining a model per fold. The sentences are cut into k contiguous
+ * folds, each counted into its own raw counts, and the model for fold f is
+ * trained on the other folds in order by subtracting fold f's counts from
+ * the totals.
+ *
+ * Raw counts count every token as itself. Training counts the first
+ * occurrence of each token as <UNK>, and which occurrence is first depends
+ * on the fold left out, so each fold also records where every token first
+ * occurs in it, with its neighbours. For fold f a token's first training
+ * occurrence is its first occurrence in the earliest other fold. That
+ * occurrence is moved to <UNK>, together with the bigrams on either side
+ * of it. The counts, and so the perplexities, are exactly those of a model
+ * trained from scratch on the other folds.
+ *
+ * Folds are counted and evaluated in parallel.
+ */
+
+public class CrossValidator {
+
+    /** Sentences being cross-validated */
+    protected final List<List<String>> sentences;
+
+    /** Number of folds */
+    protected final int k;
+
+    /** Number of threads folds are counted and evaluated on */
+    protected final int threads;
+
+    /** Every token of the sentences, shared read-only by the fold models */
+    protected final Vocabulary vocabulary;
+
+    /** Counts in forward and backward order, made when first needed */
+    protected Counts forwardCounts = null, backwardCounts = null;
+
+    /** Prepare k-fold cross-validation of sentences on threads threads */
+    public CrossValidator(List<List<String>> sentences, int k, int threads) {
+	if (k < 2 || k > sentences.size())
+	    throw new IllegalArgumentException("Cannot cut " + sentences.size() + " sentences into " + k + " folds");
+	this.sentences = sentences;
+	this.k = k;
+	this.threads = threads;
+	// Same special tokens and IDs as BigramModel
+	vocabulary = new Vocabulary();
+	vocabulary.add("<S>");
+	vocabulary.add("</S>");
+	vocabulary.add("<UNK>");
+	for (List<String> sentence : sentences) {
+	    for (String token : sentence)
+		vocabulary.add(token);
+	}
+    }
+
+    /** Index of the first sentence of a fold */
+    protected int foldStart(int fold) {
+	return (int) ((long) fold * sentences.size() / k);
+    }
+
+    /** Return the sentences of a fold */
+    public List<List<String>> fold(int fold) {
+	return sentences.subList(foldStart(fold), foldStart(fold + 1));
+    }
+
+    /** Position of a token in the list of sentences */
+    protected static long position(int sentence, int token) {
+	return ((long) sentence << 32) | token;
+    }
+
+    /** Raw counts of one fold in one direction, and the first occurrence
+     *  of every token in it */
+    protected static class FoldCounts {
+	double[] unigramCounts;
+	BigramTable bigramTable = new BigramTable();
+	double tokenCount = 0;
+	/** Position of the first occurrence of each token ID, -1 if absent */
+	long[] firstPositions;
+	/** Raw IDs of the tokens before and after that occurrence */
+	int[] prevIds, nextIds;
+    }
+
+    /** Raw counts of every fold in one direction, and their totals */
+    protected class Counts {
+	final boolean backward;
+	final FoldCounts[] folds = new FoldCounts[k];
+	final double[] unigramCounts;
+	final BigramTable bigramTable = new BigramTable();
+	double tokenCount = 0;
+	/** First and second fold each token ID occurs in, -1 if none */
+	final int[] firstFolds, secondFolds;
+
+	Counts(boolean backward) {
+	    this.backward = backward;
+	    List<Callable<FoldCounts>> tasks = new ArrayList<Callable<FoldCounts>>();
+	    for (int fold = 0; fold < k; fold++) {
+		int f = fold;
+		tasks.add(() -> count(f));
+	    }
+	    List<FoldCounts> counted = invokeAll(tasks);
+	    int numTokens = vocabulary.size();
+	    unigramCounts = new double[numTokens];
+	    firstFolds = new int[numTokens];
+	    secondFolds = new int[numTokens];
+	    Arrays.fill(firstFolds, -1);
+	    Arrays.fill(secondFolds, -1);
+	    for (int fold = 0; fold < k; fold++) {
+		FoldCounts counts = counted.get(fold);
+		folds[fold] = counts;
+		for (int id = 0; id < numTokens; id++) {
+		    unigramCounts[id] += counts.unigramCounts[id];
+		    if (counts.firstPositions[id] < 0)
+			continue;
+		    if (firstFolds[id] < 0)
+			firstFolds[id] = fold;
+		    else if (secondFolds[id] < 0)
+			secondFolds[id] = fold;
+		}
+		tokenCount += counts.tokenCount;
+		bigramTable.addCounts(counts.bigramTable);
+	    }
+	}
+
+	/** Sentence as it is counted in this direction */
+	List<String> sequence(List<String> sentence) {
+	    if (!backward)
+		return sentence;
+	    ArrayList<String> reverseSentence = new ArrayList<String>(sentence);
+	    Collections.reverse(reverseSentence);
+	    return reverseSentence;
+	}
+
+	/** Count a fold with every token counted as itself */
+	FoldCounts count(int fold) {
+	    FoldCounts counts = new FoldCounts();
+	    int numTokens = vocabulary.size();
+	    counts.unigramCounts = new double[numTokens];
+	    counts.firstPositions = new long[numTokens];
+	    Arrays.fill(counts.firstPositions, -1);
+	    counts.prevIds = new int[numTokens];
+	    counts.nextIds = new int[numTokens];
+	    for (int s = foldStart(fold); s < foldStart(fold + 1); s++) {
+		int prevId = BigramModel.START_ID;
+		counts.unigramCounts[prevId]++;
+		counts.tokenCount++;
+		// Token whose first occurrence was the previous token, if any
+		int first = -1;
+		int t = 0;
+		for (String token : sequence(sentences.get(s))) {
+		    int id = vocabulary.id(token);
+		    if (first >= 0)
+			counts.nextIds[first] = id;
+		    first = -1;
+		    // Special tokens are interned before training and never <UNK>
+		    if (id > BigramModel.UNK_ID && counts.firstPositions[id] < 0) {
+			counts.firstPositions[id] = position(s, t);
+			counts.prevIds[id] = prevId;
+			first = id;
+		    }
+		    counts.unigramCounts[id]++;
+		    counts.tokenCount++;
+		    counts.bigramTable.increment(prevId, id);
+		    prevId = id;
+		    t++;
+		}
+		if (first >= 0)
+		    counts.nextIds[first] = BigramModel.END_ID;
+		counts.unigramCounts[BigramModel.END_ID]++;
+		counts.tokenCount++;
+		counts.bigramTable.increment(prevId, BigramModel.END_ID);
+	    }
+	    return counts;
+	}
+
+	/** Return a trained model with the counts of all folds but fold */
+	BigramModel model(int fold) {
+	    return model(fold, backward ? new BackwardBigramModel() : new BigramModel());
+	}
+
+	/** Give model the counts of all folds but fold and calculate its probs */
+	BigramModel model(int fold, BigramModel model) {
+	    FoldCounts heldOut = folds[fold];
+	    int numTokens = vocabulary.size();
+	    double[] counts = new double[numTokens];
+	    for (int id = 0; id < numTokens; id++)
+		counts[id] = unigramCounts[id] - heldOut.unigramCounts[id];
+	    // First training occurrence of each token, in the earliest other fold
+	    int numFirst = 0;
+	    int[] firstIds = new int[numTokens];
+	    int[] firstFoldOf = new int[numTokens];
+	    for (int id = BigramModel.UNK_ID + 1; id < numTokens; id++) {
+		int first = firstFolds[id] != fold ? firstFolds[id] : secondFolds[id];
+		if (first < 0)
+		    continue;
+		firstIds[numFirst] = id;
+		firstFoldOf[numFirst++] = first;
+	    }
+	    long[] converted = new long[numFirst];
+	    for (int i = 0; i < numFirst; i++)
+		converted[i] = folds[firstFoldOf[i]].firstPositions[firstIds[i]];
+	    Arrays.sort(converted);
+	    // Move each first occurrence, and the bigrams around it, to <UNK>
+	    BigramTable delta = new BigramTable();
+	    for (int i = 0; i < numFirst; i++) {
+		int id = firstIds[i];
+		FoldCounts first = folds[firstFoldOf[i]];
+		long position = first.firstPositions[id];
+		int prevId = first.prevIds[id];
+		int nextId = first.nextIds[id];
+		counts[id]--;
+		counts[BigramModel.UNK_ID]++;
+		boolean prevConverted = (int) position > 0 && Arrays.binarySearch(converted, position - 1) >= 0;
+		delta.increment(prevId, id, -1);
+		delta.increment(prevConverted ? BigramModel.UNK_ID : prevId, BigramModel.UNK_ID, 1);
+		// A bigram between two converted tokens is moved by the second one
+		if (Arrays.binarySearch(converted, position + 1) < 0) {
+		    delta.increment(id, nextId, -1);
+		    delta.increment(BigramModel.UNK_ID, nextId, 1);
+		}
+	    }
+	    BigramTable table = new BigramTable(bigramTable.size());
+	    for (int slot = 0; slot < bigramTable.capacity(); slot++) {
+		if (!bigramTable.isOccupied(slot))
+		    continue;
+		long key = bigramTable.keyAt(slot);
+		int prevId = BigramTable.prevId(key);
+		int id = BigramTable.id(key);
+		double count = bigramTable.countAt(slot) - heldOut.bigramTable.count(prevId, id)
+		    + delta.count(prevId, id);
+		if (count > 0)
+		    table.increment(prevId, id, count);
+	    }
+	    for (int slot = 0; slot < delta.capacity(); slot++) {
+		if (!delta.isOccupied(slot))
+		    continue;
+		long key = delta.keyAt(slot);
+		int prevId = BigramTable.prevId(key);
+		int id = BigramTable.id(key);
+		if (bigramTable.find(prevId, id) < 0 && delta.countAt(slot) > 0)
+		    table.increment(prevId, id, delta.countAt(slot));
+	    }
+	    model.vocabulary = vocabulary;
+	    model.unigramCounts = counts;
+	    model.bigramTable = table;
+	    model.tokenCount = tokenCount - heldOut.tokenCount;
+	    model.calculateProbs();
+	    return model;
+	}
+    }
+
+    /** Run tasks on threads threads and return their results in order */
+    protected <T> List<T> invokeAll(List<Callable<T>> tasks) {
+	ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, tasks.size())));
+	try {
+	    List<T> results = new ArrayList<T>();
+	    for (Future<T> future : pool.invokeAll(tasks))
+		results.add(future.get());
+	    return results;
+	}
+	catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new IllegalStateException("Interrupted while cross-validating", e);
+	}
+	catch (ExecutionException e) {
+	    throw new IllegalStateException("Cross-validation fold failed", e.getCause());
+	}
+	finally {
+	    pool.shutdown();
+	}
+    }
+
+    /** Counts in forward order */
+    protected synchronized Counts forwardCounts() {
+	if (forwardCounts == null)
+	    forwardCounts = new Counts(false);
+	return forwardCounts;
+    }
+
+    /** Counts in backward order */
+    protected synchronized Counts backwardCounts() {
+	if (backwardCounts == null)
+	    backwardCounts = new Counts(true);
+	return backwardCounts;
+    }
+
+    /** Return a model of the given class trained on all folds but fold:
+     *  BigramModel, BackwardBigramModel, BidirectionalBigramModel,
+     *  SharedBidirectionalBigramModel or KneserNeyBigramModel */
+    public BigramModel model(Class<? extends BigramModel> modelClass, int fold) {
+	if (modelClass == BigramModel.class)
+	    return forwardCounts().model(fold);
+	if (modelClass == BackwardBigramModel.class)
+	    return backwardCounts().model(fold);
+	if (modelClass == BidirectionalBigramModel.class)
+	    return new BidirectionalBigramModel(forwardCounts().model(fold), backwardCounts().model(fold));
+	if (modelClass == SharedBidirectionalBigramModel.class)
+	    return new SharedBidirectionalBigramModel(forwardCounts().model(fold));
+	if (modelClass == KneserNeyBigramModel.class)
+	    return forwardCounts().model(fold, new KneserNeyBigramModel());
+	throw new IllegalArgumentException("Cannot cross-validate " + modelClass.getSimpleName());
+    }
+
+    /** Evaluate a model of the given class on each fold, trained on the
+     *  others, and return the result of each fold. includeEnd is as for
+     *  BigramModel.evaluate */
+    public List<EvaluationResult> evaluate(Class<? extends BigramModel> modelClass, boolean includeEnd) {
+	List<Callable<EvaluationResult>> tasks = new ArrayList<Callable<EvaluationResult>>();
+	for (int fold = 0; fold < k; fold++) {
+	    int f = fold;
+	    tasks.add(() -> model(modelClass, f).evaluate(fold(f), includeEnd, 1));
+	}
+	return invokeAll(tasks);
+    }
+
+    /** Combine the results of all folds into one over all sentences */
+    public static EvaluationResult aggregate(List<EvaluationResult> results) {
+	int sentenceCount = 0;
+	long tokenCount = 0, oovCount = 0, elapsedNanos = 0;
+	double logProb = 0;
+	for (EvaluationResult result : results) {
+	    sentenceCount += result.sentenceCount;
+	    tokenCount += result.tokenCount;
+	    oovCount += result.oovCount;
+	    logProb += result.logProb;
+	    elapsedNanos += result.elapsedNanos;
+	}
+	return new EvaluationResult(sentenceCount, tokenCount, oovCount, logProb, elapsedNanos);
+    }
+
+    /** Cross-validate the forward, backward and bidirectional models.
+     *  Command format: "nlp.lm.CrossValidator [K] [DIR]*" where K is the
+     *  number of folds and DIR is as for BigramModel.main */
+    public static void main(String[] args) throws IOException {
+	int k = Integer.parseInt(args[0]);
+	File[] files = new File[args.length - 1];
+	for (int i = 0; i < files.length; i++)
+	    files[i] = new File(args[i + 1]);
+	List<List<String>> sentences = POSTaggedFile.convertToTokenLists(files);
+	int threads = Integer.getInteger("nlp.lm.testThreads", Runtime.getRuntime().availableProcessors());
+	long start = System.nanoTime();
+	CrossValidator validator = new CrossValidator(sentences, k, threads);
+	List<Class<? extends BigramModel>> modelClasses = Arrays.asList(
+	    BigramModel.class, BackwardBigramModel.class, BidirectionalBigramModel.class);
+	for (Class<? extends BigramModel> modelClass : modelClasses) {
+	    System.out.println(modelClass.getSimpleName() + ":");
+	    List<EvaluationResult> results = validator.evaluate(modelClass, true);
+	    List<EvaluationResult> wordResults = validator.evaluate(modelClass, false);
+	    for (int fold = 0; fold < k; fold++)
+		System.out.println("  Fold " + fold + ": Perplexity = " + results.get(fold).perplexity +
+				   ", Word Perplexity = " + wordResults.get(fold).perplexity);
+	    System.out.println("  All folds: Perplexity = " + aggregate(results).perplexity +
+			       ", Word Perplexity = " + aggregate(wordResults).perplexity);
+	}
+	System.out.println("Cross-validated in " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+}
@@ -0,0 +1,56 @@
+package nlp.lm;
+
+/**
+ * The result of evaluating a model on a set of test sentences with
+ * BigramModel.evaluate: the total log probability, the number of tokens
+ * predicted and how many of them were out of vocabulary, and the time
+ * scoring took.
+ */
+
+public class EvaluationResult {
+
+    /** Number of sentences scored */
+    public final int sentenceCount;
+
+    /** Number of tokens predicted, including </S> when it was scored */
+    public final long tokenCount;
+
+    /** Number of sentence tokens the model scored as <UNK> */
+    public final long oovCount;
+
+    /** Natural log probability of all sentences */
+    public final double logProb;
+
+    /** Perplexity, exp(-logProb / tokenCount) */
+    public final double perplexity;
+
+    /** Wall clock time spent scoring, in nanoseconds */
+    public final long elapsedNanos;
+
+    public EvaluationResult(int sentenceCount, long tokenCount, long oovCount,
+			    double logProb, long elapsedNanos) {
+	this.sentenceCount = sentenceCount;
+	this.tokenCount = tokenCount;
+	this.oovCount = oovCount;
+	this.logProb = logProb;
+	this.perplexity = Math.exp(-logProb / tokenCount);
+	this.elapsedNanos = elapsedNanos;
+    }
+
+    /** Fraction of the tokens predicted that were out of vocabulary. The
+     *  tokens predicted include </S> when it was scored, which is never
+     *  out of vocabulary */
+    public double oovRate() {
+	return tokenCount == 0 ? 0 : (double) oovCount / tokenCount;
+    }
+
+    /** Time spent scoring in milliseconds */
+    public double elapsedMillis() {
+	return elapsedNanos / 1e6;
+    }
+
+    public String toString() {
+	return "Perplexity = " + perplexity + " (# tokens = " + tokenCount +
+	    ", # OOV = " + oovCount + ", " + elapsedMillis() + " ms)";
+    }
+}
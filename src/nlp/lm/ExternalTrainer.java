@@ -0,0 +1,543 @@
+package nlp.lm;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Trains a bigram model whose bigram counts do not fit in the heap, writing
+ * it straight to a ModelFile that is then scored through a mapping.
+ *
+ * The vocabulary and unigram counts are kept in the heap as in BigramModel,
+ * with the same rule that the first occurrence of a token counts as <UNK>.
+ * Bigrams are counted in a BigramTable of fixed capacity, sized from the
+ * buffer bytes given, and whenever it fills up its counts are sorted by key
+ * and spilled to a run file on disk as (key, count) pairs. merge then
+ * merges the runs k ways, MERGE_FAN_IN at a time, summing the counts of
+ * equal keys. As the merged bigrams stream past in key order, which is row
+ * order, their probs are computed and written out, so no table of all
+ * bigrams is ever built. The model file is identical to the one
+ * ModelFile.write gives for a BigramModel trained on the same sentences.
+ *
+ * A model file is at most 2 GiB. merge checks the size of the block against
+ * maxBlockBytes before merging, using the largest run as a lower bound on the
+ * number of bigrams, and again as the final merge counts them, so a model
+ * that is too large fails without merging all of its bigrams first. Run
+ * files and merged bigram files are deleted when training fails.
+ */
+
+public class ExternalTrainer {
+
+    /** Most runs merged at once; more are first merged into longer runs */
+    public static final int MERGE_FAN_IN = 64;
+
+    /** Bytes of the table and sort buffer per bigram slot */
+    protected static final int SLOT_BYTES = 32;
+
+    /** Interpolation weights written to the model */
+    public double lambda1 = 0.1;
+    public double lambda2 = 0.9;
+
+    /** Whether bigrams are counted over reversed sentences, as by
+     *  BackwardBigramModel */
+    protected final boolean backward;
+
+    /** Directory run files are written to */
+    protected final File spillDirectory;
+
+    /** Most bytes the block may take, so that the model file fits in an
+     *  int offset. A bidirectional model leaves room for the other block */
+    protected long maxBlockBytes = Integer.MAX_VALUE - ModelFile.FILE_HEADER_SIZE;
+
+    /** Vocabulary, unigram counts and number of tokens counted */
+    protected final Vocabulary vocabulary = new Vocabulary();
+    protected double[] unigramCounts = new double[1024];
+    protected double tokenCount = 0;
+
+    /** Bigram counts since the last spill, and the most it may hold */
+    protected final BigramTable buffer;
+    protected final int maxBufferSize;
+
+    /** Keys of buffer, sorted for spilling */
+    protected final long[] sortKeys;
+
+    /** Spilled runs and the number of bigrams in each */
+    protected final List<File> runs = new ArrayList<File>();
+    protected final List<Long> runSizes = new ArrayList<Long>();
+
+    /** After merge: start of each token's row, number of distinct bigrams,
+     *  and files holding the second ID and prob of every bigram */
+    protected int[] rowStarts = null;
+    protected int numBigrams = 0;
+    protected File idsFile = null, probsFile = null;
+
+    /** Create a trainer that spills to spillDirectory once its bigram counts
+     *  take bufferBytes of heap */
+    public ExternalTrainer(File spillDirectory, long bufferBytes, boolean backward) {
+	this.spillDirectory = spillDirectory;
+	this.backward = backward;
+	// A table is kept at most half full, so it holds half its capacity
+	int capacity = 16;
+	while (capacity < (1 << 30) && 2L * capacity * SLOT_BYTES <= bufferBytes)
+	    capacity *= 2;
+	maxBufferSize = capacity / 2;
+	buffer = new BigramTable(maxBufferSize);
+	sortKeys = new long[maxBufferSize];
+	addToken("<S>");
+	addToken("</S>");
+	addToken("<UNK>");
+    }
+
+    /** Intern token, growing the unigram counts to cover its ID */
+    protected int addToken(String token) {
+	int id = vocabulary.add(token);
+	if (id >= unigramCounts.length)
+	    unigramCounts = Arrays.copyOf(unigramCounts, 2 * unigramCounts.length);
+	return id;
+    }
+
+    /** Count the sentences one at a time */
+    public void trainSentences(Iterator<List<String>> sentences) throws IOException {
+	long start = System.nanoTime();
+	double startCount = tokenCount;
+	while (sentences.hasNext())
+	    trainSentence(sentences.next());
+	Metrics.global().train.record(start, (long) (tokenCount - startCount));
+    }
+
+    /** Accumulate unigram and bigram counts for this sentence, as
+     *  BigramModel.trainSentence does */
+    public void trainSentence(List<String> sentence) throws IOException {
+	if (backward) {
+	    sentence = new ArrayList<String>(sentence);
+	    Collections.reverse(sentence);
+	}
+	int prevId = BigramModel.START_ID;
+	unigramCounts[BigramModel.START_ID]++;
+	tokenCount++;
+	for (String token : sentence) {
+	    int id = vocabulary.id(token);
+	    // The first occurrence of a token is counted as <UNK>
+	    if (id < 0) {
+		addToken(token);
+		id = BigramModel.UNK_ID;
+	    }
+	    unigramCounts[id]++;
+	    tokenCount++;
+	    countBigram(prevId, id);
+	    prevId = id;
+	}
+	unigramCounts[BigramModel.END_ID]++;
+	tokenCount++;
+	countBigram(prevId, BigramModel.END_ID);
+    }
+
+    /** Count a bigram, spilling the buffer first if the bigram is new and
+     *  the buffer is full */
+    protected void countBigram(int prevId, int id) throws IOException {
+	if (buffer.size() >= maxBufferSize && buffer.find(prevId, id) < 0)
+	    spill();
+	buffer.increment(prevId, id);
+    }
+
+    /** Write the buffered counts to a new run, sorted by key, and empty the
+     *  buffer */
+    protected void spill() throws IOException {
+	int size = 0;
+	for (int slot = 0; slot < buffer.capacity(); slot++) {
+	    if (buffer.isOccupied(slot))
+		sortKeys[size++] = buffer.keyAt(slot);
+	}
+	Arrays.sort(sortKeys, 0, size);
+	File run = File.createTempFile("nlp-lm-run", ".bin", spillDirectory);
+	try {
+	    DataOutputStream out = open(run);
+	    try {
+		for (int i = 0; i < size; i++) {
+		    long key = sortKeys[i];
+		    out.writeLong(key);
+		    out.writeDouble(buffer.count(BigramTable.prevId(key), BigramTable.id(key)));
+		}
+	    }
+	    finally {
+		out.close();
+	    }
+	}
+	catch (IOException | RuntimeException e) {
+	    run.delete();
+	    throw e;
+	}
+	runs.add(run);
+	runSizes.add((long) size);
+	buffer.clear();
+    }
+
+    /** Return the number of runs spilled so far */
+    public int runCount() {
+	return runs.size();
+    }
+
+    /** Merge all runs into the sorted bigrams of the model, computing the
+     *  prob of each as it is merged. No more sentences can be counted.
+     *  Throws IOException, deleting the runs, if the block would be larger
+     *  than maxBlockBytes */
+    public void merge() throws IOException {
+	try {
+	    if (buffer.size() > 0)
+		spill();
+	    long maxBigrams = maxBigrams();
+	    // Every bigram of the largest run is a distinct bigram of the model
+	    long largestRun = 0;
+	    for (long size : runSizes)
+		largestRun = Math.max(largestRun, size);
+	    if (largestRun > maxBigrams)
+		throw tooLarge(largestRun);
+	    // Merge the oldest runs into longer ones until one pass can merge all
+	    while (runs.size() > MERGE_FAN_IN)
+		mergeRuns();
+	    int numTokens = vocabulary.size();
+	    rowStarts = new int[numTokens + 1];
+	    idsFile = File.createTempFile("nlp-lm-ids", ".bin", spillDirectory);
+	    probsFile = File.createTempFile("nlp-lm-probs", ".bin", spillDirectory);
+	    DataOutputStream ids = open(idsFile);
+	    try {
+		DataOutputStream probs = open(probsFile);
+		try {
+		    merge(runs, runSizes, (key, count) -> {
+			    if (numBigrams == maxBigrams)
+				throw tooLarge(numBigrams + 1);
+			    int prevId = BigramTable.prevId(key);
+			    rowStarts[prevId + 1]++;
+			    ids.writeInt(BigramTable.id(key));
+			    // Prob is ratio of bigram count to the first token's unigram count
+			    probs.writeDouble(count / unigramCounts[prevId]);
+			    numBigrams++;
+			});
+		}
+		finally {
+		    probs.close();
+		}
+	    }
+	    finally {
+		ids.close();
+	    }
+	    for (int id = 0; id < numTokens; id++)
+		rowStarts[id + 1] += rowStarts[id];
+	    runs.clear();
+	    runSizes.clear();
+	}
+	catch (IOException | RuntimeException e) {
+	    deleteFiles();
+	    throw e;
+	}
+    }
+
+    /** Merge the oldest MERGE_FAN_IN runs into one longer run */
+    protected void mergeRuns() throws IOException {
+	List<File> group = new ArrayList<File>(runs.subList(0, MERGE_FAN_IN));
+	List<Long> groupSizes = new ArrayList<Long>(runSizes.subList(0, MERGE_FAN_IN));
+	runs.subList(0, MERGE_FAN_IN).clear();
+	runSizes.subList(0, MERGE_FAN_IN).clear();
+	File run = File.createTempFile("nlp-lm-run", ".bin", spillDirectory);
+	long[] size = new long[1];
+	try {
+	    DataOutputStream out = open(run);
+	    try {
+		merge(group, groupSizes, (key, count) -> {
+			out.writeLong(key);
+			out.writeDouble(count);
+			size[0]++;
+		    });
+	    }
+	    finally {
+		out.close();
+	    }
+	}
+	catch (IOException | RuntimeException e) {
+	    run.delete();
+	    throw e;
+	}
+	runs.add(run);
+	runSizes.add(size[0]);
+    }
+
+    /** Return the most bigrams a block over the current vocabulary can hold
+     *  in maxBlockBytes, -1 if not even the vocabulary fits */
+    protected long maxBigrams() {
+	if (ModelFile.blockSize(vocabulary, 0) > maxBlockBytes)
+	    return -1;
+	long lo = 0, hi = maxBlockBytes / 12;
+	while (lo < hi) {
+	    long mid = (lo + hi + 1) >>> 1;
+	    if (ModelFile.blockSize(vocabulary, mid) <= maxBlockBytes)
+		lo = mid;
+	    else
+		hi = mid - 1;
+	}
+	return lo;
+    }
+
+    protected IOException tooLarge(long numBigrams) {
+	return new IOException("Model too large for a model file: at least " + numBigrams +
+			       " bigrams, more than fit in " + maxBlockBytes + " bytes");
+    }
+
+    /** Delete the runs and merged bigram files of this trainer */
+    protected void deleteFiles() {
+	for (File run : runs)
+	    run.delete();
+	runs.clear();
+	runSizes.clear();
+	if (idsFile != null)
+	    idsFile.delete();
+	if (probsFile != null)
+	    probsFile.delete();
+    }
+
+    /** Receives the bigrams of a merge in key order */
+    protected interface BigramSink {
+	void add(long key, double count) throws IOException;
+    }
+
+    /** Merge sorted runs, passing each distinct key with its summed count to
+     *  sink, and delete the runs */
+    protected void merge(List<File> files, List<Long> sizes, BigramSink sink) throws IOException {
+	PriorityQueue<Run> queue = new PriorityQueue<Run>(Math.max(1, files.size()));
+	try {
+	    for (int i = 0; i < files.size(); i++) {
+		Run run = new Run(files.get(i), sizes.get(i));
+		if (run.next())
+		    queue.add(run);
+		else
+		    run.close();
+	    }
+	    while (!queue.isEmpty()) {
+		Run run = queue.poll();
+		long key = run.key;
+		double count = run.count;
+		advance(run, queue);
+		// Equal keys of other runs are at the head of the queue now
+		while (!queue.isEmpty() && queue.peek().key == key) {
+		    Run other = queue.poll();
+		    count += other.count;
+		    advance(other, queue);
+		}
+		sink.add(key, count);
+	    }
+	}
+	finally {
+	    for (Run run : queue)
+		run.close();
+	    for (File file : files)
+		file.delete();
+	}
+    }
+
+    /** Move run to its next bigram, returning it to the queue unless it is
+     *  exhausted */
+    protected static void advance(Run run, PriorityQueue<Run> queue) throws IOException {
+	if (run.next())
+	    queue.add(run);
+	else
+	    run.close();
+    }
+
+    /** A run being read, positioned on its current bigram */
+    protected static class Run implements Comparable<Run> {
+	final DataInputStream in;
+	long remaining;
+	long key;
+	double count;
+
+	Run(File file, long size) throws IOException {
+	    in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+	    remaining = size;
+	}
+
+	/** Read the next bigram, returning false at the end of the run */
+	boolean next() throws IOException {
+	    if (remaining == 0)
+		return false;
+	    key = in.readLong();
+	    count = in.readDouble();
+	    remaining--;
+	    return true;
+	}
+
+	void close() throws IOException {
+	    in.close();
+	}
+
+	public int compareTo(Run other) {
+	    return Long.compare(key, other.key);
+	}
+    }
+
+    protected static DataOutputStream open(File file) throws IOException {
+	return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    }
+
+    /** Return the number of bytes of this trainer's block, once merged */
+    protected long blockSize() {
+	return ModelFile.blockSize(vocabulary, numBigrams);
+    }
+
+    /** Write this trainer's block of a model file, once merged, and delete
+     *  the merged bigram files */
+    protected void writeBlock(DataOutputStream out) throws IOException {
+	double[] unigramProbs = new double[vocabulary.size()];
+	for (int id = 0; id < unigramProbs.length; id++) {
+	    if (unigramCounts[id] != 0)
+		unigramProbs[id] = unigramCounts[id] / tokenCount;
+	}
+	try {
+	    int start = ModelFile.writeBlockHead(out, lambda1, lambda2, vocabulary, numBigrams, tokenCount, unigramProbs);
+	    for (int rowStart : rowStarts)
+		out.writeInt(rowStart);
+	    copy(idsFile, out);
+	    ModelFile.pad(out, start);
+	    copy(probsFile, out);
+	}
+	finally {
+	    deleteFiles();
+	}
+    }
+
+    /** Append the contents of file to out */
+    protected static void copy(File file, DataOutputStream out) throws IOException {
+	InputStream in = new FileInputStream(file);
+	try {
+	    byte[] bytes = new byte[1 << 16];
+	    int n;
+	    while ((n = in.read(bytes)) > 0)
+		out.write(bytes, 0, n);
+	}
+	finally {
+	    in.close();
+	}
+    }
+
+    /** Write a model file of the given kind with the block of each merged
+     *  trainer, forward before backward for a bidirectional model. The
+     *  trainers' files are deleted, and so is the model file if it fails */
+    public static void write(File file, int kind, double forwardWeight, double backwardWeight,
+			     ExternalTrainer... trainers) throws IOException {
+	long[] sizes = new long[trainers.length];
+	for (int i = 0; i < trainers.length; i++)
+	    sizes[i] = trainers[i].blockSize();
+	try {
+	    DataOutputStream out = open(file);
+	    try {
+		ModelFile.writeHeader(out, kind, forwardWeight, backwardWeight, sizes);
+		for (ExternalTrainer trainer : trainers)
+		    trainer.writeBlock(out);
+	    }
+	    finally {
+		out.close();
+	    }
+	}
+	catch (IOException | RuntimeException e) {
+	    file.delete();
+	    throw e;
+	}
+	finally {
+	    for (ExternalTrainer trainer : trainers)
+		trainer.deleteFiles();
+	}
+    }
+
+    /** Train a model of kind ModelFile.FORWARD, BACKWARD or BIDIRECTIONAL
+     *  on sentences, spilling to spillDirectory with at most bufferBytes of
+     *  bigram counts in the heap, write it to modelFile and return the
+     *  model loaded from it */
+    public static BigramModel train(Iterator<List<String>> sentences, File modelFile, int kind,
+				    File spillDirectory, long bufferBytes) throws IOException {
+	if (kind == ModelFile.BIDIRECTIONAL) {
+	    // Both directions are counted in one pass, sharing the buffer bytes
+	    ExternalTrainer forward = new ExternalTrainer(spillDirectory, bufferBytes / 2, false);
+	    ExternalTrainer backward = new ExternalTrainer(spillDirectory, bufferBytes / 2, true);
+	    try {
+		long start = System.nanoTime();
+		while (sentences.hasNext()) {
+		    List<String> sentence = sentences.next();
+		    forward.trainSentence(sentence);
+		    backward.trainSentence(sentence);
+		}
+		// Each token is counted by both directions but trained on once
+		Metrics.global().train.record(start, (long) forward.tokenCount);
+		forward.merge();
+		backward.maxBlockBytes -= forward.blockSize();
+		backward.merge();
+		write(modelFile, kind, 0.5, 0.5, forward, backward);
+	    }
+	    finally {
+		forward.deleteFiles();
+		backward.deleteFiles();
+	    }
+	}
+	else {
+	    ExternalTrainer trainer = new ExternalTrainer(spillDirectory, bufferBytes, kind == ModelFile.BACKWARD);
+	    try {
+		trainer.trainSentences(sentences);
+		trainer.merge();
+		write(modelFile, kind, 1, 0, trainer);
+	    }
+	    finally {
+		trainer.deleteFiles();
+	    }
+	}
+	return ModelFile.load(modelFile);
+    }
+
+    /** Train a model with bounded memory and test it.
+     *  Command format: "nlp.lm.ExternalTrainer [Model] [OutFile] [BufferMB] [DIR]* [TestFrac]"
+     *  where Model is BigramModel, BackwardBigramModel or
+     *  BidirectionalBigramModel, BufferMB is the heap given to bigram counts
+     *  and DIR and TestFrac are as for BigramModel.main. Sentences are
+     *  streamed from the files, and run files go to java.io.tmpdir
+     */
+    public static void main(String[] args) throws IOException {
+	int kind;
+	if (args[0].equals("BigramModel"))
+	    kind = ModelFile.FORWARD;
+	else if (args[0].equals("BackwardBigramModel"))
+	    kind = ModelFile.BACKWARD;
+	else if (args[0].equals("BidirectionalBigramModel"))
+	    kind = ModelFile.BIDIRECTIONAL;
+	else
+	    throw new IllegalArgumentException("Unknown model " + args[0]);
+	File outFile = new File(args[1]);
+	long bufferBytes = (long) (Double.parseDouble(args[2]) * (1 << 20));
+	File[] files = new File[args.length - 4];
+	for (int i = 0; i < files.length; i++)
+	    files[i] = new File(args[i + 3]);
+	double testFraction = Double.valueOf(args[args.length - 1]);
+	// Count the sentences first so that the split matches BigramModel.main
+	int[] numSentences = new int[1];
+	POSTaggedFile.forEachSentence(files, sentence -> numSentences[0]++);
+	int numTest = (int)Math.round(numSentences[0] * testFraction);
+	int numTrain = numSentences[0] - numTest;
+	Iterator<List<String>> sentences = POSTaggedFile.sentenceIterator(files);
+	Iterator<List<String>> trainSentences = new Iterator<List<String>>() {
+		int read = 0;
+		public boolean hasNext() {
+		    return read < numTrain && sentences.hasNext();
+		}
+		public List<String> next() {
+		    read++;
+		    return sentences.next();
+		}
+	    };
+	File spillDirectory = new File(System.getProperty("java.io.tmpdir"));
+	System.out.println("Training...");
+	long start = System.nanoTime();
+	BigramModel model = train(trainSentences, outFile, kind, spillDirectory, bufferBytes);
+	System.out.println("Trained and wrote " + outFile + " (" + outFile.length() + " bytes) in " +
+			   (System.nanoTime() - start) / 1000000 + " ms");
+	List<List<String>> testSentences = new ArrayList<List<String>>();
+	while (sentences.hasNext())
+	    testSentences.add(sentences.next());
+	System.out.println("Testing...");
+	model.test(testSentences);
+	model.test2(testSentences);
+    }
+}
@@ -0,0 +1,301 @@
+package nlp.lm;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A bigram model that keeps taking new training sentences after it has been
+ * trained, while other threads go on scoring with it.
+ *
+ * Only counts are stored, and probabilities are computed from them when a
+ * token is scored. trainSentence(s) counts sentences into pending counts,
+ * held in the vocabulary, unigramCounts, bigramTable and tokenCount fields
+ * inherited from BigramModel, and calculateProbs publishes them as a new
+ * immutable Snapshot. Snapshots share the vocabulary through a view rather
+ * than copying it, but publishing copies the unigram counts, so it takes
+ * time linear in the vocabulary size. The pending bigram counts become one
+ * more count table of the snapshot rather than being merged into the old
+ * ones. Tables are merged size-tiered: the newest is merged into the one
+ * before it while that one holds at most mergeRatio times as many bigrams,
+ * or while there are more than maxTables, so a bigram count is copied a
+ * logarithmic number of times however often the model is published.
+ *
+ * Scoring reads the current snapshot once per call, so every sentence is
+ * scored against one consistent state of the model, and evaluate scores a
+ * whole test set against one snapshot. Calling train again with new
+ * sentences counts them exactly as if they had been part of the earlier
+ * training data.
+ */
+
+public class IncrementalBigramModel extends BigramModel {
+
+    /** Most bigram count tables a snapshot holds before they are merged */
+    public int maxTables = 4;
+
+    /** A table is merged into the older table before it while that one
+     *  holds at most this many times as many bigrams */
+    public double mergeRatio = 2;
+
+    /** State that scoring reads, replaced as a whole by calculateProbs */
+    protected volatile Snapshot snapshot;
+
+    /** Create an untrained model */
+    public IncrementalBigramModel() {
+	snapshot = new Snapshot(vocabulary.view(), new double[vocabulary.size()], 0, new BigramTable[0]);
+    }
+
+    /** Return the state of the model as of the last calculateProbs */
+    public Snapshot snapshot() {
+	return snapshot;
+    }
+
+    @Override
+    public synchronized void train (List<List<String>> sentences) {
+	super.train(sentences);
+    }
+
+    @Override
+    public synchronized void trainSentences (List<List<String>> sentences) {
+	super.trainSentences(sentences);
+    }
+
+    @Override
+    public synchronized void trainSentence (List<String> sentence) {
+	super.trainSentence(sentence);
+    }
+
+    /** Publish the counts of the sentences trained on since the last call
+     *  as a new snapshot */
+    @Override
+    public synchronized void calculateProbs() {
+	long start = System.nanoTime();
+	Snapshot current = snapshot;
+	int numTokens = vocabulary.size();
+	double[] counts = Arrays.copyOf(current.unigramCounts, numTokens);
+	for (int id = 0; id < numTokens; id++)
+	    counts[id] += unigramCounts[id];
+	BigramTable[] tables = current.bigramTables;
+	if (bigramTable.size() > 0) {
+	    tables = Arrays.copyOf(tables, tables.length + 1);
+	    tables[tables.length - 1] = bigramTable;
+	    tables = mergeTiers(tables);
+	}
+	snapshot = new Snapshot(vocabulary.view(), counts, current.tokenCount + tokenCount, tables);
+	// Start counting the next sentences from zero
+	unigramCounts = new double[unigramCounts.length];
+	bigramTable = new BigramTable();
+	tokenCount = 0;
+	probsVersion++;
+	Metrics.global().calculateProbs.record(start, 1);
+    }
+
+    /** Merge the newest of tables, oldest first, into the one before it
+     *  while that one is not much larger or there are too many tables.
+     *  Merged tables are new, so the tables of older snapshots are kept */
+    protected BigramTable[] mergeTiers(BigramTable[] tables) {
+	int numTables = tables.length;
+	while (numTables > 1 &&
+	       (numTables > maxTables ||
+		tables[numTables - 2].size() <= mergeRatio * tables[numTables - 1].size())) {
+	    tables[numTables - 2] = merge(new BigramTable[] {tables[numTables - 2], tables[numTables - 1]});
+	    numTables--;
+	}
+	return Arrays.copyOf(tables, numTables);
+    }
+
+    /** Return a single table holding the summed counts of tables */
+    protected static BigramTable merge(BigramTable[] tables) {
+	int size = 0;
+	for (BigramTable table : tables)
+	    size += table.size();
+	BigramTable merged = new BigramTable(size);
+	for (BigramTable table : tables)
+	    merged.addCounts(table);
+	return merged;
+    }
+
+    @Override
+    public int tokenId (String token) {
+	return snapshot.tokenId(token);
+    }
+
+    @Override
+    public boolean inVocabulary (String token) {
+	return snapshot.inVocabulary(token);
+    }
+
+    @Override
+    public double tokenProb (int prevId, int id) {
+	return snapshot.tokenProb(prevId, id);
+    }
+
+    @Override
+    public double unigramProb (int id) {
+	return snapshot.unigramProb(id);
+    }
+
+    @Override
+    public double bigramProb (int prevId, int id) {
+	return snapshot.bigramProb(prevId, id);
+    }
+
+    @Override
+    protected double sentenceLogProb (List<String> sentence, boolean includeEnd, long[] oovCount) {
+	return snapshot.sentenceLogProb(sentence, includeEnd, oovCount);
+    }
+
+    @Override
+    public List<Prediction> predictNext (String token, int k) {
+	return snapshot.predictNext(token, k);
+    }
+
+    @Override
+    public int bigramCount () {
+	return snapshot.bigramCount();
+    }
+
+    /** Counts pending publication plus those of the current snapshot,
+     *  whose vocabulary is a view sharing the model's arrays */
+    @Override
+    public long estimatedHeapBytes () {
+	Snapshot current = snapshot;
+	return super.estimatedHeapBytes() + current.estimatedHeapBytes() - current.vocabulary.estimatedBytes();
+    }
+
+    @Override
+    public double[] sentenceTokenProbs (List<String> sentence) {
+	return snapshot.sentenceTokenProbs(sentence);
+    }
+
+    @Override
+    public List<ScoredSentence> rescore (List<List<String>> candidates, boolean withTokenProbs) {
+	return snapshot.rescore(candidates, withTokenProbs);
+    }
+
+    @Override
+    public List<List<ScoredSentence>> rescoreBatches (List<List<List<String>>> batches, boolean withTokenProbs) {
+	return NbestRescorer.rescore(snapshot, batches, withTokenProbs, testThreads);
+    }
+
+    @Override
+    public EvaluationResult evaluate (List<List<String>> sentences, boolean includeEnd, int threads) {
+	return snapshot.evaluate(sentences, includeEnd, threads);
+    }
+
+    /**
+     * Immutable counts of an IncrementalBigramModel at one point in time.
+     * Its vocabulary is a view of the model's, its unigramCounts and
+     * tokenCount fields hold the totals so far, and bigram counts are the
+     * sums over bigramTables. It scores with the interpolation weights of
+     * the model it belongs to. Its unigramMap view shows counts; it has no
+     * bigramTable of its own, so its bigramMap view is empty, use
+     * bigramCount.
+     */
+    public class Snapshot extends BigramModel {
+
+	/** Tables whose counts add up to the bigram counts */
+	protected final BigramTable[] bigramTables;
+
+	protected Snapshot(Vocabulary vocabulary, double[] unigramCounts, double tokenCount,
+			   BigramTable[] bigramTables) {
+	    super(vocabulary, unigramCounts, null);
+	    this.tokenCount = tokenCount;
+	    this.bigramTables = bigramTables;
+	}
+
+	/** Return the count of the bigram summed over all tables */
+	public double bigramCount (int prevId, int id) {
+	    double count = 0;
+	    for (BigramTable table : bigramTables)
+		count += table.count(prevId, id);
+	    return count;
+	}
+
+	/** Unigram probs are computed from counts when they are needed */
+	@Override
+	public double unigramProb (int id) {
+	    return unigramCounts[id] / tokenCount;
+	}
+
+	/** Bigram probs are computed from counts when they are needed */
+	@Override
+	public double bigramProb (int prevId, int id) {
+	    double bigramCount = bigramCount(prevId, id);
+	    return bigramCount == 0 ? 0 : bigramCount / unigramCounts[prevId];
+	}
+
+	@Override
+	public double interpolatedProb (double unigramProb, double bigramProb) {
+	    return IncrementalBigramModel.this.interpolatedProb(unigramProb, bigramProb);
+	}
+
+	/** Return the number of bigrams summed over the tables, counting a
+	 *  bigram once for each table holding it */
+	@Override
+	public int bigramCount () {
+	    int count = 0;
+	    for (BigramTable table : bigramTables)
+		count += table.size();
+	    return count;
+	}
+
+	@Override
+	public long estimatedHeapBytes () {
+	    long bytes = super.estimatedHeapBytes();
+	    for (BigramTable table : bigramTables)
+		bytes += table.estimatedBytes();
+	    return bytes;
+	}
+
+	/** Successors are indexed from the summed counts of all tables */
+	@Override
+	protected BigramTable successorTable () {
+	    return merge(bigramTables);
+	}
+
+	/** A snapshot is immutable */
+	@Override
+	public void trainSentence (List<String> sentence) {
+	    throw new UnsupportedOperationException("A snapshot cannot be trained");
+	}
+
+	/** A snapshot is immutable */
+	@Override
+	public void trainSentences (List<List<String>> sentences) {
+	    throw new UnsupportedOperationException("A snapshot cannot be trained");
+	}
+
+	/** Probs are computed from counts when they are needed */
+	@Override
+	public void calculateProbs() {
+	}
+    }
+
+    /** Train an incremental model in batches and test it after each one.
+     *  Command format: "nlp.lm.IncrementalBigramModel [DIR]* [TestFrac]" as
+     *  for BigramModel. The training sentences are added in four batches */
+    public static void main(String[] args) throws IOException {
+	File[] files = new File[args.length - 1];
+	for (int i = 0; i < files.length; i++) 
+	    files[i] = new File(args[i]);
+	double testFraction = Double.valueOf(args[args.length -1]);
+	List<List<String>> sentences = POSTaggedFile.convertToTokenLists(files);
+	int numSentences = sentences.size();
+	int numTest = (int)Math.round(numSentences * testFraction);
+	List<List<String>> testSentences = sentences.subList(numSentences - numTest, numSentences);
+	List<List<String>> trainSentences = sentences.subList(0, numSentences - numTest);
+	IncrementalBigramModel model = new IncrementalBigramModel();
+	int numBatches = 4;
+	for (int batch = 0; batch < numBatches; batch++) {
+	    int start = batch * trainSentences.size() / numBatches;
+	    int end = (batch + 1) * trainSentences.size() / numBatches;
+	    long time = System.nanoTime();
+	    model.train(trainSentences.subList(start, end));
+	    System.out.println("Added " + (end - start) + " sentences in " +
+			       (System.nanoTime() - time) / 1e6 + " ms");
+	    System.out.println("Testing...");
+	    model.test(testSentences);
+	    model.test2(testSentences);
+	}
+    }
+}
@@ -0,0 +1,161 @@
+package nlp.lm;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A bigram model smoothed with interpolated modified Kneser-Ney (Chen and
+ * Goodman) instead of fixed linear interpolation. It is trained on the same
+ * counts as BigramModel:
+ *   P(B | A) = max(c(A B) - D(c(A B)), 0) / c(A) + gamma(A) * Pcont(B)
+ * where D is one of three discounts, for bigrams seen once, twice and three
+ * or more times, estimated from the number of bigrams seen 1 to 4 times;
+ * gamma(A) is the probability mass the discounts of A's bigrams free up;
+ * and the continuation prob Pcont(B) is the fraction of distinct bigrams
+ * that end in B.
+ *
+ * calculateProbs finds the discounts, gammas and continuation counts in one
+ * pass over the bigrams and stores the discounted bigram probs in the
+ * bigram table, so scoring a token takes one table lookup and two array
+ * reads. lambda1 and lambda2 are not used. Log space scoring is not
+ * available, since the backoff prob of a token depends on its context.
+ */
+
+public class KneserNeyBigramModel extends BigramModel {
+
+    /** Discounts of bigrams seen once, twice and three or more times, at
+     *  indexes 1 to 3 */
+    public double[] discounts = new double[4];
+
+    /** Weight gamma of the continuation prob after each context token */
+    protected double[] backoffWeights = new double[0];
+
+    /** Compute discounts, backoff weights and continuation probs from the
+     *  counts. unigramProbs holds the continuation probs */
+    @Override
+    public void calculateProbs() {
+	long start = System.nanoTime();
+	backoffLogProbs = null;
+	bigramLogProbs = null;
+	successorIndex = null;
+	probsVersion++;
+	int numTokens = vocabulary.size();
+	double[] continuationCounts = new double[numTokens];
+	// Distinct bigrams seen once, twice and three or more times after each context
+	double[][] contextCounts = new double[4][numTokens];
+	// Number of distinct bigrams seen exactly 1 to 4 times
+	double[] countOfCounts = new double[5];
+	double numBigrams = 0;
+	for (int slot = 0; slot < bigramTable.capacity(); slot++) {
+	    if (!bigramTable.isOccupied(slot))
+		continue;
+	    double count = bigramTable.countAt(slot);
+	    if (count <= 0)
+		continue;
+	    long key = bigramTable.keyAt(slot);
+	    continuationCounts[BigramTable.id(key)]++;
+	    numBigrams++;
+	    if (count <= 4)
+		countOfCounts[(int) count]++;
+	    contextCounts[bucket(count)][BigramTable.prevId(key)]++;
+	}
+	double y = countOfCounts[1] / (countOfCounts[1] + 2 * countOfCounts[2]);
+	for (int k = 1; k <= 3; k++)
+	    discounts[k] = discount(k - (k + 1) * y * countOfCounts[k + 1] / countOfCounts[k], k, y);
+	backoffWeights = new double[numTokens];
+	for (int id = 0; id < numTokens; id++) {
+	    double count = unigramCounts[id];
+	    // A context never seen backs off to the continuation prob alone
+	    backoffWeights[id] = count == 0 ? 1 : (discounts[1] * contextCounts[1][id]
+		+ discounts[2] * contextCounts[2][id] + discounts[3] * contextCounts[3][id]) / count;
+	}
+	for (int slot = 0; slot < bigramTable.capacity(); slot++) {
+	    if (!bigramTable.isOccupied(slot))
+		continue;
+	    double count = bigramTable.countAt(slot);
+	    double contextCount = unigramCounts[BigramTable.prevId(bigramTable.keyAt(slot))];
+	    bigramTable.setProbAt(slot, count <= 0 ? 0 : Math.max(count - discounts[bucket(count)], 0) / contextCount);
+	}
+	unigramProbs = new double[numTokens];
+	for (int id = 0; id < numTokens; id++)
+	    unigramProbs[id] = numBigrams == 0 ? 0 : continuationCounts[id] / numBigrams;
+	probsCalculated = true;
+	Metrics.global().calculateProbs.record(start, 1);
+    }
+
+    /** Discount bucket of a bigram count: 1, 2, or 3 for three or more */
+    protected static int bucket(double count) {
+	return count < 2 ? 1 : count < 3 ? 2 : 3;
+    }
+
+    /** Return discount estimate for bucket k, or fallback if there were too
+     *  few bigrams for it to lie between 0 and k */
+    protected static double discount(double estimate, int k, double fallback) {
+	if (estimate >= 0 && estimate <= k)
+	    return estimate;
+	return fallback >= 0 && fallback <= 1 ? fallback : 0.5;
+    }
+
+    /** Discounted bigram prob plus the backoff mass of the context spread
+     *  by continuation prob */
+    @Override
+    protected double tokenProb (int prevId, int id, double bigramProb) {
+	return bigramProb + backoffWeights[prevId] * unigramProbs[id];
+    }
+
+    /** The backoff prob depends on the context, so no logs are stored */
+    @Override
+    protected boolean useLogProbs() {
+	return false;
+    }
+
+    @Override
+    public void calculateLogProbs() {
+	throw new UnsupportedOperationException("A Kneser-Ney model has no context independent backoff probs to store");
+    }
+
+    /** The backoff mass of the context, spread by continuation prob */
+    @Override
+    protected double backoffWeight (int prevId) {
+	return backoffWeights[prevId];
+    }
+
+    @Override
+    public long estimatedHeapBytes () {
+	return super.estimatedHeapBytes() + arrayBytes(backoffWeights);
+    }
+
+    /** Train Kneser-Ney and linearly interpolated bigram models on the
+     *  same data and compare their training time, memory and perplexity.
+     *  Command format: "nlp.lm.KneserNeyBigramModel [DIR]* [TestFrac]"
+     *  with DIR and TestFrac as for BigramModel.main
+     */
+    public static void main(String[] args) throws IOException {
+	// All but last arg is a file/directory of LDC tagged input data
+	File[] files = new File[args.length - 1];
+	for (int i = 0; i < files.length; i++)
+	    files[i] = new File(args[i]);
+	// Last arg is the TestFrac
+	double testFraction = Double.valueOf(args[args.length -1]);
+	List<List<String>> sentences = POSTaggedFile.convertToTokenLists(files);
+	int numSentences = sentences.size();
+	int numTest = (int)Math.round(numSentences * testFraction);
+	List<List<String>> testSentences = sentences.subList(numSentences - numTest, numSentences);
+	List<List<String>> trainSentences = sentences.subList(0, numSentences - numTest);
+	System.out.println("# Train Sentences = " + trainSentences.size() +
+			   " (# words = " + wordCount(trainSentences) +
+			   ") \n# Test Sentences = " + testSentences.size() +
+			   " (# words = " + wordCount(testSentences) + ")");
+	for (BigramModel model : new BigramModel[] {new BigramModel(), new KneserNeyBigramModel()}) {
+	    long start = System.nanoTime();
+	    model.train(trainSentences);
+	    long trainNanos = System.nanoTime() - start;
+	    System.out.println(model.getClass().getSimpleName() + ": trained in " + trainNanos / 1000000 +
+			       " ms, estimated heap bytes = " + model.estimatedHeapBytes());
+	    if (model instanceof KneserNeyBigramModel)
+		System.out.println("Discounts = " + Arrays.toString(Arrays.copyOfRange(((KneserNeyBigramModel) model).discounts, 1, 4)));
+	    System.out.println("Test: " + model.evaluate(testSentences, true));
+	    System.out.println("Test word: " + model.evaluate(testSentences, false));
+	}
+    }
+}
@@ -0,0 +1,81 @@
+package nlp.lm;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies for reporting percentiles such as p50
+ * and p99. Values are counted in log-linear buckets: exact below 16
+ * microseconds, then 16 buckets per power of two, so a reported percentile
+ * is within about 6% of the true value. Recording is a single atomic
+ * increment, cheap enough for every request.
+ */
+
+public class LatencyHistogram {
+
+    /** Buckets per power of two, and number of exact buckets at the start */
+    protected static final int SUB_BUCKETS = 16;
+
+    /** Number of buckets, enough for latencies up to 2^40 microseconds */
+    protected static final int NUM_BUCKETS = SUB_BUCKETS * 37;
+
+    /** Count of recorded values in each bucket */
+    protected final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+
+    /** Record a latency measured in nanoseconds */
+    public void record(long nanos) {
+	counts.incrementAndGet(bucket(Math.max(0, nanos / 1000)));
+    }
+
+    /** Bucket of a latency in microseconds */
+    protected static int bucket(long micros) {
+	if (micros < SUB_BUCKETS)
+	    return (int) micros;
+	// The four bits below the highest set bit choose the sub-bucket
+	int exponent = 63 - Long.numberOfLeadingZeros(micros) - 4;
+	int subBucket = (int) (micros >>> exponent) - SUB_BUCKETS;
+	return Math.min(NUM_BUCKETS - 1, SUB_BUCKETS * exponent + SUB_BUCKETS + subBucket);
+    }
+
+    /** Smallest latency in microseconds that falls in a bucket */
+    protected static long bucketStart(int bucket) {
+	if (bucket < SUB_BUCKETS)
+	    return bucket;
+	int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+	int subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+	return (long) (SUB_BUCKETS + subBucket) << exponent;
+    }
+
+    /** Return the number of recorded values */
+    public long count() {
+	long count = 0;
+	for (int i = 0; i < NUM_BUCKETS; i++)
+	    count += counts.get(i);
+	return count;
+    }
+
+    /** Return the latency in microseconds below which a fraction q of the
+     *  recorded values fall, 0 if nothing has been recorded */
+    public long percentile(double q) {
+	long[] snapshot = new long[NUM_BUCKETS];
+	long total = 0;
+	for (int i = 0; i < NUM_BUCKETS; i++) {
+	    snapshot[i] = counts.get(i);
+	    total += snapshot[i];
+	}
+	if (total == 0)
+	    return 0;
+	long rank = Math.max(1, (long) Math.ceil(q * total));
+	long seen = 0;
+	for (int i = 0; i < NUM_BUCKETS; i++) {
+	    seen += snapshot[i];
+	    if (seen >= rank)
+		return bucketStart(i);
+	}
+	return bucketStart(NUM_BUCKETS - 1);
+    }
+
+    public String toString() {
+	return "count = " + count() + ", p50 = " + percentile(0.5) + " us, p99 = " +
+	    percentile(0.99) + " us, p999 = " + percentile(0.999) + " us";
+    }
+}
@@ -0,0 +1,204 @@
+package nlp.lm;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * A read-only bigram model whose vocabulary, unigram probabilities and bigram
+ * table are read straight out of a ByteBuffer holding one model block of a
+ * ModelFile, normally a memory-mapped file. Nothing is copied onto the heap,
+ * so loading costs a single mmap and processes scoring the same file share
+ * its pages through the OS cache. See ModelFile for the layout of a block.
+ *
+ * No vocabulary, counts or bigram table are allocated on the heap, so the
+ * unigramMap and bigramMap views of BigramModel are empty.
+ */
+
+public class MappedBigramModel extends BigramModel implements SuccessorIndex.Rows {
+
+    /** Buffer holding the model, only read with absolute gets so that it
+     *  can be shared by concurrent scoring threads */
+    protected final ByteBuffer buffer;
+
+    /** Whether the block was written from a backward model, in which case
+     *  sentences are reversed before they are scored */
+    protected final boolean backward;
+
+    /** Number of tokens, slots in the vocabulary hash table and bigrams */
+    protected final int numTokens, tableCapacity, numBigrams;
+
+    /** Byte offsets of the sections of the block in buffer */
+    protected final int tableOffset, hashesOffset, charStartsOffset, charsOffset,
+	unigramOffset, rowStartsOffset, bigramIdsOffset, bigramProbsOffset;
+
+    /** Create a model over the block starting at byte offset in buffer */
+    public MappedBigramModel(ByteBuffer buffer, int offset, boolean backward) {
+	super(null, null, null);
+	this.buffer = buffer;
+	this.backward = backward;
+	lambda1 = buffer.getDouble(offset);
+	lambda2 = buffer.getDouble(offset + 8);
+	numTokens = buffer.getInt(offset + 16);
+	tableCapacity = buffer.getInt(offset + 20);
+	numBigrams = buffer.getInt(offset + 24);
+	tokenCount = buffer.getDouble(offset + 32);
+	tableOffset = offset + ModelFile.BLOCK_HEADER_SIZE;
+	hashesOffset = tableOffset + 4 * tableCapacity;
+	charStartsOffset = hashesOffset + 4 * numTokens;
+	charsOffset = charStartsOffset + 4 * (numTokens + 1);
+	unigramOffset = ModelFile.align(charsOffset + 2 * buffer.getInt(charStartsOffset + 4 * numTokens));
+	rowStartsOffset = unigramOffset + 8 * numTokens;
+	bigramIdsOffset = rowStartsOffset + 4 * (numTokens + 1);
+	bigramProbsOffset = ModelFile.align(bigramIdsOffset + 4 * numBigrams);
+    }
+
+    /** Return the number of bytes of the block, up to the end of the bigram probs */
+    public int blockSize(int offset) {
+	return bigramProbsOffset + 8 * numBigrams - offset;
+    }
+
+    /** Return the number of tokens in the vocabulary */
+    @Override
+    public int vocabularySize () {
+	return numTokens;
+    }
+
+    /** Return the number of bigrams in the table */
+    @Override
+    public int bigramCount() {
+	return numBigrams;
+    }
+
+    /** Return the ID of token in the buffer's vocabulary, or -1 if absent */
+    @Override
+    public int vocabularyId (String token) {
+	int hash = token.hashCode();
+	int mask = tableCapacity - 1;
+	for (int slot = Vocabulary.spread(hash) & mask; ; slot = (slot + 1) & mask) {
+	    int id = buffer.getInt(tableOffset + 4 * slot);
+	    if (id < 0)
+		return -1;
+	    if (buffer.getInt(hashesOffset + 4 * id) == hash && tokenEquals(id, token))
+		return id;
+	}
+    }
+
+    /** Compare token with the characters of token ID id in the buffer */
+    protected boolean tokenEquals(int id, String token) {
+	int start = buffer.getInt(charStartsOffset + 4 * id);
+	int end = buffer.getInt(charStartsOffset + 4 * (id + 1));
+	if (end - start != token.length())
+	    return false;
+	for (int i = 0; i < token.length(); i++) {
+	    if (buffer.getChar(charsOffset + 2 * (start + i)) != token.charAt(i))
+		return false;
+	}
+	return true;
+    }
+
+    /** Return the token String with this ID, decoded from the buffer */
+    @Override
+    public String token (int id) {
+	int start = buffer.getInt(charStartsOffset + 4 * id);
+	int end = buffer.getInt(charStartsOffset + 4 * (id + 1));
+	char[] chars = new char[end - start];
+	for (int i = 0; i < chars.length; i++)
+	    chars[i] = buffer.getChar(charsOffset + 2 * (start + i));
+	return new String(chars);
+    }
+
+    /** Return the unigram probability of a token ID */
+    @Override
+    public double unigramProb (int id) {
+	return buffer.getDouble(unigramOffset + 8 * id);
+    }
+
+    /** Return P(id | prevId) by binary search of prevId's row of bigrams,
+     *  0 if the bigram was never seen */
+    @Override
+    public double bigramProb (int prevId, int id) {
+	int lo = rowStart(prevId);
+	int hi = rowStart(prevId + 1) - 1;
+	while (lo <= hi) {
+	    int mid = (lo + hi) >>> 1;
+	    int midId = rowId(mid);
+	    if (midId < id)
+		lo = mid + 1;
+	    else if (midId > id)
+		hi = mid - 1;
+	    else
+		return buffer.getDouble(bigramProbsOffset + 8 * mid);
+	}
+	return 0;
+    }
+
+    /** Tokens with zero unigram prob were only seen as <UNK> in training */
+    @Override
+    public int scoringId (int id) {
+	if (id < 0 || unigramProb(id) == 0)
+	    return UNK_ID;
+	return id;
+    }
+
+    @Override
+    protected List<String> trainingSequence (List<String> sentence) {
+	if (!backward)
+	    return sentence;
+	ArrayList<String> reverseSentence = new ArrayList<String>(sentence);
+	Collections.reverse(reverseSentence);
+	return reverseSentence;
+    }
+
+    @Override
+    protected double sentenceLogProb (List<String> sentence, boolean includeEnd, long[] oovCount) {
+	return super.sentenceLogProb(trainingSequence(sentence), includeEnd, oovCount);
+    }
+
+    @Override
+    public double[] sentenceTokenProbs (List<String> sentence) {
+	return super.sentenceTokenProbs(trainingSequence(sentence));
+    }
+
+    /** Return the index of the first bigram of prevId's row in the buffer */
+    public int rowStart (int prevId) {
+	return buffer.getInt(rowStartsOffset + 4 * prevId);
+    }
+
+    /** Return the second token of the bigram at index i in the buffer */
+    public int rowId (int i) {
+	return buffer.getInt(bigramIdsOffset + 4 * i);
+    }
+
+    /** Successors are indexed from the rows of the block */
+    @Override
+    protected SuccessorIndex newSuccessorIndex () {
+	return new SuccessorIndex(this, (SuccessorIndex.Rows) this);
+    }
+
+    /** The rows of a backward block hold preceding tokens, so it cannot
+     *  predict following ones and returns an empty list. Use predictNext
+     *  of the forward block, or predictPrevious of the bidirectional model */
+    @Override
+    public List<Prediction> predictNext (String token, int k) {
+	if (backward)
+	    return Collections.emptyList();
+	return super.predictNext(token, k);
+    }
+
+    /** A mapped model is read-only */
+    @Override
+    public void trainSentence (List<String> sentence) {
+	throw new UnsupportedOperationException("A mapped model cannot be trained");
+    }
+
+    /** A mapped model is read-only */
+    @Override
+    public void trainSentences (List<List<String>> sentences) {
+	throw new UnsupportedOperationException("A mapped model cannot be trained");
+    }
+
+    /** Probabilities are already stored in the buffer */
+    @Override
+    public void calculateProbs() {
+    }
+}
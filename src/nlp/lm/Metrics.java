@@ -0,0 +1,198 @@
+package nlp.lm;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.*;
+
+/**
+ * Counters and timers for parsing, training, probability calculation and
+ * scoring, kept once per JVM and read with global().
+ *
+ * Each phase counts its calls, the time spent in them and the units of
+ * work done (sentences parsed, tokens trained or scored). Sentence scoring
+ * also counts its predictions, how many were of <UNK> and how many had no
+ * bigram to back them. Everything is recorded once per file, batch or
+ * sentence into LongAdders, never per token and never under a lock, so the
+ * metrics are always on.
+ *
+ * register() publishes the metrics over JMX as nlp.lm:type=Metrics, and
+ * watch(model) makes them report the vocabulary size, bigram count and
+ * estimated heap bytes of a model.
+ */
+
+public class Metrics implements MetricsMBean {
+
+    /** Name the metrics are registered under with JMX */
+    public static final String OBJECT_NAME = "nlp.lm:type=Metrics";
+
+    /** The metrics of this JVM */
+    protected static final Metrics global = new Metrics();
+
+    /** Whether global has been registered with JMX */
+    protected static boolean registered = false;
+
+    /** Parsing POSTaggedFiles, in sentences */
+    public final Phase parse = new Phase();
+
+    /** trainSentences, in tokens counted including <S> and </S> */
+    public final Phase train = new Phase();
+
+    /** calculateProbs, in calls */
+    public final Phase calculateProbs = new Phase();
+
+    /** evaluate, test, test2 and rescore, in tokens predicted */
+    public final Phase score = new Phase();
+
+    /** Predictions made by sentence scoring, and those of <UNK> or
+     *  without a bigram */
+    protected final LongAdder predictions = new LongAdder();
+    protected final LongAdder oovPredictions = new LongAdder();
+    protected final LongAdder bigramMisses = new LongAdder();
+
+    /** Model whose size is reported, null if none */
+    protected volatile BigramModel model = null;
+
+    /** Return the metrics of this JVM */
+    public static Metrics global() {
+	return global;
+    }
+
+    /** Register the metrics of this JVM with the platform MBean server, if
+     *  they are not registered yet */
+    public static synchronized void register() {
+	if (registered)
+	    return;
+	try {
+	    ManagementFactory.getPlatformMBeanServer().registerMBean(global, new ObjectName(OBJECT_NAME));
+	    registered = true;
+	}
+	catch (JMException e) {
+	    throw new IllegalStateException("Could not register " + OBJECT_NAME, e);
+	}
+    }
+
+    /** Report the size of model from now on */
+    public void watch(BigramModel model) {
+	this.model = model;
+    }
+
+    /** Record the predictions of a scored sentence, oov of them of <UNK>
+     *  and misses of them without a bigram */
+    public void recordPredictions(long count, long oov, long misses) {
+	predictions.add(count);
+	if (oov != 0)
+	    oovPredictions.add(oov);
+	if (misses != 0)
+	    bigramMisses.add(misses);
+    }
+
+    /** Calls, time and units of work of one phase */
+    public static class Phase {
+	protected final LongAdder count = new LongAdder();
+	protected final LongAdder nanos = new LongAdder();
+	protected final LongAdder units = new LongAdder();
+
+	/** Record a call that started at System.nanoTime() startNanos and
+	 *  did units units of work */
+	public void record(long startNanos, long units) {
+	    nanos.add(System.nanoTime() - startNanos);
+	    count.increment();
+	    this.units.add(units);
+	}
+
+	/** Return the number of calls recorded */
+	public long count() {
+	    return count.sum();
+	}
+
+	/** Return the units of work recorded */
+	public long units() {
+	    return units.sum();
+	}
+
+	/** Return the time spent in the calls in milliseconds */
+	public double millis() {
+	    return nanos.sum() / 1e6;
+	}
+
+	/** Return units of work per second spent in the calls */
+	public double unitsPerSecond() {
+	    long time = nanos.sum();
+	    return time == 0 ? 0 : units.sum() * 1e9 / time;
+	}
+
+	protected void reset() {
+	    count.reset();
+	    nanos.reset();
+	    units.reset();
+	}
+
+	public String toString() {
+	    return count() + " calls, " + millis() + " ms, " + units() + " units, " + unitsPerSecond() + " units/s";
+	}
+    }
+
+    public long getParseCount() { return parse.count(); }
+    public double getParseMillis() { return parse.millis(); }
+    public long getParsedSentences() { return parse.units(); }
+    public double getParsedSentencesPerSecond() { return parse.unitsPerSecond(); }
+
+    public long getTrainCount() { return train.count(); }
+    public double getTrainMillis() { return train.millis(); }
+    public long getTrainedTokens() { return train.units(); }
+    public double getTrainedTokensPerSecond() { return train.unitsPerSecond(); }
+
+    public long getCalculateProbsCount() { return calculateProbs.count(); }
+    public double getCalculateProbsMillis() { return calculateProbs.millis(); }
+
+    public long getScoreCount() { return score.count(); }
+    public double getScoreMillis() { return score.millis(); }
+    public long getScoredTokens() { return score.units(); }
+    public double getScoredTokensPerSecond() { return score.unitsPerSecond(); }
+
+    public long getPredictions() {
+	return predictions.sum();
+    }
+
+    public double getOovRate() {
+	long count = predictions.sum();
+	return count == 0 ? 0 : (double) oovPredictions.sum() / count;
+    }
+
+    public double getBigramMissRate() {
+	long count = predictions.sum();
+	return count == 0 ? 0 : (double) bigramMisses.sum() / count;
+    }
+
+    public int getVocabularySize() {
+	BigramModel watched = model;
+	return watched == null ? 0 : watched.vocabularySize();
+    }
+
+    public long getBigramCount() {
+	BigramModel watched = model;
+	return watched == null ? 0 : watched.bigramCount();
+    }
+
+    public long getEstimatedHeapBytes() {
+	BigramModel watched = model;
+	return watched == null ? 0 : watched.estimatedHeapBytes();
+    }
+
+    public void reset() {
+	parse.reset();
+	train.reset();
+	calculateProbs.reset();
+	score.reset();
+	predictions.reset();
+	oovPredictions.reset();
+	bigramMisses.reset();
+    }
+
+    public String toString() {
+	return "parse: " + parse + "\ntrain: " + train + "\ncalculateProbs: " + calculateProbs +
+	    "\nscore: " + score + "\npredictions = " + getPredictions() + ", OOV rate = " + getOovRate() +
+	    ", bigram miss rate = " + getBigramMissRate() + "\nvocabulary = " + getVocabularySize() +
+	    ", bigrams = " + getBigramCount() + ", estimated heap bytes = " + getEstimatedHeapBytes();
+    }
+}
@@ -0,0 +1,47 @@
+package nlp.lm;
+
+/**
+ * Management interface of Metrics, as seen by JMX clients such as jconsole.
+ * Times are in milliseconds and rates per second of wall clock time spent
+ * in each phase.
+ */
+
+public interface MetricsMBean {
+
+    /** Files parsed, time spent parsing them and sentences read */
+    long getParseCount();
+    double getParseMillis();
+    long getParsedSentences();
+    double getParsedSentencesPerSecond();
+
+    /** Calls of trainSentences, time spent in them and tokens counted */
+    long getTrainCount();
+    double getTrainMillis();
+    long getTrainedTokens();
+    double getTrainedTokensPerSecond();
+
+    /** Calls of calculateProbs and time spent in them */
+    long getCalculateProbsCount();
+    double getCalculateProbsMillis();
+
+    /** Batches scored by evaluate, test, test2 or rescore, time spent
+     *  scoring them and tokens predicted */
+    long getScoreCount();
+    double getScoreMillis();
+    long getScoredTokens();
+    double getScoredTokensPerSecond();
+
+    /** Predictions made by sentence scoring, of a token or </S>, and the
+     *  fractions of them that were <UNK> or had no bigram to back them */
+    long getPredictions();
+    double getOovRate();
+    double getBigramMissRate();
+
+    /** Size of the watched model, 0 if none is watched */
+    int getVocabularySize();
+    long getBigramCount();
+    long getEstimatedHeapBytes();
+
+    /** Set all counters back to zero */
+    void reset();
+}
@@ -0,0 +1,326 @@
+package nlp.lm;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Compact binary format for trained bigram models, written once and then
+ * loaded with FileChannel.map so that scoring processes start without
+ * re-parsing and retraining. A file holds a header followed by one model
+ * block, or two (forward then backward) for a BidirectionalBigramModel.
+ *
+ * Header: magic, version, kind, number of blocks (ints), forwardWeight,
+ * backwardWeight (doubles) and the byte offset of each block (longs).
+ *
+ * Block: lambda1, lambda2 (doubles), number of tokens V, vocabulary table
+ * capacity H, number of bigrams B (ints), tokenCount (double), then
+ *   int[H]      vocabulary hash table of IDs, laid out as in Vocabulary
+ *   int[V]      String hash code of each token
+ *   int[V+1]    start of each token in the character section
+ *   char[]      characters of all tokens
+ *   double[V]   unigram probability of each token, 0 for <UNK>-only tokens
+ *   int[V+1]    start of each token's row in the bigram arrays
+ *   int[B]      second token of each bigram, sorted within each row
+ *   double[B]   P(second | first) of each bigram
+ * Every section after the characters and after the bigram IDs starts on
+ * an 8 byte boundary. All values are big-endian.
+ *
+ * A single mapping is limited to 2GB, which bounds the size of a file.
+ */
+
+public class ModelFile {
+
+    /** First int of every model file, "NGLM" */
+    public static final int MAGIC = 0x4E474C4D;
+
+    /** Version of the layout described above */
+    public static final int VERSION = 1;
+
+    /** Kinds of model a file can hold */
+    public static final int FORWARD = 0, BACKWARD = 1, BIDIRECTIONAL = 2;
+
+    /** Size of the file header in bytes */
+    public static final int FILE_HEADER_SIZE = 48;
+
+    /** Size of the header of a model block in bytes */
+    public static final int BLOCK_HEADER_SIZE = 40;
+
+    /** Round a byte offset up to the next multiple of 8 */
+    public static int align(int offset) {
+	return (offset + 7) & ~7;
+    }
+
+    /** Write a trained BigramModel, BackwardBigramModel or
+     *  BidirectionalBigramModel (including the shared variants) to file */
+    public static void write(BigramModel model, File file) throws IOException {
+	BigramModel[] blocks = blocks(model);
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+	try {
+	    write(model, blocks, out);
+	}
+	finally {
+	    out.close();
+	}
+    }
+
+    /** Write model, whose blocks are blocks, in the model file format to
+     *  out, which must be at the start of the file */
+    protected static void write(BigramModel model, BigramModel[] blocks, DataOutputStream out) throws IOException {
+	int kind;
+	double forwardWeight = 1, backwardWeight = 0;
+	if (model instanceof BidirectionalBigramModel) {
+	    kind = BIDIRECTIONAL;
+	    forwardWeight = ((BidirectionalBigramModel) model).forwardWeight;
+	    backwardWeight = ((BidirectionalBigramModel) model).backwardWeight;
+	}
+	else {
+	    kind = model instanceof BackwardBigramModel ? BACKWARD : FORWARD;
+	}
+	long[] sizes = new long[blocks.length];
+	for (int i = 0; i < blocks.length; i++)
+	    sizes[i] = blockSize(blocks[i]);
+	writeHeader(out, kind, forwardWeight, backwardWeight, sizes);
+	for (BigramModel block : blocks)
+	    writeBlock(block, out);
+    }
+
+    /** Return the number of bytes of a model file with these blocks */
+    protected static long fileSize(BigramModel[] blocks) {
+	long size = FILE_HEADER_SIZE;
+	for (BigramModel block : blocks)
+	    size += blockSize(block);
+	return size;
+    }
+
+    /** Return the models written as the blocks of model, checking that
+     *  they can be written */
+    protected static BigramModel[] blocks(BigramModel model) {
+	BigramModel[] blocks;
+	if (model instanceof BidirectionalBigramModel) {
+	    BidirectionalBigramModel bidirectional = (BidirectionalBigramModel) model;
+	    blocks = new BigramModel[] {bidirectional.bigramModel, bidirectional.backwardBigramModel};
+	}
+	else {
+	    blocks = new BigramModel[] {model};
+	}
+	for (int i = 0; i < blocks.length; i++) {
+	    // A backward model sharing forward counts is written as a model of its own
+	    if (blocks[i] instanceof SharedBackwardBigramModel)
+		blocks[i] = ((SharedBackwardBigramModel) blocks[i]).toBackwardBigramModel();
+	    BigramModel block = blocks[i];
+	    if (block instanceof NgramModel && ((NgramModel) block).order > 2)
+		throw new IllegalArgumentException("A model file only holds bigram models");
+	    if (block instanceof KneserNeyBigramModel)
+		throw new IllegalArgumentException("A model file only holds linearly interpolated models");
+	    if (block instanceof MappedBigramModel)
+		throw new IllegalArgumentException("Model is already backed by a model file");
+	    if (block instanceof CompactBigramModel)
+		throw new IllegalArgumentException("A compacted model has no bigram table to write");
+	    if (block instanceof IncrementalBigramModel || block instanceof IncrementalBigramModel.Snapshot)
+		throw new IllegalArgumentException("An incremental model's bigram counts are not in one table");
+	    if (!block.probsCalculated)
+		throw new IllegalStateException("Model must be trained before it is written");
+	}
+	return blocks;
+    }
+
+    /** Write the file header for blocks of the given sizes in bytes, which
+     *  must follow it in order */
+    protected static void writeHeader(DataOutputStream out, int kind, double forwardWeight,
+				      double backwardWeight, long[] blockSizes) throws IOException {
+	out.writeInt(MAGIC);
+	out.writeInt(VERSION);
+	out.writeInt(kind);
+	out.writeInt(blockSizes.length);
+	out.writeDouble(forwardWeight);
+	out.writeDouble(backwardWeight);
+	// Blocks follow each other, so the second starts after the first
+	long offset = FILE_HEADER_SIZE;
+	long[] offsets = new long[2];
+	for (int i = 0; i < blockSizes.length; i++) {
+	    offsets[i] = offset;
+	    offset += blockSizes[i];
+	}
+	if (offset > Integer.MAX_VALUE)
+	    throw new IOException("Model too large for a model file: " + offset + " bytes");
+	out.writeLong(offsets[0]);
+	out.writeLong(offsets[1]);
+    }
+
+    /** Return the number of bytes writeBlock will write for model */
+    protected static long blockSize(BigramModel model) {
+	return blockSize(model.vocabulary, model.bigramTable.size());
+    }
+
+    /** Return the number of bytes of a block with this vocabulary and
+     *  number of bigrams */
+    protected static long blockSize(Vocabulary vocabulary, long numBigrams) {
+	long chars = 0;
+	for (int id = 0; id < vocabulary.size(); id++)
+	    chars += vocabulary.token(id).length();
+	long size = BLOCK_HEADER_SIZE + 4L * vocabulary.table.length + 4L * vocabulary.size()
+	    + 4L * (vocabulary.size() + 1) + 2 * chars;
+	size = (size + 7) & ~7;
+	size += 8L * vocabulary.size() + 4L * (vocabulary.size() + 1) + 4L * numBigrams;
+	size = (size + 7) & ~7;
+	return size + 8L * numBigrams;
+    }
+
+    /** Write the block for one direction of a trained model, starting on
+     *  an 8 byte boundary */
+    protected static void writeBlock(BigramModel model, DataOutputStream out) throws IOException {
+	Vocabulary vocabulary = model.vocabulary;
+	int numTokens = vocabulary.size();
+	BigramTable table = model.bigramTable;
+	// Sort bigrams by their packed key, which orders them by first then second ID
+	long[] keys = new long[table.size()];
+	int numBigrams = 0;
+	for (int slot = 0; slot < table.capacity(); slot++) {
+	    if (table.isOccupied(slot))
+		keys[numBigrams++] = table.keyAt(slot);
+	}
+	Arrays.sort(keys);
+	int start = writeBlockHead(out, model.lambda1, model.lambda2, vocabulary, numBigrams,
+				   model.tokenCount, model.unigramProbs);
+	// Row of each token runs up to the first bigram with a larger first ID
+	int bigram = 0;
+	for (int id = 0; id <= numTokens; id++) {
+	    while (bigram < numBigrams && BigramTable.prevId(keys[bigram]) < id)
+		bigram++;
+	    out.writeInt(bigram);
+	}
+	for (long key : keys)
+	    out.writeInt(BigramTable.id(key));
+	pad(out, start);
+	for (long key : keys)
+	    out.writeDouble(table.probAt(table.find(BigramTable.prevId(key), BigramTable.id(key))));
+    }
+
+    /** Write a block up to the end of the unigram probs, that is its header,
+     *  vocabulary and unigram probs, and return where the block started */
+    protected static int writeBlockHead(DataOutputStream out, double lambda1, double lambda2,
+					Vocabulary vocabulary, int numBigrams, double tokenCount,
+					double[] unigramProbs) throws IOException {
+	int numTokens = vocabulary.size();
+	int start = out.size();
+	out.writeDouble(lambda1);
+	out.writeDouble(lambda2);
+	out.writeInt(numTokens);
+	out.writeInt(vocabulary.table.length);
+	out.writeInt(numBigrams);
+	out.writeInt(0);
+	out.writeDouble(tokenCount);
+	for (int id : vocabulary.table)
+	    out.writeInt(id);
+	for (int id = 0; id < numTokens; id++)
+	    out.writeInt(vocabulary.hashes[id]);
+	int charStart = 0;
+	for (int id = 0; id < numTokens; id++) {
+	    out.writeInt(charStart);
+	    charStart += vocabulary.token(id).length();
+	}
+	out.writeInt(charStart);
+	for (int id = 0; id < numTokens; id++)
+	    out.writeChars(vocabulary.token(id));
+	pad(out, start);
+	for (int id = 0; id < numTokens; id++)
+	    out.writeDouble(id < unigramProbs.length ? unigramProbs[id] : 0);
+	return start;
+    }
+
+    /** Write zero bytes up to the next 8 byte boundary, relative to a block
+     *  start that is itself aligned */
+    protected static void pad(DataOutputStream out, int start) throws IOException {
+	while (((out.size() - start) & 7) != 0)
+	    out.writeByte(0);
+    }
+
+    /** Map a model file into memory and return a read-only model scoring
+     *  straight from the mapping */
+    public static BigramModel load(File file) throws IOException {
+	ByteBuffer buffer;
+	FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+	try {
+	    if (channel.size() > Integer.MAX_VALUE)
+		throw new IOException("Model file too large to map: " + file);
+	    // The mapping stays valid after the channel is closed
+	    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+	}
+	finally {
+	    channel.close();
+	}
+	return open(buffer);
+    }
+
+    /** Return a read-only model over a buffer holding a whole model file */
+    public static BigramModel open(ByteBuffer buffer) throws IOException {
+	return open(buffer, MappedBigramModel::new);
+    }
+
+    /** Creates the model over one block of a buffer */
+    protected interface BlockModel {
+	MappedBigramModel create(ByteBuffer buffer, int offset, boolean backward);
+    }
+
+    /** Return a read-only model over a buffer holding a whole model file,
+     *  with blocks read by the models blockModel creates */
+    protected static BigramModel open(ByteBuffer buffer, BlockModel blockModel) throws IOException {
+	if (buffer.capacity() < FILE_HEADER_SIZE || buffer.getInt(0) != MAGIC)
+	    throw new IOException("Not a model file");
+	if (buffer.getInt(4) != VERSION)
+	    throw new IOException("Unsupported model file version " + buffer.getInt(4));
+	int kind = buffer.getInt(8);
+	int block0 = (int) buffer.getLong(32);
+	int block1 = (int) buffer.getLong(40);
+	switch (kind) {
+	case FORWARD:
+	    return blockModel.create(buffer, block0, false);
+	case BACKWARD:
+	    return blockModel.create(buffer, block0, true);
+	case BIDIRECTIONAL:
+	    BidirectionalBigramModel model =
+		new BidirectionalBigramModel(blockModel.create(buffer, block0, false),
+					     blockModel.create(buffer, block1, true));
+	    model.forwardWeight = buffer.getDouble(16);
+	    model.backwardWeight = buffer.getDouble(24);
+	    return model;
+	default:
+	    throw new IOException("Unknown model kind " + kind);
+	}
+    }
+
+    /** Train a model, write it to a model file and check the file by
+     *  mapping it back in and testing it.
+     *  Command format: "nlp.lm.ModelFile [Model] [OutFile] [DIR]* [TestFrac]"
+     *  where Model is BigramModel, BackwardBigramModel or
+     *  BidirectionalBigramModel, and DIR and TestFrac are as for
+     *  BigramModel.main */
+    public static void main(String[] args) throws Exception {
+	BigramModel model = (BigramModel) Class.forName("nlp.lm." + args[0])
+	    .getDeclaredConstructor().newInstance();
+	File outFile = new File(args[1]);
+	File[] files = new File[args.length - 3];
+	for (int i = 0; i < files.length; i++)
+	    files[i] = new File(args[i + 2]);
+	double testFraction = Double.valueOf(args[args.length - 1]);
+	List<List<String>> sentences = POSTaggedFile.convertToTokenLists(files);
+	int numSentences = sentences.size();
+	int numTest = (int)Math.round(numSentences * testFraction);
+	List<List<String>> testSentences = sentences.subList(numSentences - numTest, numSentences);
+	List<List<String>> trainSentences = sentences.subList(0, numSentences - numTest);
+	System.out.println("Training...");
+	model.train(trainSentences);
+	write(model, outFile);
+	System.out.println("Wrote " + outFile + " (" + outFile.length() + " bytes)");
+	long start = System.nanoTime();
+	BigramModel loaded = load(outFile);
+	System.out.println("Loaded in " + (System.nanoTime() - start) / 1e6 + " ms");
+	System.out.println("Testing trained model...");
+	model.test2(testSentences);
+	System.out.println("Testing loaded model...");
+	loaded.test2(testSentences);
+    }
+}
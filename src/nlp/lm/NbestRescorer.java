@@ -0,0 +1,227 @@
+package nlp.lm;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Ranks n-best lists of candidate sentences, such as the hypotheses of a
+ * recognizer or translation system, by their probability under a model.
+ *
+ * Candidates of one list mostly share prefixes, so they are scored through
+ * a trie of their tokens: a token is looked up and its prob computed once
+ * per distinct prefix, however many candidates share it. This holds for
+ * models that score a sentence left to right over trainingSequence with
+ * tokenProb, including backward models, where the shared parts are suffixes.
+ * Other models, such as NgramModel and BidirectionalBigramModel, score each
+ * candidate with sentenceLogProb. Either way a candidate gets exactly the
+ * log prob sentenceLogProb gives it.
+ */
+
+public class NbestRescorer {
+
+    /** Score candidates with model and return them most probable first,
+     *  candidates with equal log probs in their original order. If
+     *  withTokenProbs then each also gets its sentenceTokenProbs */
+    public static List<ScoredSentence> rescore(BigramModel model, List<List<String>> candidates,
+					       boolean withTokenProbs) {
+	long start = System.nanoTime();
+	long tokens = 0;
+	List<ScoredSentence> scored = new ArrayList<ScoredSentence>(candidates.size());
+	if (model.scoresPrefixes()) {
+	    boolean logSpace = model.useLogProbs();
+	    long oov = 0, misses = 0;
+	    Node root = new Node(BigramModel.START_ID, 1, 0, 0, 0);
+	    for (int i = 0; i < candidates.size(); i++) {
+		List<String> sentence = candidates.get(i);
+		List<String> sequence = model.trainingSequence(sentence);
+		double[] tokenProbs = withTokenProbs ? new double[sequence.size() + 1] : null;
+		Node node = root;
+		int t = 0;
+		for (String token : sequence) {
+		    node = node.child(model, token, logSpace);
+		    if (tokenProbs != null)
+			tokenProbs[t++] = node.prob;
+		}
+		node.end(model, logSpace);
+		if (tokenProbs != null)
+		    tokenProbs[t] = node.endProb;
+		scored.add(new ScoredSentence(i, sentence, node.endLogProb, tokenProbs));
+		tokens += sequence.size() + 1;
+		oov += node.oov;
+		misses += node.misses + (node.endMiss ? 1 : 0);
+	    }
+	    Metrics.global().recordPredictions(tokens, oov, misses);
+	}
+	else {
+	    for (int i = 0; i < candidates.size(); i++) {
+		List<String> sentence = candidates.get(i);
+		scored.add(new ScoredSentence(i, sentence, model.sentenceLogProb(sentence),
+					      withTokenProbs ? model.sentenceTokenProbs(sentence) : null));
+		tokens += sentence.size() + 1;
+	    }
+	}
+	Metrics.global().score.record(start, tokens);
+	// Stable, so ties keep the order of the candidate list
+	Collections.sort(scored, new Comparator<ScoredSentence>() {
+		public int compare(ScoredSentence a, ScoredSentence b) {
+		    return Double.compare(b.logProb, a.logProb);
+		}
+	    });
+	return scored;
+    }
+
+    /** Rescore each of batches as with rescore, on threads threads, and
+     *  return the ranked lists in the order of batches */
+    public static List<List<ScoredSentence>> rescore(BigramModel model, List<List<List<String>>> batches,
+						     boolean withTokenProbs, int threads) {
+	List<List<ScoredSentence>> ranked = new ArrayList<List<ScoredSentence>>(batches.size());
+	if (threads <= 1 || batches.size() <= 1) {
+	    for (List<List<String>> candidates : batches)
+		ranked.add(rescore(model, candidates, withTokenProbs));
+	    return ranked;
+	}
+	List<Callable<List<ScoredSentence>>> tasks = new ArrayList<Callable<List<ScoredSentence>>>();
+	for (List<List<String>> candidates : batches)
+	    tasks.add(() -> rescore(model, candidates, withTokenProbs));
+	ExecutorService pool = Executors.newFixedThreadPool(threads);
+	try {
+	    for (Future<List<ScoredSentence>> future : pool.invokeAll(tasks))
+		ranked.add(future.get());
+	}
+	catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new IllegalStateException("Interrupted while rescoring", e);
+	}
+	catch (ExecutionException e) {
+	    throw new IllegalStateException("Rescoring failed", e.getCause());
+	}
+	finally {
+	    pool.shutdown();
+	}
+	return ranked;
+    }
+
+    /** A prefix of one or more candidates, ending in token ID id */
+    protected static class Node {
+	final int id;
+	/** Prob of the last token given the one before it */
+	final double prob;
+	/** Log prob of the whole prefix */
+	final double logProb;
+	/** Number of <UNK> tokens and bigram misses in the prefix, for the metrics */
+	final int oov, misses;
+	/** Prob of </S> after the prefix, log prob of the prefix as a sentence
+	 *  and whether </S> was a bigram miss, once a candidate ends here */
+	double endProb, endLogProb;
+	boolean endMiss;
+	boolean ended = false;
+	/** Most prefixes have a single extension, kept out of the map */
+	String firstToken = null;
+	Node firstChild = null;
+	Map<String, Node> children = null;
+
+	Node(int id, double prob, double logProb, int oov, int misses) {
+	    this.id = id;
+	    this.prob = prob;
+	    this.logProb = logProb;
+	    this.oov = oov;
+	    this.misses = misses;
+	}
+
+	/** Return the node extending this prefix by token, scoring it the
+	 *  first time */
+	Node child(BigramModel model, String token, boolean logSpace) {
+	    if (firstToken != null && firstToken.equals(token))
+		return firstChild;
+	    Node child = children == null ? null : children.get(token);
+	    if (child == null) {
+		int childId = model.tokenId(token);
+		double bigramProb = model.bigramProb(id, childId);
+		double childProb = model.tokenProb(id, childId, bigramProb);
+		// Same log as sentenceLogProb takes, so scores match it exactly
+		double tokenLogProb = logSpace ? model.storedLogProb(id, childId) : Math.log(childProb);
+		child = new Node(childId, childProb, logProb + tokenLogProb,
+				 oov + (childId == BigramModel.UNK_ID ? 1 : 0), misses + (bigramProb == 0 ? 1 : 0));
+		if (firstToken == null) {
+		    firstToken = token;
+		    firstChild = child;
+		}
+		else {
+		    if (children == null)
+			children = new HashMap<String, Node>();
+		    children.put(token, child);
+		}
+	    }
+	    return child;
+	}
+
+	/** Score predicting </S> after this prefix, once */
+	void end(BigramModel model, boolean logSpace) {
+	    if (ended)
+		return;
+	    double bigramProb = model.bigramProb(id, BigramModel.END_ID);
+	    endMiss = bigramProb == 0;
+	    endProb = model.tokenProb(id, BigramModel.END_ID, bigramProb);
+	    endLogProb = logProb + (logSpace ? model.storedLogProb(id, BigramModel.END_ID) : Math.log(endProb));
+	    ended = true;
+	}
+    }
+
+    /** Rank n-best lists made from test sentences.
+     *  Command format: "nlp.lm.NbestRescorer [Model] [N] [DIR]* [TestFrac]"
+     *  Model is a model class such as BigramModel, trained on the first
+     *  part of the data. Each test sentence gets a list of N candidates:
+     *  the sentence itself and N-1 copies with two adjacent tokens swapped.
+     *  Prints how often the real sentence ranks first and the time taken
+     *  compared to scoring each candidate with sentenceLogProb.
+     */
+    public static void main(String[] args) throws IOException {
+	BigramModel model;
+	try {
+	    model = (BigramModel) Class.forName("nlp.lm." + args[0]).getDeclaredConstructor().newInstance();
+	}
+	catch (ReflectiveOperationException e) {
+	    throw new IllegalArgumentException("Unknown model " + args[0], e);
+	}
+	int n = Integer.parseInt(args[1]);
+	File[] files = new File[args.length - 3];
+	for (int i = 0; i < files.length; i++)
+	    files[i] = new File(args[i + 2]);
+	double testFraction = Double.valueOf(args[args.length - 1]);
+	List<List<String>> sentences = POSTaggedFile.convertToTokenLists(files);
+	int numSentences = sentences.size();
+	int numTest = (int)Math.round(numSentences * testFraction);
+	List<List<String>> testSentences = sentences.subList(numSentences - numTest, numSentences);
+	List<List<String>> trainSentences = sentences.subList(0, numSentences - numTest);
+	System.out.println("Training...");
+	model.train(trainSentences);
+	Random random = new Random(0);
+	List<List<List<String>>> batches = new ArrayList<List<List<String>>>();
+	for (List<String> sentence : testSentences) {
+	    List<List<String>> candidates = new ArrayList<List<String>>(n);
+	    candidates.add(sentence);
+	    for (int i = 1; i < n && sentence.size() > 1; i++) {
+		List<String> swapped = new ArrayList<String>(sentence);
+		int pos = random.nextInt(sentence.size() - 1);
+		Collections.swap(swapped, pos, pos + 1);
+		candidates.add(swapped);
+	    }
+	    batches.add(candidates);
+	}
+	long start = System.nanoTime();
+	for (List<List<String>> candidates : batches)
+	    for (List<String> candidate : candidates)
+		model.sentenceLogProb(candidate);
+	long separate = System.nanoTime() - start;
+	start = System.nanoTime();
+	List<List<ScoredSentence>> ranked = model.rescoreBatches(batches, false);
+	long batched = System.nanoTime() - start;
+	int correct = 0;
+	for (List<ScoredSentence> list : ranked)
+	    if (list.get(0).index == 0)
+		correct++;
+	System.out.println("Sentence ranked first in " + correct + " of " + ranked.size() + " lists");
+	System.out.println("Scored separately in " + separate / 1000000 + " ms, rescored in " + batched / 1000000 + " ms");
+    }
+}
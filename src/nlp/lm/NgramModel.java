@@ -0,0 +1,287 @@
+package nlp.lm;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * An N-gram language model of any order N >= 2 that interpolates the
+ * unigram, bigram, ..., N-gram predictions with fixed weights, generalizing
+ * BigramModel. Sentences are padded with N - 1 start tokens <S>, of which
+ * only one is counted as a unigram.
+ *
+ * Histories of 2 to N - 1 tokens are numbered by a context trie with one
+ * ContextTable per length, where each history is an edge from the node of
+ * its shorter prefix. An N-gram is then stored as its history node plus the
+ * predicted token ID in a BigramTable, so every stored N-gram costs the
+ * same whatever N is, instead of a key that grows with it.
+ * The bigrams are the inherited bigramTable, keyed on token IDs.
+ *
+ * With N = 2 the counts, probabilities and scores are exactly those of
+ * BigramModel.
+ */
+
+public class NgramModel extends BigramModel {
+
+    /** Order N of the model */
+    public final int order;
+
+    /** Interpolation weights of the unigram, bigram, ..., N-gram
+     *  predictions, replacing lambda1 and lambda2 */
+    public double[] lambdas;
+
+    /** contexts[L] numbers the histories of L tokens, for 2 <= L < N.
+     *  A history of a single token is numbered by its token ID */
+    protected ContextTable[] contexts;
+
+    /** ngramTables[k] holds the counts and probabilities of k-grams keyed on
+     *  the node of their history and the predicted ID, for 2 <= k <= N */
+    protected BigramTable[] ngramTables;
+
+    /** contextCounts[L] is the number of k-grams counted after each history
+     *  of L tokens, for 2 <= L < N. Single tokens use the unigram counts */
+    protected double[][] contextCounts;
+
+    /** Create a bigram model */
+    public NgramModel() {
+	this(2);
+    }
+
+    /** Create a model of the given order */
+    public NgramModel(int order) {
+	if (order < 2)
+	    throw new IllegalArgumentException("Order must be at least 2: " + order);
+	this.order = order;
+	lambdas = defaultLambdas(order);
+	contexts = new ContextTable[order];
+	contextCounts = new double[order][];
+	for (int level = 2; level < order; level++) {
+	    contexts[level] = new ContextTable();
+	    contextCounts[level] = new double[1024];
+	}
+	ngramTables = new BigramTable[order + 1];
+	ngramTables[2] = bigramTable;
+	for (int k = 3; k <= order; k++)
+	    ngramTables[k] = new BigramTable();
+    }
+
+    /** Weight 0.1 on unigrams as in BigramModel, with the other 0.9 split
+     *  so that each order gets twice the weight of the one below it */
+    protected static double[] defaultLambdas(int order) {
+	double[] lambdas = new double[order];
+	lambdas[0] = 0.1;
+	double total = (1 << (order - 1)) - 1;
+	for (int k = 2; k <= order; k++)
+	    lambdas[k - 1] = 0.9 * (1 << (k - 2)) / total;
+	return lambdas;
+    }
+
+    /** Return the number of k-grams stored */
+    public int ngramCount(int k) {
+	return k == 1 ? vocabulary.size() : ngramTables[k].size();
+    }
+
+    /** Counting N-grams needs the preceding tokens of every sentence, so
+     *  sentences are always counted serially */
+    @Override
+    public void trainSentences (List<List<String>> sentences) {
+	long start = System.nanoTime();
+	double startCount = tokenCount;
+	for (List<String> sentence : sentences) {
+	    trainSentence(sentence);
+	}
+	Metrics.global().train.record(start, (long) (tokenCount - startCount));
+    }
+
+    /** Accumulate unigram and 2- to N-gram counts for this sentence */
+    @Override
+    public void trainSentence (List<String> sentence) {
+	int[] history = startHistory(true);
+	unigramCounts[START_ID]++;
+	tokenCount++;
+	for (String token : sentence) {
+	    int id = vocabulary.id(token);
+	    // First occurrence of a token is counted as <UNK>, as in BigramModel
+	    if (id < 0) {
+		addToken(token);
+		id = UNK_ID;
+	    }
+	    unigramCounts[id]++;
+	    tokenCount++;
+	    countNgrams(history, id);
+	    advance(history, id, true);
+	}
+	unigramCounts[END_ID]++;
+	tokenCount++;
+	countNgrams(history, END_ID);
+    }
+
+    /** Count the 2- to N-grams predicting id after history */
+    protected void countNgrams(int[] history, int id) {
+	for (int k = 2; k <= order; k++) {
+	    int context = history[k - 1];
+	    ngramTables[k].increment(context, id);
+	    if (k > 2)
+		contextCounts[k - 1][context]++;
+	}
+    }
+
+    /** Return the history nodes at the start of a sentence, where every
+     *  preceding token is <S>. history[L] is the node of the last L tokens */
+    protected int[] startHistory(boolean insert) {
+	int[] history = new int[order];
+	history[1] = START_ID;
+	for (int level = 2; level < order; level++)
+	    history[level] = child(level, history[level - 1], START_ID, insert);
+	return history;
+    }
+
+    /** Shift token id into the history nodes */
+    protected void advance(int[] history, int id, boolean insert) {
+	// Longest first, since each history extends the previous shorter one
+	for (int level = order - 1; level >= 2; level--)
+	    history[level] = child(level, history[level - 1], id, insert);
+	history[1] = id;
+    }
+
+    /** Return the node of the history of level tokens extending parent by
+     *  id. When scoring, an unseen history is -1 and so are its extensions */
+    protected int child(int level, int parent, int id, boolean insert) {
+	if (!insert)
+	    return parent < 0 ? -1 : contexts[level].find(parent, id);
+	int node = contexts[level].findOrInsert(parent, id);
+	if (node >= contextCounts[level].length)
+	    contextCounts[level] = Arrays.copyOf(contextCounts[level], 2 * contextCounts[level].length);
+	return node;
+    }
+
+    /** Compute unigram and bigram probabilities as BigramModel does, then
+     *  the probability of each higher order N-gram given its history */
+    @Override
+    public void calculateProbs() {
+	super.calculateProbs();
+	for (int k = 3; k <= order; k++) {
+	    BigramTable table = ngramTables[k];
+	    double[] counts = contextCounts[k - 1];
+	    for (int slot = 0; slot < table.capacity(); slot++) {
+		if (table.isOccupied(slot))
+		    table.setProbAt(slot, table.countAt(slot) / counts[BigramTable.prevId(table.keyAt(slot))]);
+	    }
+	}
+    }
+
+    /** Return the interpolated prob of predicting token ID id after history */
+    public double ngramProb(int[] history, int id) {
+	double prob = lambdas[0] * unigramProbs[id];
+	for (int k = 2; k <= order; k++) {
+	    int context = history[k - 1];
+	    if (context >= 0)
+		prob += lambdas[k - 1] * ngramTables[k].prob(context, id);
+	}
+	return prob;
+    }
+
+    /** Bigram predictions, such as those of predictNext and tokenProb, are
+     *  weighted by the unigram and bigram lambdas */
+    @Override
+    public double interpolatedProb(double unigramProb, double bigramProb) {
+	return lambdas[0] * unigramProb + lambdas[1] * bigramProb;
+    }
+
+    /** Scores also depend on lambdas */
+    @Override
+    protected double[] scoringState () {
+	double[] base = super.scoringState();
+	double[] state = Arrays.copyOf(lambdas, lambdas.length + base.length);
+	System.arraycopy(base, 0, state, lambdas.length, base.length);
+	return state;
+    }
+
+    /** Scores with ngramProb. A prediction is a miss when not even its
+     *  bigram was seen, so that it only gets the unigram prob */
+    @Override
+    protected double sentenceLogProb (List<String> sentence, boolean includeEnd, long[] oovCount) {
+	int[] history = startHistory(false);
+	double sentenceLogProb = 0;
+	int oov = 0, misses = 0;
+	int numPredictions = sentence.size() + (includeEnd ? 1 : 0);
+	Iterator<String> tokens = sentence.iterator();
+	for (int i = 0; i < numPredictions; i++) {
+	    int id = END_ID;
+	    if (tokens.hasNext()) {
+		id = tokenId(tokens.next());
+		if (id == UNK_ID)
+		    oov++;
+	    }
+	    if (bigramTable.find(history[1], id) < 0)
+		misses++;
+	    sentenceLogProb += Math.log(ngramProb(history, id));
+	    advance(history, id, false);
+	}
+	Metrics.global().recordPredictions(numPredictions, oov, misses);
+	if (oovCount != null)
+	    oovCount[0] += oov;
+	return sentenceLogProb;
+    }
+
+    /** Adds the higher order N-grams and their histories */
+    @Override
+    public long estimatedHeapBytes () {
+	long bytes = super.estimatedHeapBytes();
+	for (int k = 3; k <= order; k++)
+	    bytes += ngramTables[k].estimatedBytes();
+	for (int level = 2; level < order; level++)
+	    bytes += contexts[level].estimatedBytes() + arrayBytes(contextCounts[level]);
+	return bytes;
+    }
+
+    /** A token's prob depends on more than the token before it */
+    @Override
+    protected boolean scoresPrefixes () {
+	return false;
+    }
+
+    @Override
+    public double[] sentenceTokenProbs (List<String> sentence) {
+	int[] history = startHistory(false);
+	double[] tokenProbs = new double[sentence.size() + 1];
+	int i = 0;
+	for (String token : sentence) {
+	    int id = tokenId(token);
+	    tokenProbs[i++] = ngramProb(history, id);
+	    advance(history, id, false);
+	}
+	tokenProbs[i] = ngramProb(history, END_ID);
+	return tokenProbs;
+    }
+
+    /** Train and test an N-gram model.
+     *  Command format: "nlp.lm.NgramModel [N] [DIR]* [TestFrac]" where N is
+     *  the order of the model and DIR and TestFrac are as for
+     *  BigramModel.main */
+    public static void main(String[] args) throws IOException {
+	int order = Integer.parseInt(args[0]);
+	File[] files = new File[args.length - 2];
+	for (int i = 0; i < files.length; i++)
+	    files[i] = new File(args[i + 1]);
+	double testFraction = Double.valueOf(args[args.length - 1]);
+	List<List<String>> sentences = POSTaggedFile.convertToTokenLists(files);
+	int numSentences = sentences.size();
+	int numTest = (int)Math.round(numSentences * testFraction);
+	List<List<String>> testSentences = sentences.subList(numSentences - numTest, numSentences);
+	List<List<String>> trainSentences = sentences.subList(0, numSentences - numTest);
+	System.out.println("# Train Sentences = " + trainSentences.size() +
+			   " (# words = " + wordCount(trainSentences) +
+			   ") \n# Test Sentences = " + testSentences.size() +
+			   " (# words = " + wordCount(testSentences) + ")");
+	NgramModel model = new NgramModel(order);
+	System.out.println("Training...");
+	model.train(trainSentences);
+	for (int k = 1; k <= order; k++)
+	    System.out.println("# " + k + "-grams = " + model.ngramCount(k));
+	model.test(trainSentences);
+	model.test2(trainSentences);
+	System.out.println("Testing...");
+	model.test(testSentences);
+	model.test2(testSentences);
+    }
+}
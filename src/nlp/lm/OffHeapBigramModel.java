@@ -0,0 +1,540 @@
+package nlp.lm;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A read-only bigram model held outside the Java heap, in a direct
+ * ByteBuffer laid out as a ModelFile. The vocabulary hash table, unigram
+ * probs and bigram rows are read in place as by MappedBigramModel, so the
+ * heap holds only a few objects whatever the size of the model and the
+ * garbage collector never scans or copies it. Unlike a mapping, the memory
+ * is private to the process and is not paged out to the model file.
+ *
+ * copyOf moves a trained model off the heap and load reads a model file
+ * into off-heap memory. The memory is freed as soon as close is called,
+ * rather than whenever the buffer happens to be collected. Scoring a
+ * sentence, evaluating, rescoring, predicting and resolving the tokenIds
+ * of a sentence hold a read lock that close waits for, so calls in
+ * progress when the model is closed finish first and later calls throw
+ * IllegalStateException. evaluate and rescoreBatches hold it for the whole
+ * call and hand the work to their threads through an unlocked view of the
+ * buffer, since a thread taking the lock again could wait behind close
+ * while close waits for the call. The two directions of a bidirectional
+ * model share one buffer, which free(model) closes, and the bidirectional
+ * model is a Bidirectional, which holds the lock while it scores with both
+ * directions.
+ *
+ * The index predictNext builds on first use is held on the heap, as for
+ * any model, and takes heap in proportion to the number of bigrams. Only
+ * scoring keeps heap use flat.
+ *
+ * The buffer is indexed by int, as a ModelFile is, so a model takes at most
+ * 2 GiB off the heap; copyOf and load throw IOException for a larger one.
+ */
+
+public class OffHeapBigramModel extends MappedBigramModel implements Closeable {
+
+    /** Off-heap memory shared by the blocks of one model file */
+    protected final Memory memory;
+
+    /** Byte offset of this model's block in memory */
+    protected final int offset;
+
+    /** Create a model over the block starting at byte offset in memory */
+    protected OffHeapBigramModel(Memory memory, int offset, boolean backward) {
+	super(memory.buffer, offset, backward);
+	this.memory = memory;
+	this.offset = offset;
+    }
+
+    /** Return a model reading the same block without the lock or checks,
+     *  with this one's weights, for the threads of a call that holds the
+     *  lock. It is only safe to use until the lock is released */
+    protected MappedBigramModel unlocked() {
+	MappedBigramModel model = new MappedBigramModel(memory.buffer, offset, backward);
+	model.lambda1 = lambda1;
+	model.lambda2 = lambda2;
+	return model;
+    }
+
+    /** A direct buffer holding a model file, and the lock that keeps it
+     *  from being freed while it is read */
+    protected static class Memory {
+	final ByteBuffer buffer;
+	final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	volatile boolean closed = false;
+
+	Memory(ByteBuffer buffer) {
+	    this.buffer = buffer;
+	}
+
+	/** Take the read lock, failing if the memory has been freed */
+	void acquire() {
+	    lock.readLock().lock();
+	    if (closed) {
+		lock.readLock().unlock();
+		throw new IllegalStateException("Off-heap model is closed");
+	    }
+	}
+
+	void release() {
+	    lock.readLock().unlock();
+	}
+
+	/** Free the memory once no thread holds the read lock */
+	void close() {
+	    lock.writeLock().lock();
+	    try {
+		if (!closed) {
+		    closed = true;
+		    freeBuffer(buffer);
+		}
+	    }
+	    finally {
+		lock.writeLock().unlock();
+	    }
+	}
+    }
+
+    /** sun.misc.Unsafe and its invokeCleaner method, null if they are not
+     *  available */
+    protected static final Object unsafe;
+    protected static final Method invokeCleaner;
+
+    static {
+	Object theUnsafe = null;
+	Method cleaner = null;
+	try {
+	    Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+	    Field field = unsafeClass.getDeclaredField("theUnsafe");
+	    field.setAccessible(true);
+	    theUnsafe = field.get(null);
+	    cleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+	}
+	catch (ReflectiveOperationException | RuntimeException e) {
+	    // The memory is then freed when the buffer is collected
+	}
+	unsafe = theUnsafe;
+	invokeCleaner = cleaner;
+    }
+
+    /** Free the memory of a direct buffer now, if the JVM allows it */
+    protected static void freeBuffer(ByteBuffer buffer) {
+	if (invokeCleaner == null)
+	    return;
+	try {
+	    invokeCleaner.invoke(unsafe, buffer);
+	}
+	catch (ReflectiveOperationException e) {
+	    // Left to the garbage collector
+	}
+    }
+
+    /** Return an off-heap copy of a trained BigramModel, BackwardBigramModel
+     *  or BidirectionalBigramModel, which can then be dropped from the heap */
+    public static BigramModel copyOf(BigramModel model) throws IOException {
+	BigramModel[] blocks = ModelFile.blocks(model);
+	long size = ModelFile.fileSize(blocks);
+	if (size > Integer.MAX_VALUE)
+	    throw new IOException("Model too large for a model file: " + size + " bytes");
+	ByteBuffer buffer = ByteBuffer.allocateDirect((int) size);
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new BufferOutputStream(buffer), 1 << 16));
+	try {
+	    ModelFile.write(model, blocks, out);
+	    out.flush();
+	}
+	catch (IOException | RuntimeException e) {
+	    freeBuffer(buffer);
+	    throw e;
+	}
+	buffer.clear();
+	return open(buffer);
+    }
+
+    /** Read a model file into off-heap memory and return the model */
+    public static BigramModel load(File file) throws IOException {
+	FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+	ByteBuffer buffer;
+	try {
+	    if (channel.size() > Integer.MAX_VALUE)
+		throw new IOException("Model file too large: " + file);
+	    buffer = ByteBuffer.allocateDirect((int) channel.size());
+	    try {
+		while (buffer.hasRemaining()) {
+		    if (channel.read(buffer) < 0)
+			throw new EOFException("Model file truncated: " + file);
+		}
+	    }
+	    catch (IOException | RuntimeException e) {
+		freeBuffer(buffer);
+		throw e;
+	    }
+	}
+	finally {
+	    channel.close();
+	}
+	buffer.clear();
+	return open(buffer);
+    }
+
+    /** Return the model over a direct buffer holding a model file */
+    protected static BigramModel open(ByteBuffer buffer) throws IOException {
+	Memory memory = new Memory(buffer);
+	try {
+	    BigramModel model = ModelFile.open(buffer, (b, offset, backward) -> new OffHeapBigramModel(memory, offset, backward));
+	    if (model instanceof BidirectionalBigramModel) {
+		BidirectionalBigramModel blocks = (BidirectionalBigramModel) model;
+		Bidirectional bidirectional = new Bidirectional(memory, (OffHeapBigramModel) blocks.bigramModel,
+								(OffHeapBigramModel) blocks.backwardBigramModel);
+		bidirectional.forwardWeight = blocks.forwardWeight;
+		bidirectional.backwardWeight = blocks.backwardWeight;
+		return bidirectional;
+	    }
+	    return model;
+	}
+	catch (IOException | RuntimeException e) {
+	    memory.close();
+	    throw e;
+	}
+    }
+
+    /** A bidirectional model over the two off-heap blocks of one buffer.
+     *  The directions only check the buffer is there before each lookup, so
+     *  this holds the read lock for the whole of each sentence, evaluation,
+     *  rescoring and prediction */
+    public static class Bidirectional extends BidirectionalBigramModel implements Closeable {
+
+	/** Off-heap memory of both directions */
+	protected final Memory memory;
+
+	protected Bidirectional(Memory memory, OffHeapBigramModel bigramModel, OffHeapBigramModel backwardBigramModel) {
+	    super(bigramModel, backwardBigramModel);
+	    this.memory = memory;
+	}
+
+	/** Return a model over both blocks that reads them without the lock,
+	 *  as OffHeapBigramModel.unlocked does */
+	protected BidirectionalBigramModel unlocked() {
+	    BidirectionalBigramModel model = new BidirectionalBigramModel(
+		((OffHeapBigramModel) bigramModel).unlocked(), ((OffHeapBigramModel) backwardBigramModel).unlocked());
+	    model.forwardWeight = forwardWeight;
+	    model.backwardWeight = backwardWeight;
+	    model.logSpaceScoring = logSpaceScoring;
+	    model.backwardIds = backwardIds();
+	    return model;
+	}
+
+	@Override
+	public EvaluationResult evaluate (List<List<String>> sentences, boolean includeEnd, int threads) {
+	    memory.acquire();
+	    try {
+		return BatchEvaluator.evaluate(unlocked(), sentences, includeEnd, threads);
+	    }
+	    finally {
+		memory.release();
+	    }
+	}
+
+	@Override
+	public List<ScoredSentence> rescore (List<List<String>> candidates, boolean withTokenProbs) {
+	    memory.acquire();
+	    try {
+		return super.rescore(candidates, withTokenProbs);
+	    }
+	    finally {
+		memory.release();
+	    }
+	}
+
+	@Override
+	public List<List<ScoredSentence>> rescoreBatches (List<List<List<String>>> batches, boolean withTokenProbs) {
+	    memory.acquire();
+	    try {
+		return NbestRescorer.rescore(unlocked(), batches, withTokenProbs, testThreads);
+	    }
+	    finally {
+		memory.release();
+	    }
+	}
+
+	/** sentenceLogProb, sentenceLogProb2 and sentenceTokenProbs all
+	 *  score through here, and so do evaluate and rescore */
+	@Override
+	protected double score (List<String> sentence, double[] probs, boolean includeBoundary, long[] oovCount) {
+	    memory.acquire();
+	    try {
+		return super.score(sentence, probs, includeBoundary, oovCount);
+	    }
+	    finally {
+		memory.release();
+	    }
+	}
+
+	@Override
+	public List<Prediction> predictNext (String token, int k) {
+	    memory.acquire();
+	    try {
+		return super.predictNext(token, k);
+	    }
+	    finally {
+		memory.release();
+	    }
+	}
+
+	@Override
+	public List<Prediction> predictPrevious (String token, int k) {
+	    memory.acquire();
+	    try {
+		return super.predictPrevious(token, k);
+	    }
+	    finally {
+		memory.release();
+	    }
+	}
+
+	@Override
+	public List<Prediction> fillGap (String prevToken, String nextToken, int k) {
+	    memory.acquire();
+	    try {
+		return super.fillGap(prevToken, nextToken, k);
+	    }
+	    finally {
+		memory.release();
+	    }
+	}
+
+	/** Free the off-heap memory of both directions */
+	public void close() {
+	    memory.close();
+	}
+
+	/** Return whether the memory of this model has been freed */
+	public boolean isClosed() {
+	    return memory.closed;
+	}
+    }
+
+    /** Writes to a ByteBuffer, which must have room for everything written */
+    protected static class BufferOutputStream extends OutputStream {
+	final ByteBuffer buffer;
+
+	BufferOutputStream(ByteBuffer buffer) {
+	    this.buffer = buffer;
+	}
+
+	public void write(int b) {
+	    buffer.put((byte) b);
+	}
+
+	public void write(byte[] bytes, int offset, int length) {
+	    buffer.put(bytes, offset, length);
+	}
+    }
+
+    /** Free the off-heap memory of this model, and of the other direction
+     *  if it is part of a bidirectional model */
+    public void close() {
+	memory.close();
+    }
+
+    /** Close model if it is off-heap, or the off-heap directions of a
+     *  bidirectional model */
+    public static void free(BigramModel model) {
+	if (model instanceof OffHeapBigramModel) {
+	    ((OffHeapBigramModel) model).close();
+	}
+	else if (model instanceof Bidirectional) {
+	    ((Bidirectional) model).close();
+	}
+	else if (model instanceof BidirectionalBigramModel) {
+	    free(((BidirectionalBigramModel) model).bigramModel);
+	    free(((BidirectionalBigramModel) model).backwardBigramModel);
+	}
+    }
+
+    /** Return whether the memory of this model has been freed */
+    public boolean isClosed() {
+	return memory.closed;
+    }
+
+    /** Return the number of bytes of off-heap memory, shared by both
+     *  directions of a bidirectional model */
+    public long offHeapBytes() {
+	return memory.buffer.capacity();
+    }
+
+    /** Check the memory is still there before a single lookup. Scoring
+     *  through these while close is called from another thread is not
+     *  safe; use the sentence level methods, which hold the lock */
+    protected void ensureOpen() {
+	if (memory.closed)
+	    throw new IllegalStateException("Off-heap model is closed");
+    }
+
+    @Override
+    public int vocabularyId (String token) {
+	ensureOpen();
+	return super.vocabularyId(token);
+    }
+
+    @Override
+    public String token (int id) {
+	ensureOpen();
+	return super.token(id);
+    }
+
+    @Override
+    public double unigramProb (int id) {
+	ensureOpen();
+	return super.unigramProb(id);
+    }
+
+    @Override
+    public double bigramProb (int prevId, int id) {
+	ensureOpen();
+	return super.bigramProb(prevId, id);
+    }
+
+    /** sentenceLogProb and sentenceLogProb2 score through here, and so
+     *  does evaluate */
+    @Override
+    protected double sentenceLogProb (List<String> sentence, boolean includeEnd, long[] oovCount) {
+	memory.acquire();
+	try {
+	    return super.sentenceLogProb(sentence, includeEnd, oovCount);
+	}
+	finally {
+	    memory.release();
+	}
+    }
+
+    @Override
+    public double[] sentenceTokenProbs (List<String> sentence) {
+	memory.acquire();
+	try {
+	    return super.sentenceTokenProbs(sentence);
+	}
+	finally {
+	    memory.release();
+	}
+    }
+
+    @Override
+    public List<ScoredSentence> rescore (List<List<String>> candidates, boolean withTokenProbs) {
+	memory.acquire();
+	try {
+	    return super.rescore(candidates, withTokenProbs);
+	}
+	finally {
+	    memory.release();
+	}
+    }
+
+    @Override
+    public List<List<ScoredSentence>> rescoreBatches (List<List<List<String>>> batches, boolean withTokenProbs) {
+	memory.acquire();
+	try {
+	    return NbestRescorer.rescore(unlocked(), batches, withTokenProbs, testThreads);
+	}
+	finally {
+	    memory.release();
+	}
+    }
+
+    @Override
+    public EvaluationResult evaluate (List<List<String>> sentences, boolean includeEnd, int threads) {
+	memory.acquire();
+	try {
+	    return BatchEvaluator.evaluate(unlocked(), sentences, includeEnd, threads);
+	}
+	finally {
+	    memory.release();
+	}
+    }
+
+    /** ScoreCache resolves a sentence through here before scoring it */
+    @Override
+    public int[] tokenIds (List<String> sentence) {
+	memory.acquire();
+	try {
+	    return super.tokenIds(sentence);
+	}
+	finally {
+	    memory.release();
+	}
+    }
+
+    @Override
+    public boolean inVocabulary (String token) {
+	memory.acquire();
+	try {
+	    return super.inVocabulary(token);
+	}
+	finally {
+	    memory.release();
+	}
+    }
+
+    @Override
+    public List<Prediction> predictNext (String token, int k) {
+	memory.acquire();
+	try {
+	    return super.predictNext(token, k);
+	}
+	finally {
+	    memory.release();
+	}
+    }
+
+    /** Compare the heap used by a model before and after it is moved off
+     *  the heap, and test both.
+     *  Command format: "nlp.lm.OffHeapBigramModel [Model] [DIR]* [TestFrac]"
+     *  where Model is BigramModel, BackwardBigramModel or
+     *  BidirectionalBigramModel, and DIR and TestFrac are as for
+     *  BigramModel.main
+     */
+    public static void main(String[] args) throws IOException {
+	BigramModel model;
+	try {
+	    model = (BigramModel) Class.forName("nlp.lm." + args[0]).getDeclaredConstructor().newInstance();
+	}
+	catch (ReflectiveOperationException e) {
+	    throw new IllegalArgumentException("Unknown model " + args[0], e);
+	}
+	File[] files = new File[args.length - 2];
+	for (int i = 0; i < files.length; i++)
+	    files[i] = new File(args[i + 1]);
+	double testFraction = Double.valueOf(args[args.length - 1]);
+	List<List<String>> sentences = POSTaggedFile.convertToTokenLists(files);
+	int numSentences = sentences.size();
+	int numTest = (int)Math.round(numSentences * testFraction);
+	List<List<String>> testSentences = new ArrayList<List<String>>(sentences.subList(numSentences - numTest, numSentences));
+	List<List<String>> trainSentences = sentences.subList(0, numSentences - numTest);
+	System.out.println("Training...");
+	model.train(trainSentences);
+	trainSentences = null;
+	sentences = null;
+	System.out.println("Heap used with model on heap = " + usedHeap());
+	System.out.println("Testing heap model...");
+	model.test2(testSentences);
+	BigramModel offHeap = copyOf(model);
+	model = null;
+	System.out.println("Heap used with model off heap = " + usedHeap());
+	System.out.println("Testing off-heap model...");
+	offHeap.test2(testSentences);
+	free(offHeap);
+    }
+
+    /** Return the bytes of heap in use after a collection */
+    protected static long usedHeap() {
+	Runtime runtime = Runtime.getRuntime();
+	System.gc();
+	return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
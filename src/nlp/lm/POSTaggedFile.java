@@ -1,7 +1,17 @@
 package nlp.lm;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
 
 /** 
  *
@@ -17,6 +27,25 @@ public class POSTaggedFile {
     public File file = null;
     /** The I/O reader for accessing the file */
     protected BufferedReader reader = null;
+    /** Set once the end of the file has been read */
+    protected boolean finished = false;
+
+    /** Characters of the line being tokenized, reused from line to line */
+    protected char[] lineChars = new char[256];
+    /** Token Strings created while parsing, shared by every occurrence of the
+        token. The files of one convertToTokenLists call or sentenceIterator
+        share a pool, which is dropped with the parse */
+    protected Vocabulary tokenPool = new Vocabulary();
+
+    /** Number of threads convertToTokenLists parses files on, set from the
+        nlp.lm.ingestThreads system property. 1 parses them one by one */
+    public static int ingestThreads = Integer.getInteger("nlp.lm.ingestThreads", 1);
+    /** Read files through a FileChannel into a direct buffer instead of a
+        FileReader when parsing in parallel, set from the nlp.lm.nio property */
+    public static boolean useNio = Boolean.getBoolean("nlp.lm.nio");
+    /** Size of the direct buffer each parsing thread reads files through. Files
+        are decoded a buffer at a time, so it does not grow with the file */
+    protected static final int NIO_BUFFER_SIZE = 1 << 16;
 
     /** Create an object for a given LDC POS tagged file */
     public POSTaggedFile(File file) {
@@ -30,6 +59,13 @@ public class POSTaggedFile {
 	}
     }
 
+    /** Create an object for a given LDC POS tagged file whose contents are
+        read from reader */
+    protected POSTaggedFile(File file, BufferedReader reader) {
+	this.file = file;
+	this.reader = reader;
+    }
+
     /** Return the next line of POS tagged tokens from this file.
         Returns "\n" if end of sentence and start of a new one. 
         Returns null if end of file */
@@ -59,25 +95,69 @@ public class POSTaggedFile {
 	return line;
     }
 
-    /** Take a line from the file and return a list of String tokens in the line */    
+    /** Take a line from the file and return a list of String tokens in the line.
+        The line is scanned in place for token/POS pairs and the last slash of
+        each, and tokens are looked up in tokenPool by a hash computed during
+        the scan, so a token only allocates a String the first time the parse
+        sees it */
     protected List<String> getTokens (String line) {
 	List<String> tokenList = new ArrayList<String>();
-	line = line.trim();
-	// Use a tokenizer to extract token/POS pairs in line, 
-	// ignore brackets indicating chunk boundaries
-	StringTokenizer tokenizer = new StringTokenizer(line, " []");
-	while (tokenizer.hasMoreTokens()) {
-	    String tokenPos = tokenizer.nextToken();
-	    tokenList.add(segmentToken(tokenPos));
+	int length = line.length();
+	if (lineChars.length < length)
+	    lineChars = new char[Math.max(length, 2 * lineChars.length)];
+	char[] chars = lineChars;
+	line.getChars(0, length, chars, 0);
+	Vocabulary pool = tokenPool;
+	// Skip leading and trailing white space, as String.trim does
+	int start = 0, end = length;
+	while (start < end && chars[start] <= ' ')
+	    start++;
+	while (end > start && chars[end - 1] <= ' ')
+	    end--;
+	// Extract token/POS pairs in line, ignore brackets indicating chunk
+	// boundaries
+	int i = skipDelimiters(chars, start, end);
+	while (i < end) {
+	    int tokenStart = i;
+	    int hash = 0;
+	    // POS tag follows the last slash, keep the hash of what precedes it
+	    int slash = -1;
+	    int tokenHash = 0;
+	    for ( ; i < end && !isDelimiter(chars[i]); i++) {
+		if (chars[i] == '/') {
+		    slash = i;
+		    tokenHash = hash;
+		}
+		hash = 31 * hash + chars[i];
+	    }
+	    int tokenEnd = i;
+	    if (slash < 0)
+		tokenList.add(pool.token(pool.add(chars, tokenStart, tokenEnd, hash)));
+	    else
+		tokenList.add(pool.token(pool.add(chars, tokenStart, slash, tokenHash)));
+	    i = skipDelimiters(chars, i, end);
 	    // If last token in line has end of sentence tag ".", 
 	    // add a sentence end token </S>
-	    if (tokenPos.endsWith("/.") && !tokenizer.hasMoreTokens()) {
+	    if (i == end && tokenEnd - tokenStart >= 2 && chars[tokenEnd - 1] == '.' 
+		&& chars[tokenEnd - 2] == '/') {
 		tokenList.add("</S>");
-		}
+	    }
 	}
 	return tokenList;
     }
 
+    /** Characters that separate token/POS pairs in a line */
+    protected static boolean isDelimiter (char c) {
+	return c == ' ' || c == '[' || c == ']';
+    }
+
+    /** Return the index of the first non-delimiter in chars[i, end), or end */
+    protected static int skipDelimiters (char[] chars, int i, int end) {
+	while (i < end && isDelimiter(chars[i]))
+	    i++;
+	return i;
+    }
+
     /** Segment a token/POS string and return just the token */
     protected String segmentToken (String tokenPos) {
 	// POS tag follows the last slash
@@ -88,20 +168,19 @@ public class POSTaggedFile {
 	    return tokenPos.substring(0,slash);
     }
 
-    /** Return a List of sentences each represented as a List of String tokens for 
-        the sentences in this file */
-    protected List<List<String>> tokenLists() {
-	List<List<String>> sentences = new ArrayList<List<String>>();
+    /** Return the next sentence in this file as a List of String tokens.
+        Returns null if end of file */
+    protected List<String> nextSentence() {
+	if (finished)
+	    return null;
 	List<String> sentence = new ArrayList<String>();
 	String line;
 	while ((line=getNextPOSLine()) != null) {
 	    // Newline line indicates new sentence
 	    if (line.equals("\n")) {
 		if (!sentence.isEmpty()) {
-		    // Save completed sentence
-		    sentences.add(sentence);
-		    // and start a new sentence
-		    sentence = new ArrayList<String>();
+		    // Return completed sentence
+		    return sentence;
 		}
 	    }
 	    else {
@@ -114,10 +193,8 @@ public class POSTaggedFile {
 			tokens.remove(tokens.size()-1);
 			// and add final sentence tokens
 			sentence.addAll(tokens);
-			// Save completed sentence
-			sentences.add(sentence);
-			// and start a new sentence
-			sentence = new ArrayList<String>();
+			// Return completed sentence
+			return sentence;
 		    }
 		    else {
 			// Add the tokens in the line to the current sentence
@@ -126,31 +203,259 @@ public class POSTaggedFile {
 		}
 	    }
 	}
+	// Reader is closed at end of file, so do not read again
+	finished = true;
 	// File should always end at end of a sentence
 	assert(sentence.isEmpty());
-	return sentences;
+	return null;
     }
 
+    /** Return a List of sentences each represented as a List of String tokens for 
+        the sentences in this file */
+    protected List<List<String>> tokenLists() {
+	long start = System.nanoTime();
+	List<List<String>> sentences = new ArrayList<List<String>>();
+	List<String> sentence;
+	while ((sentence=nextSentence()) != null) {
+	    sentences.add(sentence);
+	}
+	Metrics.global().parse.record(start, sentences.size());
+	return sentences;
+    }
 
     /** Take a list of LDC tagged input files or directories and convert them to a List of sentences
-       each represented as a List of token Strings */
+       each represented as a List of token Strings. Parses on ingestThreads threads if more 
+       than one is set */
     public static List<List<String>> convertToTokenLists(File[] files) { 
+	if (ingestThreads > 1)
+	    return convertToTokenLists(files, ingestThreads);
+	return convertToTokenLists(files, new Vocabulary());
+    }
+
+    /** Parse files one by one, sharing the token Strings in pool */
+    protected static List<List<String>> convertToTokenLists(File[] files, Vocabulary pool) {
 	List<List<String>> sentences = new ArrayList<List<String>>();
 	for (int i = 0; i < files.length; i++) {
 	    File file = files[i];
 	    if (!file.isDirectory()) {
-		if (!file.getName().contains("CHANGES.LOG"))
-		    sentences.addAll(new POSTaggedFile(file).tokenLists());
+		if (!file.getName().contains("CHANGES.LOG")) {
+		    POSTaggedFile parser = new POSTaggedFile(file);
+		    parser.tokenPool = pool;
+		    sentences.addAll(parser.tokenLists());
+		}
 	    }
 	    else 
 	    {
 		File[] dirFiles = file.listFiles();
-		sentences.addAll(convertToTokenLists(dirFiles));
+		sentences.addAll(convertToTokenLists(dirFiles, pool));
 	    }
 		
 	}          
 	return sentences;
     }
+
+    /** Like convertToTokenLists but lists all files first and then parses them on a pool
+       of threads threads. Sentences are returned in the same order as a serial parse, 
+       so train/test splits do not change. Each thread shares token Strings across the
+       files it parses, and the pools and NIO buffers go with the threads when the call 
+       returns */
+    public static List<List<String>> convertToTokenLists(File[] files, int threads) {
+	List<File> fileList = listFiles(files);
+	ThreadLocal<Vocabulary> tokenPools = ThreadLocal.withInitial(() -> new Vocabulary());
+	ThreadLocal<ByteBuffer> nioBuffers = useNio ? 
+	    ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(NIO_BUFFER_SIZE)) : null;
+	ExecutorService pool = Executors.newFixedThreadPool(threads);
+	try {
+	    List<Future<List<List<String>>>> parsed = new ArrayList<Future<List<List<String>>>>();
+	    for (File file : fileList) {
+		parsed.add(pool.submit(() -> {
+			    POSTaggedFile parser = open(file, useNio ? nioBuffers.get() : null);
+			    parser.tokenPool = tokenPools.get();
+			    return parser.tokenLists();
+			}));
+	    }
+	    // Collect in file order whatever order the files finish in
+	    List<List<String>> sentences = new ArrayList<List<String>>();
+	    for (Future<List<List<String>>> fileSentences : parsed)
+		sentences.addAll(fileSentences.get());
+	    return sentences;
+	}
+	catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new IllegalStateException("Interrupted while parsing", e);
+	}
+	catch (ExecutionException e) {
+	    throw new IllegalStateException("Could not parse POSTaggedFile", e.getCause());
+	}
+	finally {
+	    pool.shutdown();
+	}
+    }
+
+    /** Return the LDC tagged files in a list of files or directories, in the order
+       convertToTokenLists reads them */
+    public static List<File> listFiles(File[] files) {
+	List<File> fileList = new ArrayList<File>();
+	addFiles(files, fileList);
+	return fileList;
+    }
+
+    /** Add the files in files and, recursively, in its directories to fileList */
+    protected static void addFiles(File[] files, List<File> fileList) {
+	for (File file : files) {
+	    if (!file.isDirectory()) {
+		if (!file.getName().contains("CHANGES.LOG"))
+		    fileList.add(file);
+	    }
+	    else
+		addFiles(file.listFiles(), fileList);
+	}
+    }
+
+    /** Open file for parsing, reading it through buffer with NIO if buffer is not 
+        null */
+    protected static POSTaggedFile open(File file, ByteBuffer buffer) {
+	if (buffer == null)
+	    return new POSTaggedFile(file);
+	try {
+	    return new POSTaggedFile(file, readNio(file, buffer));
+	}
+	catch (IOException e) {
+	    System.out.println("\nCould not open POSTaggedFile: " + file);
+	    System.exit(1);
+	    return null;
+	}
+    }
+
+    /** Return a reader that reads file through a FileChannel into buffer and
+        decodes it a buffer at a time. The channel is closed with the reader */
+    protected static BufferedReader readNio(File file, ByteBuffer buffer) throws IOException {
+	FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+	return new BufferedReader(new ChannelReader(channel, buffer));
+    }
+
+    /** Reader that decodes the bytes of a FileChannel with the default charset,
+        as FileReader does, refilling a byte buffer as the characters are read */
+    protected static class ChannelReader extends Reader {
+	/** Channel being read */
+	protected FileChannel channel;
+	/** Bytes read from the channel and not decoded yet */
+	protected ByteBuffer bytes;
+	/** Decoder that replaces malformed input, as FileReader does */
+	protected CharsetDecoder decoder = Charset.defaultCharset().newDecoder()
+	    .onMalformedInput(CodingErrorAction.REPLACE)
+	    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+	/** Set once the channel has been read to its end */
+	protected boolean endOfInput = false;
+	/** Set once every byte has been passed to the decoder */
+	protected boolean decoded = false;
+	/** Set once the decoder has been flushed */
+	protected boolean flushed = false;
+
+	protected ChannelReader(FileChannel channel, ByteBuffer buffer) {
+	    this.channel = channel;
+	    this.bytes = buffer;
+	    // Start empty so the first read fills the buffer
+	    bytes.clear();
+	    bytes.flip();
+	}
+
+	public int read(char[] cbuf, int off, int len) throws IOException {
+	    if (len == 0)
+		return 0;
+	    CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+	    while (true) {
+		if (!decoded) {
+		    CoderResult result = decoder.decode(bytes, out, endOfInput);
+		    decoded = endOfInput && result.isUnderflow();
+		}
+		if (decoded && !flushed)
+		    flushed = decoder.flush(out).isUnderflow();
+		if (out.position() > off)
+		    return out.position() - off;
+		if (flushed)
+		    return -1;
+		// Keep any bytes of a partial character and read more after them
+		bytes.compact();
+		endOfInput = channel.read(bytes) < 0;
+		bytes.flip();
+	    }
+	}
+
+	public void close() throws IOException {
+	    channel.close();
+	}
+    }
+
+    /** Take a list of LDC tagged input files or directories and return an Iterator
+       over their sentences, each represented as a List of token Strings. Files are
+       read in the same order as convertToTokenLists but only one sentence of one
+       file is held at a time, so memory does not grow with the corpus */
+    public static Iterator<List<String>> sentenceIterator(File[] files) {
+	return new SentenceIterator(files);
+    }
+
+    /** Pass each sentence of a list of LDC tagged input files or directories to 
+       action, one at a time and in the order of convertToTokenLists */
+    public static void forEachSentence(File[] files, Consumer<? super List<String>> action) {
+	Iterator<List<String>> sentences = sentenceIterator(files);
+	while (sentences.hasNext())
+	    action.accept(sentences.next());
+    }
+
+    /** Iterator that walks files and directories depth first, opening one 
+        POSTaggedFile at a time */
+    protected static class SentenceIterator implements Iterator<List<String>> {
+	/** Files and directories still to be read, next one on top */
+	protected Deque<File> pending = new ArrayDeque<File>();
+	/** File currently being read */
+	protected POSTaggedFile current = null;
+	/** Sentence to be returned by next, null if not read yet */
+	protected List<String> nextSentence = null;
+	/** Token Strings shared by the files of this iteration */
+	protected Vocabulary tokenPool = new Vocabulary();
+
+	protected SentenceIterator(File[] files) {
+	    push(files);
+	}
+
+	/** Push files so that the first of them is read first */
+	protected void push(File[] files) {
+	    for (int i = files.length - 1; i >= 0; i--)
+		pending.push(files[i]);
+	}
+
+	public boolean hasNext() {
+	    while (nextSentence == null) {
+		if (current != null) {
+		    nextSentence = current.nextSentence();
+		    if (nextSentence == null)
+			current = null;
+		}
+		else if (pending.isEmpty()) {
+		    return false;
+		}
+		else {
+		    File file = pending.pop();
+		    if (file.isDirectory())
+			push(file.listFiles());
+		    else if (!file.getName().contains("CHANGES.LOG")) {
+			current = new POSTaggedFile(file);
+			current.tokenPool = tokenPool;
+		    }
+		}
+	    }
+	    return true;
+	}
+
+	public List<String> next() {
+	    if (!hasNext())
+		throw new NoSuchElementException();
+	    List<String> sentence = nextSentence;
+	    nextSentence = null;
+	    return sentence;
+	}
+    }
 	
     /** Convert LDC POS tagged files to just lists of tokens for each setences 
      *  and print them out. */
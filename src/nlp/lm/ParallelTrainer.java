@@ -0,0 +1,184 @@
+package nlp.lm;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Accumulates the counts of a BigramModel over a list of sentences on a
+ * ForkJoinPool. Sentences are cut into contiguous shards that are counted
+ * into per-shard tables and then merged into the model.
+ *
+ * The serial rule that counts the first occurrence of a token as <UNK>
+ * depends on order, so it is reproduced with a parallel pre-pass that finds
+ * the first position of every new token in each shard. Merging these in
+ * shard order gives the position of the first occurrence in the whole list,
+ * and the counting pass maps exactly that occurrence to <UNK>. The counts,
+ * and the IDs given to new tokens, are the same as for a serial run.
+ */
+
+public class ParallelTrainer {
+
+    /** Position of a token in the list of sentences being trained on */
+    protected static long position(int sentence, int token) {
+	return ((long) sentence << 32) | token;
+    }
+
+    /** Accumulate counts for these sentences into model using threads threads */
+    public static void trainSentences(BigramModel model, List<List<String>> sentences, int threads) {
+	int numShards = Math.max(1, Math.min(threads, sentences.size()));
+	ForkJoinPool pool = new ForkJoinPool(threads);
+	try {
+	    // Tokens interned before this call are never counted as <UNK> again
+	    int known = model.vocabulary.size();
+	    // Find the first occurrence of each new token in each shard
+	    List<Callable<FirstOccurrences>> scans = new ArrayList<Callable<FirstOccurrences>>();
+	    for (int shard = 0; shard < numShards; shard++) {
+		int start = shardStart(shard, numShards, sentences.size());
+		int end = shardStart(shard + 1, numShards, sentences.size());
+		scans.add(() -> scan(model, sentences, start, end));
+	    }
+	    // In shard order, the first shard a token occurs in holds its first occurrence
+	    long[] firstPosition = new long[16];
+	    for (Future<FirstOccurrences> scan : pool.invokeAll(scans)) {
+		FirstOccurrences shard = scan.get();
+		for (int i = 0; i < shard.tokens.size(); i++) {
+		    String token = shard.tokens.token(i);
+		    if (model.vocabulary.id(token) >= 0)
+			continue;
+		    int id = model.addToken(token) - known;
+		    if (id >= firstPosition.length)
+			firstPosition = Arrays.copyOf(firstPosition, 2 * firstPosition.length);
+		    firstPosition[id] = shard.positions[i];
+		}
+	    }
+	    // Count each shard into its own tables, then merge them pairwise
+	    long[] first = firstPosition;
+	    List<Callable<ShardCounts>> counts = new ArrayList<Callable<ShardCounts>>();
+	    for (int shard = 0; shard < numShards; shard++) {
+		int start = shardStart(shard, numShards, sentences.size());
+		int end = shardStart(shard + 1, numShards, sentences.size());
+		counts.add(() -> count(model, sentences, start, end, known, first));
+	    }
+	    List<ShardCounts> shards = new ArrayList<ShardCounts>();
+	    for (Future<ShardCounts> shard : pool.invokeAll(counts))
+		shards.add(shard.get());
+	    ShardCounts total = pool.invoke(new Merge(shards, 0, shards.size()));
+	    // Add the merged counts to whatever the model has counted before
+	    for (int id = 0; id < total.unigramCounts.length; id++)
+		model.unigramCounts[id] += total.unigramCounts[id];
+	    model.tokenCount += total.tokenCount;
+	    model.bigramTable.addCounts(total.bigramTable);
+	}
+	catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new IllegalStateException("Interrupted while training", e);
+	}
+	catch (ExecutionException e) {
+	    throw new IllegalStateException("Training shard failed", e.getCause());
+	}
+	finally {
+	    pool.shutdown();
+	}
+    }
+
+    /** Index of the first sentence of a shard */
+    protected static int shardStart(int shard, int numShards, int numSentences) {
+	return (int) ((long) shard * numSentences / numShards);
+    }
+
+    /** New tokens of a shard in order of first occurrence, with their positions */
+    protected static class FirstOccurrences {
+	Vocabulary tokens = new Vocabulary();
+	long[] positions = new long[16];
+    }
+
+    /** Record the first occurrence of every token in sentences [start, end)
+     *  that the model has not interned yet */
+    protected static FirstOccurrences scan(BigramModel model, List<List<String>> sentences,
+					   int start, int end) {
+	FirstOccurrences shard = new FirstOccurrences();
+	for (int s = start; s < end; s++) {
+	    int t = 0;
+	    for (String token : model.trainingSequence(sentences.get(s))) {
+		if (model.vocabulary.id(token) < 0 && shard.tokens.id(token) < 0) {
+		    int i = shard.tokens.add(token);
+		    if (i >= shard.positions.length)
+			shard.positions = Arrays.copyOf(shard.positions, 2 * shard.positions.length);
+		    shard.positions[i] = position(s, t);
+		}
+		t++;
+	    }
+	}
+	return shard;
+    }
+
+    /** Counts accumulated by one shard */
+    protected static class ShardCounts {
+	double[] unigramCounts;
+	BigramTable bigramTable = new BigramTable();
+	double tokenCount = 0;
+    }
+
+    /** Count sentences [start, end) exactly as trainSentence would, with the
+     *  first occurrence of each token with an ID of at least known counted
+     *  as <UNK> */
+    protected static ShardCounts count(BigramModel model, List<List<String>> sentences,
+				       int start, int end, int known, long[] firstPosition) {
+	ShardCounts shard = new ShardCounts();
+	shard.unigramCounts = new double[model.vocabulary.size()];
+	for (int s = start; s < end; s++) {
+	    int prevId = BigramModel.START_ID;
+	    shard.unigramCounts[prevId]++;
+	    shard.tokenCount++;
+	    int t = 0;
+	    for (String token : model.trainingSequence(sentences.get(s))) {
+		int id = model.vocabulary.id(token);
+		if (id >= known && firstPosition[id - known] == position(s, t))
+		    id = BigramModel.UNK_ID;
+		shard.unigramCounts[id]++;
+		shard.tokenCount++;
+		shard.bigramTable.increment(prevId, id);
+		prevId = id;
+		t++;
+	    }
+	    shard.unigramCounts[BigramModel.END_ID]++;
+	    shard.tokenCount++;
+	    shard.bigramTable.increment(prevId, BigramModel.END_ID);
+	}
+	return shard;
+    }
+
+    /** Merge shard counts [start, end) pairwise, forking the two halves */
+    @SuppressWarnings("serial")
+    protected static class Merge extends RecursiveTask<ShardCounts> {
+	final List<ShardCounts> shards;
+	final int start, end;
+
+	Merge(List<ShardCounts> shards, int start, int end) {
+	    this.shards = shards;
+	    this.start = start;
+	    this.end = end;
+	}
+
+	protected ShardCounts compute() {
+	    if (end - start == 1)
+		return shards.get(start);
+	    int mid = (start + end) >>> 1;
+	    Merge left = new Merge(shards, start, mid);
+	    left.fork();
+	    ShardCounts right = new Merge(shards, mid, end).compute();
+	    ShardCounts into = left.join();
+	    // Add the smaller table into the larger one
+	    if (right.bigramTable.size() > into.bigramTable.size()) {
+		ShardCounts swap = into;
+		into = right;
+		right = swap;
+	    }
+	    for (int id = 0; id < into.unigramCounts.length; id++)
+		into.unigramCounts[id] += right.unigramCounts[id];
+	    into.tokenCount += right.tokenCount;
+	    into.bigramTable.addCounts(right.bigramTable);
+	    return into;
+	}
+    }
+}
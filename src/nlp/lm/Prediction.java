@@ -0,0 +1,24 @@
+package nlp.lm;
+
+/**
+ * A token predicted by a model, with the interpolated probability the model
+ * gives it.
+ */
+
+public class Prediction {
+
+    /** Predicted token */
+    public final String token;
+
+    /** Probability of the token in the context it was predicted for */
+    public final double prob;
+
+    public Prediction(String token, double prob) {
+	this.token = token;
+	this.prob = prob;
+    }
+
+    public String toString() {
+	return token + " " + prob;
+    }
+}
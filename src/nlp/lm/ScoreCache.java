@@ -0,0 +1,532 @@
+package nlp.lm;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded cache of sentence scores in front of a model, for query
+ * traffic that scores the same sentences over and over. sentenceLogProb,
+ * sentenceLogProb2 and sentenceTokenProbs answer from the cache when they
+ * can and otherwise score through the model and remember the result.
+ *
+ * Entries are keyed on the model's tokenIds of a sentence, so sentences
+ * that differ only in tokens scored as <UNK> share an entry. The cache is
+ * bounded by a number of entries or by an estimate of their bytes.
+ *
+ * Eviction follows W-TinyLFU (Einziger, Friedman and Manes): new entries
+ * enter a small LRU window, and an entry leaving the window only replaces
+ * the least recently used entry of the main space if it has been asked for
+ * more often, as estimated by a count-min sketch of 4 bit counters that is
+ * halved periodically so that old popularity fades. The main space is a
+ * segmented LRU, whose protected segment holds entries asked for again
+ * after they entered it. A sentence scored once is thus never allowed to
+ * push out the sentences the traffic keeps repeating.
+ *
+ * Lookups read a ConcurrentHashMap without locking. The eviction policy is
+ * updated under a lock, which a hit only tries to take: if another thread
+ * holds it the hit is not recorded in the policy, so readers never wait.
+ *
+ * Before every lookup the model's scoringState, its interpolation weights
+ * and how often its probs were calculated, is compared with the one the
+ * entries were scored under, and the cache is cleared if it changed, so
+ * retraining the model or changing lambda1, lambda2, forwardWeight or
+ * backwardWeight invalidates it.
+ */
+
+public class ScoreCache {
+
+    /** Scoring methods whose results are cached */
+    protected static final int LOG_PROB = 0, LOG_PROB_2 = 1, TOKEN_PROBS = 2;
+
+    /** Queues an entry can be on */
+    protected static final int WINDOW = 0, PROBATION = 1, PROTECTED = 2;
+
+    /** Model scoring the sentences */
+    public final BigramModel model;
+
+    /** Most entries, or most estimated bytes, the cache holds */
+    public final long capacity;
+
+    /** Whether capacity is in bytes rather than entries */
+    public final boolean capacityInBytes;
+
+    /** Most weight of the window, main space and its protected segment */
+    protected final long maxWindow, maxMain, maxProtected;
+
+    /** Entries by key, read without locking */
+    protected final ConcurrentHashMap<Key, Node> map = new ConcurrentHashMap<Key, Node>();
+
+    /** Guards the queues, their weights, the sketch and state */
+    protected final ReentrantLock lock = new ReentrantLock();
+
+    /** Heads of the circular LRU queues, least recently used first */
+    protected final Node window = new Node(), probation = new Node(), protectedQueue = new Node();
+
+    /** Weight of the entries on each queue */
+    protected long windowWeight = 0, probationWeight = 0, protectedWeight = 0;
+
+    /** Estimated frequency of recently requested keys */
+    protected final FrequencySketch sketch;
+
+    /** Model state the entries were scored under */
+    protected volatile double[] state;
+
+    /** Lookups answered from the cache or by scoring, and entries evicted */
+    protected final LongAdder hits = new LongAdder();
+    protected final LongAdder misses = new LongAdder();
+    protected final LongAdder evictions = new LongAdder();
+
+    /** Create a cache for model holding at most capacity entries, or if
+     *  capacityInBytes then entries of at most capacity estimated bytes */
+    public ScoreCache(BigramModel model, long capacity, boolean capacityInBytes) {
+	if (capacity <= 0)
+	    throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+	this.model = model;
+	this.capacity = capacity;
+	this.capacityInBytes = capacityInBytes;
+	// The window takes 1% and the protected segment 80% of the main space
+	maxWindow = Math.max(capacityInBytes ? 1024 : 1, capacity / 100);
+	maxMain = Math.max(0, capacity - maxWindow);
+	maxProtected = maxMain * 8 / 10;
+	long expectedEntries = capacityInBytes ? capacity / 128 : capacity;
+	sketch = new FrequencySketch(expectedEntries);
+	window.prev = window.next = window;
+	probation.prev = probation.next = probation;
+	protectedQueue.prev = protectedQueue.next = protectedQueue;
+	state = model.scoringState();
+    }
+
+    /** Cached sentenceLogProb of the model */
+    public double sentenceLogProb (List<String> sentence) {
+	double[] current = currentState();
+	Key key = new Key(LOG_PROB, model.tokenIds(sentence));
+	Node node = get(key);
+	if (node != null)
+	    return node.logProb;
+	double logProb = model.sentenceLogProb(sentence);
+	put(key, logProb, null, current);
+	return logProb;
+    }
+
+    /** Cached sentenceLogProb2 of the model */
+    public double sentenceLogProb2 (List<String> sentence) {
+	double[] current = currentState();
+	Key key = new Key(LOG_PROB_2, model.tokenIds(sentence));
+	Node node = get(key);
+	if (node != null)
+	    return node.logProb;
+	double logProb = model.sentenceLogProb2(sentence);
+	put(key, logProb, null, current);
+	return logProb;
+    }
+
+    /** Cached sentenceTokenProbs of the model. The array returned is the
+     *  caller's own */
+    public double[] sentenceTokenProbs (List<String> sentence) {
+	double[] current = currentState();
+	Key key = new Key(TOKEN_PROBS, model.tokenIds(sentence));
+	Node node = get(key);
+	if (node != null)
+	    return node.probs.clone();
+	double[] probs = model.sentenceTokenProbs(sentence);
+	put(key, 0, probs.clone(), current);
+	return probs;
+    }
+
+    /** Return the model's scoring state, first clearing the cache if it
+     *  has changed since the entries were scored */
+    protected double[] currentState() {
+	double[] current = model.scoringState();
+	if (!Arrays.equals(current, state)) {
+	    lock.lock();
+	    try {
+		if (!Arrays.equals(current, state)) {
+		    clearQueues();
+		    state = current;
+		}
+	    }
+	    finally {
+		lock.unlock();
+	    }
+	}
+	return current;
+    }
+
+    /** Empty the cache */
+    public void invalidate() {
+	lock.lock();
+	try {
+	    clearQueues();
+	}
+	finally {
+	    lock.unlock();
+	}
+    }
+
+    /** Drop every entry, under the lock */
+    protected void clearQueues() {
+	map.clear();
+	window.prev = window.next = window;
+	probation.prev = probation.next = probation;
+	protectedQueue.prev = protectedQueue.next = protectedQueue;
+	windowWeight = probationWeight = protectedWeight = 0;
+    }
+
+    /** Return the entry for key, or null on a miss, recording the access
+     *  in the policy unless another thread is updating it */
+    protected Node get(Key key) {
+	Node node = map.get(key);
+	if (node == null) {
+	    misses.increment();
+	    return null;
+	}
+	hits.increment();
+	if (lock.tryLock()) {
+	    try {
+		sketch.increment(key.hash);
+		// The entry may have been evicted since it was read
+		if (node.queue >= 0)
+		    onHit(node);
+	    }
+	    finally {
+		lock.unlock();
+	    }
+	}
+	return node;
+    }
+
+    /** Move an entry that was asked for again to the most recently used
+     *  end of its queue, promoting it from probation to protected */
+    protected void onHit(Node node) {
+	switch (node.queue) {
+	case WINDOW:
+	    moveToEnd(node, window);
+	    break;
+	case PROBATION:
+	    unlink(node);
+	    probationWeight -= node.weight;
+	    node.queue = PROTECTED;
+	    link(node, protectedQueue);
+	    protectedWeight += node.weight;
+	    // Demote the least recently used protected entries back to probation
+	    while (protectedWeight > maxProtected) {
+		Node demoted = protectedQueue.next;
+		unlink(demoted);
+		protectedWeight -= demoted.weight;
+		demoted.queue = PROBATION;
+		link(demoted, probation);
+		probationWeight += demoted.weight;
+	    }
+	    break;
+	case PROTECTED:
+	    moveToEnd(node, protectedQueue);
+	    break;
+	}
+    }
+
+    /** Add the scores of key, unless the model state changed since they
+     *  were scored under scoredState or another thread added them first */
+    protected void put(Key key, double logProb, double[] probs, double[] scoredState) {
+	long weight = capacityInBytes ? bytes(key, probs) : 1;
+	if (weight > maxWindow + maxMain)
+	    return;
+	lock.lock();
+	try {
+	    sketch.increment(key.hash);
+	    if (!Arrays.equals(scoredState, state) || map.containsKey(key))
+		return;
+	    Node node = new Node(key, logProb, probs, weight);
+	    map.put(key, node);
+	    node.queue = WINDOW;
+	    link(node, window);
+	    windowWeight += weight;
+	    // Entries leaving the window compete for a place in the main space
+	    while (windowWeight > maxWindow) {
+		Node candidate = window.next;
+		unlink(candidate);
+		windowWeight -= candidate.weight;
+		admit(candidate);
+	    }
+	}
+	finally {
+	    lock.unlock();
+	}
+    }
+
+    /** Put candidate on probation if there is room, or if it is requested
+     *  more often than each least recently used entry it has to evict;
+     *  otherwise evict it */
+    protected void admit(Node candidate) {
+	int frequency = sketch.frequency(candidate.key.hash);
+	while (probationWeight + protectedWeight + candidate.weight > maxMain) {
+	    Node victim = probation.next != probation ? probation.next : protectedQueue.next;
+	    if (victim == protectedQueue || frequency <= sketch.frequency(victim.key.hash)) {
+		evict(candidate);
+		return;
+	    }
+	    unlink(victim);
+	    if (victim.queue == PROBATION)
+		probationWeight -= victim.weight;
+	    else
+		protectedWeight -= victim.weight;
+	    evict(victim);
+	}
+	candidate.queue = PROBATION;
+	link(candidate, probation);
+	probationWeight += candidate.weight;
+    }
+
+    /** Remove an entry that is on no queue from the map */
+    protected void evict(Node node) {
+	node.queue = -1;
+	map.remove(node.key, node);
+	evictions.increment();
+    }
+
+    /** Estimated bytes of an entry: the node, key, ID array, map entry and
+     *  token probs if any */
+    protected static long bytes(Key key, double[] probs) {
+	return 128 + 4L * key.ids.length + (probs == null ? 0 : 16 + 8L * probs.length);
+    }
+
+    protected static void link(Node node, Node head) {
+	node.prev = head.prev;
+	node.next = head;
+	head.prev.next = node;
+	head.prev = node;
+    }
+
+    protected static void unlink(Node node) {
+	node.prev.next = node.next;
+	node.next.prev = node.prev;
+	node.prev = node.next = null;
+    }
+
+    protected static void moveToEnd(Node node, Node head) {
+	unlink(node);
+	link(node, head);
+    }
+
+    /** Return the number of lookups answered from the cache */
+    public long hitCount() {
+	return hits.sum();
+    }
+
+    /** Return the number of lookups that had to score the sentence */
+    public long missCount() {
+	return misses.sum();
+    }
+
+    /** Return the number of entries evicted to keep within capacity */
+    public long evictionCount() {
+	return evictions.sum();
+    }
+
+    /** Return the fraction of lookups answered from the cache */
+    public double hitRate() {
+	long hitCount = hits.sum();
+	long total = hitCount + misses.sum();
+	return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /** Return the number of entries */
+    public int size() {
+	return map.size();
+    }
+
+    /** Return the weight of the entries, in entries or estimated bytes */
+    public long weight() {
+	lock.lock();
+	try {
+	    return windowWeight + probationWeight + protectedWeight;
+	}
+	finally {
+	    lock.unlock();
+	}
+    }
+
+    public String toString() {
+	return "score cache: " + size() + " entries, weight " + weight() + " of " + capacity +
+	    (capacityInBytes ? " bytes" : " entries") + ", hits = " + hitCount() + ", misses = " +
+	    missCount() + ", hit rate = " + hitRate() + ", evictions = " + evictionCount();
+    }
+
+    /** A scoring method and the token IDs of a sentence */
+    protected static final class Key {
+	final int method;
+	final int[] ids;
+	final int hash;
+
+	Key(int method, int[] ids) {
+	    this.method = method;
+	    this.ids = ids;
+	    int h = method;
+	    for (int id : ids)
+		h = 31 * h + id;
+	    // Spread the bits for the sketch, as in a murmur3 finalizer
+	    h ^= h >>> 16;
+	    h *= 0x85ebca6b;
+	    h ^= h >>> 13;
+	    h *= 0xc2b2ae35;
+	    h ^= h >>> 16;
+	    hash = h;
+	}
+
+	public int hashCode() {
+	    return hash;
+	}
+
+	public boolean equals(Object o) {
+	    if (!(o instanceof Key))
+		return false;
+	    Key other = (Key) o;
+	    return hash == other.hash && method == other.method && Arrays.equals(ids, other.ids);
+	}
+    }
+
+    /** An entry, linked into one of the queues. A queue head is a Node
+     *  with no key */
+    protected static final class Node {
+	final Key key;
+	final double logProb;
+	final double[] probs;
+	final long weight;
+	/** Queue the entry is on, -1 once evicted; only used under the lock */
+	int queue;
+	Node prev, next;
+
+	Node() {
+	    this(null, 0, null, 0);
+	}
+
+	Node(Key key, double logProb, double[] probs, long weight) {
+	    this.key = key;
+	    this.logProb = logProb;
+	    this.probs = probs;
+	    this.weight = weight;
+	}
+    }
+
+    /**
+     * Count-min sketch of how often keys were requested, in 4 bit counters
+     * packed 16 to a long. A key has a counter in each of 4 longs picked
+     * by different hashes, and its frequency is the least of them. After
+     * 10 additions per counter word all counters are halved.
+     */
+    protected static final class FrequencySketch {
+	static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+				     0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+	final long[] table;
+	final int mask;
+	final int sampleSize;
+	int additions = 0;
+
+	FrequencySketch(long expectedEntries) {
+	    int size = 16;
+	    while (size < expectedEntries && size < (1 << 24))
+		size *= 2;
+	    table = new long[size];
+	    mask = size - 1;
+	    sampleSize = 10 * size;
+	}
+
+	/** Word of the i-th counter of hash */
+	int index(int hash, int i) {
+	    long h = (hash + SEEDS[i]) * SEEDS[i];
+	    h += h >>> 32;
+	    return (int) h & mask;
+	}
+
+	/** Bit offset of the i-th counter of hash within its word */
+	static int offset(int hash, int i) {
+	    return ((hash >>> (i << 3)) & 15) << 2;
+	}
+
+	int frequency(int hash) {
+	    int frequency = 15;
+	    for (int i = 0; i < 4; i++)
+		frequency = Math.min(frequency, (int) ((table[index(hash, i)] >>> offset(hash, i)) & 15));
+	    return frequency;
+	}
+
+	void increment(int hash) {
+	    boolean added = false;
+	    for (int i = 0; i < 4; i++) {
+		int index = index(hash, i);
+		int offset = offset(hash, i);
+		if (((table[index] >>> offset) & 15) != 15) {
+		    table[index] += 1L << offset;
+		    added = true;
+		}
+	    }
+	    if (added && ++additions == sampleSize)
+		reset();
+	}
+
+	/** Halve every counter so that old requests count for less */
+	void reset() {
+	    for (int i = 0; i < table.length; i++)
+		table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+	    additions /= 2;
+	}
+    }
+
+    /** Score a stream of test sentences drawn with a skewed distribution,
+     *  with and without a cache, and report the hit rate and time.
+     *  Command format: "nlp.lm.ScoreCache [Model] [Entries] [Queries] [DIR]* [TestFrac]"
+     *  where Model is a model class such as BigramModel, Entries the cache
+     *  capacity and Queries the number of sentences scored, and DIR and
+     *  TestFrac are as for BigramModel.main. Queries pick test sentences
+     *  with probability falling as 1/rank
+     */
+    public static void main(String[] args) throws IOException {
+	BigramModel model;
+	try {
+	    model = (BigramModel) Class.forName("nlp.lm." + args[0]).getDeclaredConstructor().newInstance();
+	}
+	catch (ReflectiveOperationException e) {
+	    throw new IllegalArgumentException("Unknown model " + args[0], e);
+	}
+	long entries = Long.parseLong(args[1]);
+	int numQueries = Integer.parseInt(args[2]);
+	File[] files = new File[args.length - 4];
+	for (int i = 0; i < files.length; i++)
+	    files[i] = new File(args[i + 3]);
+	double testFraction = Double.valueOf(args[args.length - 1]);
+	List<List<String>> sentences = POSTaggedFile.convertToTokenLists(files);
+	int numSentences = sentences.size();
+	int numTest = (int)Math.round(numSentences * testFraction);
+	List<List<String>> testSentences = sentences.subList(numSentences - numTest, numSentences);
+	List<List<String>> trainSentences = sentences.subList(0, numSentences - numTest);
+	System.out.println("Training...");
+	model.train(trainSentences);
+	// Zipf distributed queries over the test sentences
+	double[] cumulative = new double[testSentences.size()];
+	double total = 0;
+	for (int i = 0; i < cumulative.length; i++)
+	    cumulative[i] = total += 1.0 / (i + 1);
+	Random random = new Random(0);
+	List<List<String>> queries = new ArrayList<List<String>>(numQueries);
+	for (int q = 0; q < numQueries; q++) {
+	    int i = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+	    queries.add(testSentences.get(Math.min(i < 0 ? -i - 1 : i, cumulative.length - 1)));
+	}
+	long start = System.nanoTime();
+	double uncached = 0;
+	for (List<String> query : queries)
+	    uncached += model.sentenceLogProb(query);
+	long uncachedNanos = System.nanoTime() - start;
+	ScoreCache cache = new ScoreCache(model, entries, false);
+	start = System.nanoTime();
+	double cached = 0;
+	for (List<String> query : queries)
+	    cached += cache.sentenceLogProb(query);
+	long cachedNanos = System.nanoTime() - start;
+	System.out.println("Uncached: " + uncachedNanos / 1000000 + " ms, total log prob = " + uncached);
+	System.out.println("Cached: " + cachedNanos / 1000000 + " ms, total log prob = " + cached);
+	System.out.println(cache);
+    }
+}
@@ -0,0 +1,35 @@
+package nlp.lm;
+
+import java.util.*;
+
+/**
+ * A candidate sentence scored by NbestRescorer, with its position in the
+ * candidate list it came from.
+ */
+
+public class ScoredSentence {
+
+    /** Position of the sentence in its candidate list */
+    public final int index;
+
+    /** The candidate sentence */
+    public final List<String> sentence;
+
+    /** Natural log probability of the sentence, as sentenceLogProb gives it */
+    public final double logProb;
+
+    /** Token probs as sentenceTokenProbs gives them, or null if they were
+     *  not asked for */
+    public final double[] tokenProbs;
+
+    public ScoredSentence(int index, List<String> sentence, double logProb, double[] tokenProbs) {
+	this.index = index;
+	this.sentence = sentence;
+	this.logProb = logProb;
+	this.tokenProbs = tokenProbs;
+    }
+
+    public String toString() {
+	return logProb + " : " + sentence;
+    }
+}
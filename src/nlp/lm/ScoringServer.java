@@ -0,0 +1,242 @@
+package nlp.lm;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Long-running HTTP server that loads a trained model once and answers
+ * scoring queries concurrently. A trained model is only read while scoring,
+ * so requests share it without any locking.
+ *
+ * The body of a request holds one sentence per line as whitespace separated
+ * tokens, and the response has one line per sentence:
+ *   POST /logprob      log prob of each sentence (sentenceLogProb, or
+ *                      sentenceLogProb2 with ?end=false)
+ *   POST /tokenprobs   prob of each token of each sentence (sentenceTokenProbs)
+ *   POST /perplexity   perplexity, token count and OOV count of all sentences
+ *   GET  /metrics      request count and p50/p99 latency of each endpoint,
+ *                      followed by the JVM's Metrics
+ *
+ * Requests run on virtual threads when the JVM has them (Java 21 or later),
+ * otherwise on a cached thread pool. With a ScoreCache, /logprob and
+ * /tokenprobs answer repeated sentences from it and /metrics adds its stats.
+ */
+
+public class ScoringServer {
+
+    /** Model answering the queries */
+    protected final BigramModel model;
+
+    /** The HTTP server, null until started */
+    protected HttpServer server = null;
+
+    /** Executor running the requests */
+    protected ExecutorService executor = null;
+
+    /** Cache in front of the model's scoring methods, null if none */
+    protected final ScoreCache cache;
+
+    /** Latency of each scoring endpoint */
+    protected final Map<String, LatencyHistogram> latencies = new LinkedHashMap<String, LatencyHistogram>();
+
+    /** Create a server for a trained model */
+    public ScoringServer(BigramModel model) {
+	this(model, null);
+    }
+
+    /** Create a server for a trained model that scores through cache, if
+     *  it is not null */
+    public ScoringServer(BigramModel model, ScoreCache cache) {
+	this.model = model;
+	this.cache = cache;
+	latencies.put("/logprob", new LatencyHistogram());
+	latencies.put("/tokenprobs", new LatencyHistogram());
+	latencies.put("/perplexity", new LatencyHistogram());
+    }
+
+    /** Start answering requests on port */
+    public void start(int port) throws IOException {
+	server = HttpServer.create(new InetSocketAddress(port), 0);
+	server.createContext("/logprob", timed("/logprob", this::logProb));
+	server.createContext("/tokenprobs", timed("/tokenprobs", this::tokenProbs));
+	server.createContext("/perplexity", timed("/perplexity", this::perplexity));
+	server.createContext("/metrics", exchange -> respond(exchange, 200, metrics()));
+	executor = newRequestExecutor();
+	server.setExecutor(executor);
+	server.start();
+	Metrics.global().watch(model);
+	Metrics.register();
+    }
+
+    /** Stop the server, giving requests in progress up to a second to finish */
+    public void stop() {
+	server.stop(1);
+	executor.shutdown();
+    }
+
+    /** Return the port the server listens on */
+    public int port() {
+	return server.getAddress().getPort();
+    }
+
+    /** Executor with a virtual thread per request if the JVM supports them */
+    protected static ExecutorService newRequestExecutor() {
+	try {
+	    Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+	    return (ExecutorService) factory.invoke(null);
+	}
+	catch (ReflectiveOperationException e) {
+	    return Executors.newCachedThreadPool();
+	}
+    }
+
+    /** Scoring query: sentences of the request in, response text out */
+    protected interface Query {
+	String answer(List<List<String>> sentences, String query);
+    }
+
+    /** Wrap a query in a handler that parses the request, records its
+     *  latency and writes the response */
+    protected HttpHandler timed(String path, Query query) {
+	LatencyHistogram latency = latencies.get(path);
+	return exchange -> {
+	    long start = System.nanoTime();
+	    try {
+		List<List<String>> sentences = readSentences(exchange.getRequestBody());
+		String answer = query.answer(sentences, exchange.getRequestURI().getQuery());
+		respond(exchange, 200, answer);
+	    }
+	    catch (RuntimeException e) {
+		respond(exchange, 400, "Could not score request: " + e + "\n");
+	    }
+	    finally {
+		latency.record(System.nanoTime() - start);
+	    }
+	};
+    }
+
+    /** Split a request body into sentences, one per line */
+    protected static List<List<String>> readSentences(InputStream body) throws IOException {
+	BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+	List<List<String>> sentences = new ArrayList<List<String>>();
+	String line;
+	while ((line = reader.readLine()) != null) {
+	    line = line.trim();
+	    if (line.isEmpty())
+		sentences.add(new ArrayList<String>());
+	    else
+		sentences.add(Arrays.asList(line.split("\\s+")));
+	}
+	return sentences;
+    }
+
+    /** Split a decoded query string into its key=value parameters. A key
+     *  without a value maps to the empty string */
+    protected static Map<String, String> parseQuery(String query) {
+	Map<String, String> parameters = new HashMap<String, String>();
+	if (query == null)
+	    return parameters;
+	for (String parameter : query.split("&")) {
+	    int equals = parameter.indexOf('=');
+	    if (equals < 0)
+		parameters.put(parameter, "");
+	    else
+		parameters.put(parameter.substring(0, equals), parameter.substring(equals + 1));
+	}
+	return parameters;
+    }
+
+    /** Log prob of each sentence */
+    protected String logProb(List<List<String>> sentences, String query) {
+	boolean includeEnd = !"false".equals(parseQuery(query).get("end"));
+	StringBuilder answer = new StringBuilder();
+	for (List<String> sentence : sentences) {
+	    double logProb;
+	    if (cache != null)
+		logProb = includeEnd ? cache.sentenceLogProb(sentence) : cache.sentenceLogProb2(sentence);
+	    else
+		logProb = includeEnd ? model.sentenceLogProb(sentence) : model.sentenceLogProb2(sentence);
+	    answer.append(logProb).append('\n');
+	}
+	return answer.toString();
+    }
+
+    /** Token probs of each sentence */
+    protected String tokenProbs(List<List<String>> sentences, String query) {
+	StringBuilder answer = new StringBuilder();
+	for (List<String> sentence : sentences) {
+	    double[] probs = cache != null ? cache.sentenceTokenProbs(sentence) : model.sentenceTokenProbs(sentence);
+	    for (int i = 0; i < probs.length; i++) {
+		if (i > 0)
+		    answer.append(' ');
+		answer.append(probs[i]);
+	    }
+	    answer.append('\n');
+	}
+	return answer.toString();
+    }
+
+    /** Perplexity of all sentences together, scored on this request's thread */
+    protected String perplexity(List<List<String>> sentences, String query) {
+	boolean includeEnd = !"false".equals(parseQuery(query).get("end"));
+	EvaluationResult result = model.evaluate(sentences, includeEnd, 1);
+	return result.perplexity + " " + result.tokenCount + " " + result.oovCount + "\n";
+    }
+
+    /** Request count and latency percentiles of each endpoint */
+    public String metrics() {
+	StringBuilder metrics = new StringBuilder();
+	for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet())
+	    metrics.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+	if (cache != null)
+	    metrics.append(cache).append('\n');
+	metrics.append(Metrics.global()).append('\n');
+	return metrics.toString();
+    }
+
+    /** Send a text response */
+    protected static void respond(HttpExchange exchange, int status, String text) throws IOException {
+	byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+	exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+	exchange.sendResponseHeaders(status, bytes.length);
+	OutputStream out = exchange.getResponseBody();
+	out.write(bytes);
+	out.close();
+    }
+
+    /** Serve a model until the process is killed.
+     *  Command format: "nlp.lm.ScoringServer [Port] [ModelFile]" to serve a
+     *  model written by ModelFile, or "nlp.lm.ScoringServer [Port] [Model] [DIR]*"
+     *  to train a BigramModel, BackwardBigramModel or BidirectionalBigramModel
+     *  on LDC POS tagged files first. Setting the nlp.lm.scoreCacheEntries
+     *  system property puts a ScoreCache of that many entries in front */
+    public static void main(String[] args) throws Exception {
+	int port = Integer.parseInt(args[0]);
+	BigramModel model;
+	if (args.length == 2 && new File(args[1]).isFile()) {
+	    model = ModelFile.load(new File(args[1]));
+	}
+	else {
+	    model = (BigramModel) Class.forName("nlp.lm." + args[1]).getDeclaredConstructor().newInstance();
+	    File[] files = new File[args.length - 2];
+	    for (int i = 0; i < files.length; i++)
+		files[i] = new File(args[i + 2]);
+	    System.out.println("Training...");
+	    model.train(POSTaggedFile.sentenceIterator(files));
+	}
+	int cacheEntries = Integer.getInteger("nlp.lm.scoreCacheEntries", 0);
+	ScoreCache cache = cacheEntries > 0 ? new ScoreCache(model, cacheEntries, false) : null;
+	ScoringServer server = new ScoringServer(model, cache);
+	server.start(port);
+	Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+	System.out.println("Serving on port " + server.port());
+    }
+}
@@ -0,0 +1,123 @@
+package nlp.lm;
+
+import java.util.*;
+
+/**
+ * A backward bigram model with no counts of its own, scoring straight from
+ * the vocabulary, unigram counts and bigram table of a trained forward
+ * BigramModel. Every backward bigram (B, A) is the forward bigram (A, B)
+ * counted in reverse, with the roles of <S> and </S> swapped, so
+ * P(A | B) going backward is c(A, B) / c(B). <S> and </S> are both counted
+ * once per sentence, so the unigram counts and probabilities are the same
+ * in both directions.
+ *
+ * The model is trained through its forward model. It allocates no
+ * vocabulary or counts of its own, so its unigramMap and bigramMap views
+ * are empty; use those of the forward model.
+ */
+
+public class SharedBackwardBigramModel extends BackwardBigramModel {
+
+    /** Forward model whose counts are read in reverse */
+    protected final BigramModel forward;
+
+    /** Create a backward model over the counts of forward */
+    public SharedBackwardBigramModel(BigramModel forward) {
+	super(null, null, null);
+	if (forward instanceof KneserNeyBigramModel)
+	    throw new IllegalArgumentException("Backward probs cannot be shared with a Kneser-Ney model");
+	this.forward = forward;
+    }
+
+    @Override
+    public int vocabularyId (String token) {
+	return forward.vocabularyId(token);
+    }
+
+    @Override
+    public int scoringId (int id) {
+	return forward.scoringId(id);
+    }
+
+    /** Probs are those of the forward model, weighted by this model's lambdas */
+    @Override
+    protected double[] scoringState () {
+	double[] forwardState = forward.scoringState();
+	double[] state = Arrays.copyOf(forwardState, forwardState.length + 2);
+	state[forwardState.length] = lambda1;
+	state[forwardState.length + 1] = lambda2;
+	return state;
+    }
+
+    @Override
+    public int vocabularySize () {
+	return forward.vocabularySize();
+    }
+
+    @Override
+    public String token (int id) {
+	return forward.token(id);
+    }
+
+    /** The bigrams are those of the forward model, read in reverse */
+    @Override
+    public int bigramCount () {
+	return forward.bigramCount();
+    }
+
+    @Override
+    public double unigramProb (int id) {
+	return forward.unigramProbs[id];
+    }
+
+    /** Backward P(id | prevId) is the count of forward bigram (id, prevId)
+     *  normalized by the count of prevId */
+    @Override
+    public double bigramProb (int prevId, int id) {
+	double count = forward.bigramTable.count(forwardId(id), forwardId(prevId));
+	return count == 0 ? 0 : count / forward.unigramCounts[prevId];
+    }
+
+    /** The forward model predicts following tokens itself */
+    @Override
+    public List<Prediction> predictNext (String token, int k) {
+	return forward.predictNext(token, k);
+    }
+
+    /** Successors are indexed from a reversed copy of the forward bigrams */
+    @Override
+    protected BigramTable successorTable () {
+	return toBackwardBigramModel().bigramTable;
+    }
+
+    /** Return a standalone BackwardBigramModel with its own reversed bigram
+     *  table, giving the same probabilities, for instance to write it to a
+     *  ModelFile. The vocabulary and unigram arrays are shared */
+    public BackwardBigramModel toBackwardBigramModel() {
+	BackwardBigramModel model = new BackwardBigramModel(forward.vocabulary, forward.unigramCounts,
+							    reverse(forward.bigramTable, forward.unigramCounts));
+	model.unigramProbs = forward.unigramProbs;
+	model.tokenCount = forward.tokenCount;
+	model.lambda1 = lambda1;
+	model.lambda2 = lambda2;
+	model.probsCalculated = forward.probsCalculated;
+	return model;
+    }
+
+    /** Counts are only accumulated by the forward model */
+    @Override
+    public void trainSentence (List<String> sentence) {
+	throw new UnsupportedOperationException("A shared backward model is trained through its forward model");
+    }
+
+    /** Counts are only accumulated by the forward model */
+    @Override
+    public void trainSentences (List<List<String>> sentences) {
+	throw new UnsupportedOperationException("A shared backward model is trained through its forward model");
+    }
+
+    /** Probabilities are calculated by the forward model */
+    @Override
+    public void calculateProbs() {
+    }
+}
@@ -0,0 +1,70 @@
+package nlp.lm;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A BidirectionalBigramModel whose forward and backward models share one
+ * vocabulary, one unigram array and one bigram count table. Only the
+ * forward model is trained, and the backward model is a
+ * SharedBackwardBigramModel reading its counts in reverse, which halves
+ * the memory and training time of the two independent models.
+ *
+ * A token is counted as <UNK> at its first occurrence in forward order.
+ * The independent backward model takes the first occurrence in reversed
+ * order instead, so the two models only score differently when a token is
+ * first seen more than once in the same training sentence.
+ */
+
+public class SharedBidirectionalBigramModel extends BidirectionalBigramModel {
+
+    public SharedBidirectionalBigramModel() {
+	this(new BigramModel());
+    }
+
+    /** Combine a forward model with a backward model over its counts */
+    public SharedBidirectionalBigramModel(BigramModel bigramModel) {
+	super(bigramModel, new SharedBackwardBigramModel(bigramModel));
+    }
+
+    /** Train the forward model, which also trains the backward model */
+    @Override
+    public void train (List<List<String>> sentences) {
+	bigramModel.trainThreads = trainThreads;
+	bigramModel.train(sentences);
+	backwardIds = null;
+    }
+
+    /** Train the forward model from a single pass over the sentences */
+    @Override
+    public void train (Iterator<List<String>> sentences) {
+	bigramModel.trainThreads = trainThreads;
+	bigramModel.train(sentences);
+	backwardIds = null;
+    }
+
+    /** Train and test a shared bidirectional model.
+     *  Command format: "nlp.lm.SharedBidirectionalBigramModel [DIR]* [TestFrac]"
+     *  with arguments as for BidirectionalBigramModel.main */
+    public static void main(String[] args) throws IOException {
+	File[] files = new File[args.length - 1];
+	for (int i = 0; i < files.length; i++)
+	    files[i] = new File(args[i]);
+	double testFraction = Double.valueOf(args[args.length - 1]);
+	List<List<String>> sentences = POSTaggedFile.convertToTokenLists(files);
+	int numSentences = sentences.size();
+	int numTest = (int)Math.round(numSentences * testFraction);
+	List<List<String>> testSentences = sentences.subList(numSentences - numTest, numSentences);
+	List<List<String>> trainSentences = sentences.subList(0, numSentences - numTest);
+	System.out.println("# Train Sentences = " + trainSentences.size() +
+			   " (# words = " + wordCount(trainSentences) +
+			   ") \n# Test Sentences = " + testSentences.size() +
+			   " (# words = " + wordCount(testSentences) + ")");
+	SharedBidirectionalBigramModel model = new SharedBidirectionalBigramModel();
+	System.out.println("Training...");
+	model.train(trainSentences);
+	model.test2(trainSentences);
+	System.out.println("Testing...");
+	model.test2(testSentences);
+    }
+}
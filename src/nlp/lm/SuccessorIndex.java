@@ -0,0 +1,250 @@
+package nlp.lm;
+
+import java.util.*;
+
+/**
+ * Index of the tokens a trained model predicts after each context token,
+ * in order of decreasing interpolated probability, for top-k prediction.
+ *
+ * The bigrams are grouped by first token in rows sorted by P(B | A). A
+ * token never seen after A gets only the backoff part of the smoothing,
+ * the model's backoffWeight of A times the token's unigram prob. The
+ * weight is the same for every token, so those tokens come from a single
+ * list of all tokens sorted by unigram prob. A Cursor merges a row with
+ * that list, so the k most likely tokens after a context are the first k it
+ * returns, found in O(k) steps plus skipping tokens of the row met again in
+ * the unigram list. This holds for linear interpolation and for
+ * Kneser-Ney, whose backoff weight is gamma(A).
+ *
+ * The bigrams come from a BigramTable, or from Rows such as those of a
+ * ModelFile block or a CompactBigramModel. Probabilities are those of the
+ * model's tokenProb when the index is built, and the index is rebuilt once
+ * the model's scoringState changes. Special tokens <S>, </S> and <UNK> are
+ * never predicted.
+ */
+
+public class SuccessorIndex {
+
+    /** Model the index was built for, used to resolve tokens */
+    protected final BigramModel model;
+
+    /** Table of the bigrams indexed, for checking whether a bigram is in a
+     *  row, or null if they came from Rows and the model's bigramProb is
+     *  checked instead */
+    protected final BigramTable table;
+
+    /** scoringState of the model when the index was built */
+    protected final double[] state;
+
+    /** Start of each context token's row in ids and probs */
+    protected final int[] rowStarts;
+
+    /** Successors of each row, and their interpolated probs, most likely first */
+    protected final int[] ids;
+    protected final double[] probs;
+
+    /** All predictable tokens, most likely unigram first, and their
+     *  unigram probs */
+    protected final int[] unigramIds;
+    protected final double[] unigramProbs;
+
+    /** Bigrams laid out in rows by first token, as in a ModelFile block */
+    public interface Rows {
+	/** Return the index of the first bigram of token ID prevId's row.
+	 *  The row ends where the next one starts, and rowStart of the
+	 *  vocabulary size is the number of bigrams */
+	int rowStart(int prevId);
+
+	/** Return the second token of the bigram at index i */
+	int rowId(int i);
+    }
+
+    /** Index the bigrams of table, scored with model's tokenProb */
+    public SuccessorIndex(BigramModel model, BigramTable table) {
+	this(model, table, rows(table, model.vocabularySize()));
+    }
+
+    /** Index the bigrams of rows, scored with model's tokenProb */
+    public SuccessorIndex(BigramModel model, Rows rows) {
+	this(model, null, rows);
+    }
+
+    protected SuccessorIndex(BigramModel model, BigramTable table, Rows rows) {
+	this.model = model;
+	this.table = table;
+	state = model.scoringState();
+	int numTokens = model.vocabularySize();
+	rowStarts = new int[numTokens + 1];
+	for (int prevId = 0; prevId < numTokens; prevId++) {
+	    int rowSize = 0;
+	    for (int i = rows.rowStart(prevId); i < rows.rowStart(prevId + 1); i++) {
+		if (predictable(rows.rowId(i)))
+		    rowSize++;
+	    }
+	    rowStarts[prevId + 1] = rowStarts[prevId] + rowSize;
+	}
+	ids = new int[rowStarts[numTokens]];
+	probs = new double[ids.length];
+	for (int prevId = 0; prevId < numTokens; prevId++) {
+	    int next = rowStarts[prevId];
+	    for (int i = rows.rowStart(prevId); i < rows.rowStart(prevId + 1); i++) {
+		int id = rows.rowId(i);
+		if (predictable(id)) {
+		    ids[next] = id;
+		    probs[next++] = model.tokenProb(prevId, id);
+		}
+	    }
+	}
+	for (int id = 0; id < numTokens; id++)
+	    sort(ids, probs, rowStarts[id], rowStarts[id + 1] - 1);
+	// Tokens counted in training, by unigram prob
+	int numUnigrams = 0;
+	int[] unigrams = new int[numTokens];
+	double[] unigramProbList = new double[numTokens];
+	for (int id = 0; id < numTokens; id++) {
+	    if (predictable(id) && model.unigramProb(id) > 0) {
+		unigrams[numUnigrams] = id;
+		unigramProbList[numUnigrams++] = model.unigramProb(id);
+	    }
+	}
+	unigramIds = Arrays.copyOf(unigrams, numUnigrams);
+	unigramProbs = Arrays.copyOf(unigramProbList, numUnigrams);
+	sort(unigramIds, unigramProbs, 0, numUnigrams - 1);
+    }
+
+    /** Return the bigrams of table grouped in rows by first token */
+    protected static Rows rows(BigramTable table, int numTokens) {
+	int[] rowStarts = new int[numTokens + 1];
+	for (int slot = 0; slot < table.capacity(); slot++) {
+	    if (table.isOccupied(slot))
+		rowStarts[BigramTable.prevId(table.keyAt(slot)) + 1]++;
+	}
+	for (int id = 0; id < numTokens; id++)
+	    rowStarts[id + 1] += rowStarts[id];
+	int[] ids = new int[rowStarts[numTokens]];
+	int[] next = Arrays.copyOf(rowStarts, numTokens);
+	for (int slot = 0; slot < table.capacity(); slot++) {
+	    if (table.isOccupied(slot))
+		ids[next[BigramTable.prevId(table.keyAt(slot))]++] = BigramTable.id(table.keyAt(slot));
+	}
+	return new Rows() {
+	    public int rowStart(int prevId) {
+		return rowStarts[prevId];
+	    }
+
+	    public int rowId(int i) {
+		return ids[i];
+	    }
+	};
+    }
+
+    /** Special tokens are never predicted */
+    protected static boolean predictable(int id) {
+	return id > BigramModel.UNK_ID;
+    }
+
+    /** Was the index built with the model's current probs and weights */
+    public boolean isCurrent() {
+	return Arrays.equals(model.scoringState(), state);
+    }
+
+    /** Is id in context's row of bigrams */
+    protected boolean inRow(int context, int id) {
+	if (table != null)
+	    return table.find(context, id) >= 0;
+	return model.bigramProb(context, id) > 0;
+    }
+
+    /** Sort ids[lo..hi] and their probs by decreasing prob, then by ID */
+    protected static void sort(int[] ids, double[] probs, int lo, int hi) {
+	while (lo < hi) {
+	    int mid = (lo + hi) >>> 1;
+	    double pivotProb = probs[mid];
+	    int pivotId = ids[mid];
+	    int i = lo, j = hi;
+	    while (i <= j) {
+		while (before(probs[i], ids[i], pivotProb, pivotId))
+		    i++;
+		while (before(pivotProb, pivotId, probs[j], ids[j]))
+		    j--;
+		if (i <= j) {
+		    int id = ids[i]; ids[i] = ids[j]; ids[j] = id;
+		    double prob = probs[i]; probs[i] = probs[j]; probs[j] = prob;
+		    i++;
+		    j--;
+		}
+	    }
+	    // Recurse into the smaller part so the stack stays shallow
+	    if (j - lo < hi - i) {
+		sort(ids, probs, lo, j);
+		lo = i;
+	    }
+	    else {
+		sort(ids, probs, i, hi);
+		hi = j;
+	    }
+	}
+    }
+
+    /** Does (prob, id) come before (otherProb, otherId) in index order */
+    protected static boolean before(double prob, int id, double otherProb, int otherId) {
+	return prob > otherProb || (prob == otherProb && id < otherId);
+    }
+
+    /** Return a cursor over the tokens predicted after token ID context */
+    public Cursor cursor(int context) {
+	return new Cursor(context);
+    }
+
+    /** Return the k most likely tokens after token ID context */
+    public List<Prediction> predict(int context, int k) {
+	List<Prediction> predictions = new ArrayList<Prediction>(k);
+	Cursor cursor = cursor(context);
+	while (predictions.size() < k && cursor.next())
+	    predictions.add(new Prediction(model.token(cursor.id), cursor.prob));
+	return predictions;
+    }
+
+    /** Returns every predictable token after a context, most likely first,
+     *  by merging the context's row with the unigram list */
+    public class Cursor {
+	final int context;
+	int row, rowEnd, unigram = 0;
+
+	/** Weight of the unigram prob of a token never seen after context */
+	final double backoffWeight;
+
+	/** Token ID and prob of the token returned by the last call to next */
+	public int id;
+	public double prob;
+
+	Cursor(int context) {
+	    this.context = context;
+	    row = rowStarts[context];
+	    rowEnd = rowStarts[context + 1];
+	    backoffWeight = model.backoffWeight(context);
+	}
+
+	/** Move to the next most likely token, returning false once every
+	 *  token has been returned */
+	public boolean next() {
+	    // Tokens of the row were already returned with their bigram prob
+	    while (unigram < unigramIds.length && inRow(context, unigramIds[unigram]))
+		unigram++;
+	    boolean fromRow = row < rowEnd;
+	    if (fromRow && unigram < unigramIds.length)
+		fromRow = before(probs[row], ids[row], backoffWeight * unigramProbs[unigram], unigramIds[unigram]);
+	    if (fromRow) {
+		id = ids[row];
+		prob = probs[row++];
+		return true;
+	    }
+	    if (unigram < unigramIds.length) {
+		id = unigramIds[unigram];
+		prob = backoffWeight * unigramProbs[unigram++];
+		return true;
+	    }
+	    return false;
+	}
+    }
+}
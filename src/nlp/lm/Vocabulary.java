@@ -0,0 +1,242 @@
+package nlp.lm;
+
+import java.util.Arrays;
+
+/**
+ * Interns each distinct token String to a dense int ID so that models can
+ * key their tables on primitive IDs instead of on concatenated Strings.
+ * IDs are handed out in order of first interning, starting from 0.
+ */
+
+public class Vocabulary {
+
+    /** Marks an empty slot in the hash table */
+    protected static final int EMPTY = -1;
+
+    /** Token String for each ID */
+    protected String[] tokens;
+
+    /** Cached String hash code for each ID so resizing never rehashes Strings */
+    protected int[] hashes;
+
+    /** Open-addressing hash table holding IDs, EMPTY for a free slot */
+    protected int[] table;
+
+    /** Number of interned tokens */
+    protected int size = 0;
+
+    /** Create an empty vocabulary */
+    public Vocabulary() {
+	this(1024);
+    }
+
+    /** Create an empty vocabulary sized to hold about expectedSize tokens
+     *  before it needs to grow */
+    public Vocabulary(int expectedSize) {
+	int capacity = tableCapacity(expectedSize);
+	tokens = new String[capacity / 2];
+	hashes = new int[capacity / 2];
+	table = new int[capacity];
+	Arrays.fill(table, EMPTY);
+    }
+
+    /** Create a vocabulary holding the same tokens, with the same IDs, as other */
+    protected Vocabulary(Vocabulary other) {
+	tokens = other.tokens.clone();
+	hashes = other.hashes.clone();
+	table = other.table.clone();
+	size = other.size;
+    }
+
+    /** Create a vocabulary over the arrays of other, sharing them */
+    protected Vocabulary(String[] tokens, int[] hashes, int[] table, int size) {
+	this.tokens = tokens;
+	this.hashes = hashes;
+	this.table = table;
+	this.size = size;
+    }
+
+    /** Return an independent copy of this vocabulary */
+    public Vocabulary copy() {
+	return new Vocabulary(this);
+    }
+
+    /** Return a read-only view of the tokens interned so far that shares the
+     *  arrays of this vocabulary instead of copying them. Interning more
+     *  tokens only fills slots that were empty, or moves to new arrays when
+     *  the table grows, and lookups treat an ID at or above size as an empty
+     *  slot, so the view may be read by other threads while this vocabulary
+     *  goes on interning, once it has been safely published to them */
+    public Vocabulary view() {
+	return new View(tokens, hashes, table, size);
+    }
+
+    /** Vocabulary returned by view, which cannot intern tokens */
+    protected static class View extends Vocabulary {
+	protected View(String[] tokens, int[] hashes, int[] table, int size) {
+	    super(tokens, hashes, table, size);
+	}
+
+	@Override
+	public int add(String token) {
+	    throw new UnsupportedOperationException("A vocabulary view cannot intern tokens");
+	}
+
+	@Override
+	public int add(char[] chars, int start, int end, int hash) {
+	    throw new UnsupportedOperationException("A vocabulary view cannot intern tokens");
+	}
+
+	/** Copy only the tokens of the view, since the shared table may
+	 *  hold later ones */
+	@Override
+	public Vocabulary copy() {
+	    Vocabulary copy = new Vocabulary(size);
+	    for (int id = 0; id < size; id++)
+		copy.add(tokens[id]);
+	    return copy;
+	}
+    }
+
+    /** Return an estimate of the heap bytes taken by the vocabulary,
+     *  counting each token String with a Latin-1 char array */
+    public long estimatedBytes() {
+	long bytes = 48 + 4L * tokens.length + 4L * hashes.length + 4L * table.length;
+	for (int id = 0; id < size; id++)
+	    bytes += 24 + 16 + tokens[id].length();
+	return bytes;
+    }
+
+    /** Return the number of interned tokens */
+    public int size() {
+	return size;
+    }
+
+    /** Return the token String with this ID */
+    public String token(int id) {
+	return tokens[id];
+    }
+
+    /** Return the ID of token, or -1 if it has never been interned */
+    public int id(String token) {
+	int hash = token.hashCode();
+	int mask = table.length - 1;
+	for (int slot = spread(hash) & mask; ; slot = (slot + 1) & mask) {
+	    int id = table[slot];
+	    // IDs from size on were interned after this vocabulary was viewed
+	    if (id == EMPTY || id >= size)
+		return -1;
+	    if (hashes[id] == hash && tokens[id].equals(token))
+		return id;
+	}
+    }
+
+    /** Return the ID of token, interning it first if it is new */
+    public int add(String token) {
+	int hash = token.hashCode();
+	int mask = table.length - 1;
+	int slot = spread(hash) & mask;
+	for ( ; ; slot = (slot + 1) & mask) {
+	    int id = table[slot];
+	    if (id == EMPTY)
+		break;
+	    if (hashes[id] == hash && tokens[id].equals(token))
+		return id;
+	}
+	return insert(token, hash, slot);
+    }
+
+    /** Return the String hash code of the characters chars[start, end) */
+    public static int hash(char[] chars, int start, int end) {
+	int hash = 0;
+	for (int i = start; i < end; i++)
+	    hash = 31 * hash + chars[i];
+	return hash;
+    }
+
+    /** Return the ID of the token in chars[start, end), or -1 if it has never
+     *  been interned. hash must be its String hash code, which a scanner can
+     *  compute while it looks for the end of the token */
+    public int id(char[] chars, int start, int end, int hash) {
+	int mask = table.length - 1;
+	for (int slot = spread(hash) & mask; ; slot = (slot + 1) & mask) {
+	    int id = table[slot];
+	    if (id == EMPTY || id >= size)
+		return -1;
+	    if (hashes[id] == hash && matches(tokens[id], chars, start, end))
+		return id;
+	}
+    }
+
+    /** Like id(chars, start, end, hash) but interns the token if it is new.
+     *  Only a new token allocates a String */
+    public int add(char[] chars, int start, int end, int hash) {
+	int mask = table.length - 1;
+	int slot = spread(hash) & mask;
+	for ( ; ; slot = (slot + 1) & mask) {
+	    int id = table[slot];
+	    if (id == EMPTY)
+		break;
+	    if (hashes[id] == hash && matches(tokens[id], chars, start, end))
+		return id;
+	}
+	return insert(new String(chars, start, end - start), hash, slot);
+    }
+
+    /** Does token consist of exactly the characters chars[start, end) */
+    protected static boolean matches(String token, char[] chars, int start, int end) {
+	if (token.length() != end - start)
+	    return false;
+	for (int i = start; i < end; i++) {
+	    if (token.charAt(i - start) != chars[i])
+		return false;
+	}
+	return true;
+    }
+
+    /** Give a new token the next ID, storing it in the empty slot found for it */
+    protected int insert(String token, int hash, int slot) {
+	// Grow first if the table would become more than half full
+	if (size == tokens.length) {
+	    grow();
+	    int mask = table.length - 1;
+	    for (slot = spread(hash) & mask; table[slot] != EMPTY; slot = (slot + 1) & mask)
+		;
+	}
+	int id = size++;
+	tokens[id] = token;
+	hashes[id] = hash;
+	table[slot] = id;
+	return id;
+    }
+
+    /** Double the table and rehash all IDs from their cached hash codes */
+    protected void grow() {
+	int capacity = table.length * 2;
+	tokens = Arrays.copyOf(tokens, capacity / 2);
+	hashes = Arrays.copyOf(hashes, capacity / 2);
+	table = new int[capacity];
+	Arrays.fill(table, EMPTY);
+	int mask = capacity - 1;
+	for (int id = 0; id < size; id++) {
+	    int slot = spread(hashes[id]) & mask;
+	    while (table[slot] != EMPTY)
+		slot = (slot + 1) & mask;
+	    table[slot] = id;
+	}
+    }
+
+    /** Mix the high bits of a String hash code into the low bits used as a slot */
+    protected static int spread(int hash) {
+	hash *= 0x9E3779B9;
+	return hash ^ (hash >>> 16);
+    }
+
+    /** Smallest power of two table that keeps expectedSize tokens at most half full */
+    protected static int tableCapacity(int expectedSize) {
+	int capacity = 16;
+	while (capacity < 2 * expectedSize)
+	    capacity *= 2;
+	return capacity;
+    }
+}
@@ -0,0 +1,313 @@
+package nlp.lm;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Tunes the interpolation weights of a trained model on held-out sentences.
+ * The component probabilities of every held-out prediction (unigram and
+ * bigram, for both directions of a BidirectionalBigramModel) are computed
+ * once and cached in primitive arrays, so that the perplexity for any
+ * weights is a pass over the arrays instead of rescoring the sentences.
+ *
+ * Weights are lambda1 (with lambda2 = 1 - lambda1) and, for a bidirectional
+ * model, forwardWeight (with backwardWeight = 1 - forwardWeight) and the
+ * lambda1 of the backward model. grid evaluates a grid of them in parallel;
+ * em fits them by expectation maximization. An NgramModel can only be
+ * tuned at order 2, where its lambdas are the two weights.
+ */
+
+public class WeightTuner {
+
+    /** Whether the tuned model is bidirectional, with four components */
+    protected final boolean bidirectional;
+
+    /** Whether sentence end, or for a bidirectional model the boundary
+     *  prediction, is part of the held-out perplexity */
+    protected final boolean includeEnd;
+
+    /** Unigram and bigram prob of each prediction in the forward (or only)
+     *  direction */
+    protected double[] unigramProbs, bigramProbs;
+
+    /** Unigram and bigram prob of each prediction in the backward direction */
+    protected double[] backwardUnigramProbs, backwardBigramProbs;
+
+    /** Number of predictions cached */
+    protected int size = 0;
+
+    /** Components of the boundary predictions of each sentence of a
+     *  bidirectional model: backward prediction of <S> and forward
+     *  prediction of </S> */
+    protected double[] startUnigramProbs, startBigramProbs, endUnigramProbs, endBigramProbs;
+
+    /** Number of tokens the perplexity is normalized by */
+    protected double tokenCount = 0;
+
+    /** Cache the component probs of model on the held-out sentences */
+    public WeightTuner(BigramModel model, List<List<String>> heldOut, boolean includeEnd) {
+	this.includeEnd = includeEnd;
+	bidirectional = model instanceof BidirectionalBigramModel;
+	if (bidirectional) {
+	    checkTunable(((BidirectionalBigramModel) model).bigramModel);
+	    checkTunable(((BidirectionalBigramModel) model).backwardBigramModel);
+	}
+	else {
+	    checkTunable(model);
+	}
+	int numPredictions = 0;
+	for (List<String> sentence : heldOut)
+	    numPredictions += sentence.size() + 1;
+	unigramProbs = new double[numPredictions];
+	bigramProbs = new double[numPredictions];
+	if (bidirectional) {
+	    backwardUnigramProbs = new double[numPredictions];
+	    backwardBigramProbs = new double[numPredictions];
+	    startUnigramProbs = new double[heldOut.size()];
+	    startBigramProbs = new double[heldOut.size()];
+	    endUnigramProbs = new double[heldOut.size()];
+	    endBigramProbs = new double[heldOut.size()];
+	    BidirectionalBigramModel bidirectionalModel = (BidirectionalBigramModel) model;
+	    for (int s = 0; s < heldOut.size(); s++)
+		cache(bidirectionalModel.bigramModel, bidirectionalModel.backwardBigramModel, heldOut.get(s), s);
+	}
+	else {
+	    for (List<String> sentence : heldOut)
+		cache(model, sentence);
+	}
+    }
+
+    /** Throw unless model interpolates a unigram and a bigram prob, the
+     *  only weights the tuner fits */
+    protected static void checkTunable(BigramModel model) {
+	if (model instanceof KneserNeyBigramModel)
+	    throw new IllegalArgumentException("A Kneser-Ney model has no interpolation weights to tune");
+	if (model instanceof NgramModel && ((NgramModel) model).order > 2)
+	    throw new IllegalArgumentException("Only the weights of a bigram model can be tuned, not of order " +
+					       ((NgramModel) model).order);
+    }
+
+    /** Cache the predictions of a forward or backward model in its own order */
+    protected void cache(BigramModel model, List<String> sentence) {
+	int prevId = BigramModel.START_ID;
+	for (String token : model.trainingSequence(sentence)) {
+	    int id = model.tokenId(token);
+	    add(model, prevId, id);
+	    prevId = id;
+	}
+	if (includeEnd)
+	    add(model, prevId, BigramModel.END_ID);
+	tokenCount += sentence.size() + (includeEnd ? 1 : 0);
+    }
+
+    /** Cache one prediction of model */
+    protected void add(BigramModel model, int prevId, int id) {
+	unigramProbs[size] = model.unigramProb(id);
+	bigramProbs[size] = model.bigramProb(prevId, id);
+	size++;
+    }
+
+    /** Cache the predictions of sentence s for the two models of a
+     *  bidirectional model, pairing them as BidirectionalBigramModel does */
+    protected void cache(BigramModel forward, BigramModel backward, List<String> sentence, int s) {
+	int n = sentence.size();
+	int[] ids = new int[n];
+	int[] backwardIds = new int[n];
+	int i = 0;
+	for (String token : sentence) {
+	    ids[i] = forward.tokenId(token);
+	    backwardIds[i] = backward.tokenId(token);
+	    i++;
+	}
+	for (i = 0; i < n; i++) {
+	    int prevId = i > 0 ? ids[i - 1] : BigramModel.START_ID;
+	    int nextId = i < n - 1 ? backwardIds[i + 1] : BigramModel.START_ID;
+	    unigramProbs[size] = forward.unigramProb(ids[i]);
+	    bigramProbs[size] = forward.bigramProb(prevId, ids[i]);
+	    backwardUnigramProbs[size] = backward.unigramProb(backwardIds[i]);
+	    backwardBigramProbs[size] = backward.bigramProb(nextId, backwardIds[i]);
+	    size++;
+	}
+	startUnigramProbs[s] = backward.unigramProb(BigramModel.END_ID);
+	startBigramProbs[s] = backward.bigramProb(n > 0 ? backwardIds[0] : BigramModel.START_ID, BigramModel.END_ID);
+	endUnigramProbs[s] = forward.unigramProb(BigramModel.END_ID);
+	endBigramProbs[s] = forward.bigramProb(n > 0 ? ids[n - 1] : BigramModel.START_ID, BigramModel.END_ID);
+	// The boundary prediction counts as one token, as in evaluate
+	tokenCount += n + (includeEnd ? 1 : 0);
+    }
+
+    /** Return the held-out perplexity for these weights. backwardLambda1
+     *  and forwardWeight are ignored unless the model is bidirectional */
+    public double perplexity(double lambda1, double backwardLambda1, double forwardWeight) {
+	double lambda2 = 1 - lambda1;
+	double backwardLambda2 = 1 - backwardLambda1;
+	double backwardWeight = 1 - forwardWeight;
+	double logProb = 0;
+	if (!bidirectional) {
+	    for (int i = 0; i < size; i++)
+		logProb += Math.log(lambda1 * unigramProbs[i] + lambda2 * bigramProbs[i]);
+	    return Math.exp(-logProb / tokenCount);
+	}
+	for (int i = 0; i < size; i++) {
+	    double forwardProb = lambda1 * unigramProbs[i] + lambda2 * bigramProbs[i];
+	    double backwardProb = backwardLambda1 * backwardUnigramProbs[i] + backwardLambda2 * backwardBigramProbs[i];
+	    logProb += Math.log(forwardProb * forwardWeight + backwardProb * backwardWeight);
+	}
+	if (includeEnd) {
+	    for (int s = 0; s < startUnigramProbs.length; s++) {
+		double startProb = backwardLambda1 * startUnigramProbs[s] + backwardLambda2 * startBigramProbs[s];
+		double endProb = lambda1 * endUnigramProbs[s] + lambda2 * endBigramProbs[s];
+		logProb += Math.log((startProb + endProb) / 2);
+	    }
+	}
+	return Math.exp(-logProb / tokenCount);
+    }
+
+    /** Return the perplexity at every point of a grid with lambda1 in
+     *  (0, 1] and, for a bidirectional model, forwardWeight in [0, 1], in
+     *  steps of step, computed on threads threads. The same lambda1 is used
+     *  in both directions. Each row is {lambda1, forwardWeight, perplexity},
+     *  in order of lambda1 then forwardWeight */
+    public List<double[]> grid(double step, int threads) {
+	int steps = (int) Math.round(1 / step);
+	List<double[]> points = new ArrayList<double[]>();
+	for (int l = 1; l <= steps; l++) {
+	    if (!bidirectional) {
+		points.add(new double[] {l * step, 1, 0});
+		continue;
+	    }
+	    for (int f = 0; f <= steps; f++)
+		points.add(new double[] {l * step, f * step, 0});
+	}
+	List<Callable<Double>> tasks = new ArrayList<Callable<Double>>();
+	for (double[] point : points)
+	    tasks.add(() -> perplexity(point[0], point[0], point[1]));
+	ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+	try {
+	    List<Future<Double>> perplexities = pool.invokeAll(tasks);
+	    for (int i = 0; i < points.size(); i++)
+		points.get(i)[2] = perplexities.get(i).get();
+	}
+	catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new IllegalStateException("Interrupted while tuning", e);
+	}
+	catch (ExecutionException e) {
+	    throw new IllegalStateException("Tuning failed", e.getCause());
+	}
+	finally {
+	    pool.shutdown();
+	}
+	return points;
+    }
+
+    /** Return the row of a grid with the lowest perplexity */
+    public static double[] best(List<double[]> grid) {
+	double[] best = grid.get(0);
+	for (double[] point : grid) {
+	    if (point[2] < best[2])
+		best = point;
+	}
+	return best;
+    }
+
+    /** Fit the weights by expectation maximization, treating each prediction
+     *  as drawn from a mixture of its components, and return
+     *  {lambda1, backwardLambda1, forwardWeight}. Boundary predictions of a
+     *  bidirectional model are not a plain mixture and are left out */
+    public double[] em(int maxIterations) {
+	int numComponents = bidirectional ? 4 : 2;
+	double[][] components = bidirectional
+	    ? new double[][] {unigramProbs, bigramProbs, backwardUnigramProbs, backwardBigramProbs}
+	    : new double[][] {unigramProbs, bigramProbs};
+	double[] weights = new double[numComponents];
+	Arrays.fill(weights, 1.0 / numComponents);
+	double[] posteriors = new double[numComponents];
+	for (int iteration = 0; iteration < maxIterations; iteration++) {
+	    Arrays.fill(posteriors, 0);
+	    for (int i = 0; i < size; i++) {
+		double total = 0;
+		for (int k = 0; k < numComponents; k++)
+		    total += weights[k] * components[k][i];
+		for (int k = 0; k < numComponents; k++)
+		    posteriors[k] += weights[k] * components[k][i] / total;
+	    }
+	    double change = 0;
+	    for (int k = 0; k < numComponents; k++) {
+		double weight = posteriors[k] / size;
+		change = Math.max(change, Math.abs(weight - weights[k]));
+		weights[k] = weight;
+	    }
+	    if (change < 1e-6)
+		break;
+	}
+	if (!bidirectional)
+	    return new double[] {weights[0], weights[0], 1};
+	double forwardWeight = weights[0] + weights[1];
+	return new double[] {weights[0] / forwardWeight, weights[2] / (1 - forwardWeight), forwardWeight};
+    }
+
+    /** Set the weights of model, and of both halves of a bidirectional model */
+    public static void apply(BigramModel model, double lambda1, double backwardLambda1, double forwardWeight) {
+	if (model instanceof BidirectionalBigramModel) {
+	    BidirectionalBigramModel bidirectional = (BidirectionalBigramModel) model;
+	    apply(bidirectional.bigramModel, lambda1, lambda1, 1);
+	    apply(bidirectional.backwardBigramModel, backwardLambda1, backwardLambda1, 1);
+	    bidirectional.forwardWeight = forwardWeight;
+	    bidirectional.backwardWeight = 1 - forwardWeight;
+	    return;
+	}
+	model.lambda1 = lambda1;
+	model.lambda2 = 1 - lambda1;
+	// An NgramModel scores with its lambdas
+	if (model instanceof NgramModel) {
+	    ((NgramModel) model).lambdas[0] = lambda1;
+	    ((NgramModel) model).lambdas[1] = 1 - lambda1;
+	}
+    }
+
+    /** Train a model, tune its weights on held-out sentences and test it
+     *  with the default and tuned weights.
+     *  Command format: "nlp.lm.WeightTuner [Model] [Step] [DIR]* [TestFrac]"
+     *  where Model is BigramModel, BackwardBigramModel or
+     *  (Shared)BidirectionalBigramModel, Step is the grid spacing, and DIR
+     *  and TestFrac are as for BigramModel.main. The last TestFrac of the
+     *  training sentences is held out for tuning */
+    public static void main(String[] args) throws Exception {
+	BigramModel model = (BigramModel) Class.forName("nlp.lm." + args[0])
+	    .getDeclaredConstructor().newInstance();
+	double step = Double.parseDouble(args[1]);
+	File[] files = new File[args.length - 3];
+	for (int i = 0; i < files.length; i++)
+	    files[i] = new File(args[i + 2]);
+	double testFraction = Double.valueOf(args[args.length - 1]);
+	List<List<String>> sentences = POSTaggedFile.convertToTokenLists(files);
+	int numSentences = sentences.size();
+	int numTest = (int)Math.round(numSentences * testFraction);
+	List<List<String>> testSentences = sentences.subList(numSentences - numTest, numSentences);
+	List<List<String>> trainSentences = sentences.subList(0, numSentences - numTest);
+	int numHeldOut = (int)Math.round(trainSentences.size() * testFraction);
+	List<List<String>> heldOut = trainSentences.subList(trainSentences.size() - numHeldOut, trainSentences.size());
+	System.out.println("Training...");
+	model.train(trainSentences.subList(0, trainSentences.size() - numHeldOut));
+	System.out.println("Default weights: Word Perplexity = " + model.evaluate(testSentences, false).perplexity);
+	long start = System.nanoTime();
+	WeightTuner tuner = new WeightTuner(model, heldOut, false);
+	List<double[]> grid = tuner.grid(step, model.testThreads);
+	System.out.println("Held-out perplexity curve (lambda1, forwardWeight, perplexity):");
+	for (double[] point : grid)
+	    System.out.printf("%.4f %.4f %.6f%n", point[0], point[1], point[2]);
+	double[] best = best(grid);
+	double[] em = tuner.em(100);
+	System.out.println("Tuned in " + (System.nanoTime() - start) / 1000000 + " ms");
+	System.out.printf("Grid: lambda1 = %.4f, forwardWeight = %.4f, held-out perplexity = %.6f%n",
+			  best[0], best[1], best[2]);
+	System.out.printf("EM:   lambda1 = %.4f, backward lambda1 = %.4f, forwardWeight = %.4f, held-out perplexity = %.6f%n",
+			  em[0], em[1], em[2], tuner.perplexity(em[0], em[1], em[2]));
+	apply(model, best[0], best[0], best[1]);
+	System.out.println("Grid weights: Word Perplexity = " + model.evaluate(testSentences, false).perplexity);
+	apply(model, em[0], em[1], em[2]);
+	System.out.println("EM weights:   Word Perplexity = " + model.evaluate(testSentences, false).perplexity);
+    }
+}